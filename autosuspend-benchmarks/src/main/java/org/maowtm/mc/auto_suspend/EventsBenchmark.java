@@ -0,0 +1,115 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.md_5.bungee.api.ServerConnectRequest;
+import net.md_5.bungee.api.ServerPing;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.ProxyPingEvent;
+import net.md_5.bungee.api.event.ServerConnectEvent;
+import net.md_5.bungee.api.event.ServerConnectEvent.Reason;
+
+/**
+ * Throughput of the event handlers BungeeCord calls on its network threads,
+ * with several callers at once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EventsBenchmark {
+  @State(Scope.Benchmark)
+  public static class Proxy {
+    @Param({ "RUNNING", "RESUMING" })
+    public Fixture.Scenario scenario;
+
+    public Fixture fixture;
+    public ServerConnectRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      fixture = new Fixture(scenario);
+      request = ServerConnectRequest.builder().target(fixture.serverInfo).reason(Reason.JOIN_PROXY).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      fixture.close();
+    }
+  }
+
+  /**
+   * A scanner flooding the proxy with pings.
+   */
+  @State(Scope.Benchmark)
+  public static class Flood {
+    @Param({ "RUNNING", "RESUMING" })
+    public Fixture.Scenario scenario;
+
+    public Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      fixture = new Fixture(scenario, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      fixture.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Players {
+    public ProxiedPlayer[] players = Fixture.players(64);
+    public int next = 0;
+
+    public ProxiedPlayer next() {
+      next = (next + 1) & (players.length - 1);
+      return players[next];
+    }
+  }
+
+  private static ProxyPingEvent ping(Fixture fixture) {
+    var ping = new ServerPing(new ServerPing.Protocol("BungeeCord 1.19", 759), new ServerPing.Players(20, 0, null),
+        new TextComponent("A Minecraft Server"), null);
+    var evt = new ProxyPingEvent(fixture.pinger, ping, null);
+    fixture.events.onPing(evt);
+    return evt;
+  }
+
+  @Benchmark
+  public ProxyPingEvent onPing(Proxy proxy) {
+    return ping(proxy.fixture);
+  }
+
+  @Benchmark
+  public ProxyPingEvent onPingFlood(Flood flood) {
+    return ping(flood.fixture);
+  }
+
+  @Benchmark
+  public ServerConnectEvent onServerConnect(Proxy proxy, Players players) {
+    var evt = new ServerConnectEvent(players.next(), proxy.fixture.serverInfo, Reason.JOIN_PROXY, proxy.request);
+    proxy.fixture.events.onServerConnect(evt);
+    return evt;
+  }
+}
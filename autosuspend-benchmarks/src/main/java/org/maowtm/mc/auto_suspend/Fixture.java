@@ -0,0 +1,181 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.api.ProxyConfig;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.config.ListenerInfo;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.plugin.PluginAccess;
+import net.md_5.bungee.api.plugin.PluginDescription;
+
+/**
+ * The plugin running against a mocked proxy with one server, "lobby", driven
+ * by a {@link StubController}.
+ */
+public class Fixture implements AutoCloseable {
+  public static final String SERVER = "lobby";
+
+  /**
+   * The starting point of a benchmark.
+   */
+  public static enum Scenario {
+    /**
+     * The server is up and players go straight through.
+     */
+    RUNNING,
+    /**
+     * The manager is stuck in the middle of a resume, so every join is queued
+     * and every ping sees a sleeping server.
+     */
+    RESUMING
+  }
+
+  private static class Plugin extends AutoSuspend {
+    private final StubController controller;
+
+    Plugin(ProxyServer proxy, PluginDescription description, StubController controller) {
+      super(proxy, description);
+      PluginAccess.init(this, proxy, description);
+      this.controller = controller;
+    }
+
+    @Override
+    ServerController createController(String name, ServerConfig serverConfig) {
+      return controller;
+    }
+  }
+
+  public final ServerInfo serverInfo;
+  public final AutoSuspend plugin;
+  public final Events events;
+  public final ServerStateManager manager;
+  /**
+   * A client pinging the proxy.
+   */
+  public final PendingConnection pinger;
+
+  public Fixture(Scenario scenario) throws Exception {
+    this(scenario, false);
+  }
+
+  /**
+   * @param pingLimit whether to rate limit pings. All pings come from the same
+   *                  address, so nearly all of them are over the limit.
+   */
+  public Fixture(Scenario scenario, boolean pingLimit) throws Exception {
+    var logger = Logger.getLogger("autosuspend-benchmark");
+    logger.setLevel(Level.WARNING);
+    serverInfo = stub(ServerInfo.class);
+    when(serverInfo.getName()).thenReturn(SERVER);
+    when(serverInfo.getSocketAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 25566));
+
+    var proxy = stub(ProxyServer.class);
+    when(proxy.getLogger()).thenReturn(logger);
+    when(proxy.getServers()).thenReturn(Map.of(SERVER, serverInfo));
+    when(proxy.getServerInfo(SERVER)).thenReturn(serverInfo);
+    var pluginsFolder = Files.createTempDirectory("autosuspend-benchmark").toFile();
+    pluginsFolder.deleteOnExit();
+    when(proxy.getPluginsFolder()).thenReturn(pluginsFolder);
+    // Deprecated, but still read by ServerConnectRequest.builder().
+    @SuppressWarnings("deprecation")
+    var proxyConfig = stub(ProxyConfig.class);
+    when(proxyConfig.getServerConnectTimeout()).thenReturn(5000);
+    when(proxy.getConfig()).thenReturn(proxyConfig);
+    if (ProxyServer.getInstance() == null) {
+      ProxyServer.setInstance(proxy);
+    }
+
+    var listener = stub(ListenerInfo.class);
+    when(listener.getServerPriority()).thenReturn(List.of(SERVER));
+    when(listener.getForcedHosts()).thenReturn(Map.of());
+    pinger = stub(PendingConnection.class);
+    when(pinger.getListener()).thenReturn(listener);
+    when(pinger.getSocketAddress()).thenReturn(new InetSocketAddress("203.0.113.1", 50000));
+
+    var description = new PluginDescription();
+    description.setName("autosuspend");
+    description.setFile(new File(pluginsFolder, "autosuspend.jar"));
+    // A resume that never finishes within a benchmark run.
+    var controller = new StubController(scenario == Scenario.RUNNING ? State.RUNNING : State.SUSPENDED,
+        Duration.ofHours(1), Duration.ofHours(1));
+    var p = new Plugin(proxy, description, controller);
+    p.getDataFolder().mkdir();
+    var config = p.defaultConfig();
+    config.set(ConfigKeys.SERVER, SERVER);
+    // No backend to probe.
+    config.set(ConfigKeys.READINESS_TIMEOUT_SECS, 0);
+    config.set(ConfigKeys.SLEEP_DELAY_SECS, 3600);
+    config.getSection(ConfigKeys.JOURNAL).set(ConfigKeys.JOURNAL_ENABLED, false);
+    config.getSection(ConfigKeys.PING_LIMIT).set(ConfigKeys.PING_LIMIT_ENABLED, pingLimit);
+    p.startManagers(config);
+    plugin = p;
+    events = new Events(p);
+    manager = p.getStateManager(SERVER);
+
+    var expected = scenario == Scenario.RUNNING ? State.RUNNING : State.SUSPENDED;
+    awaitState(expected);
+    if (scenario == Scenario.RESUMING) {
+      manager.enqueue(player(-1));
+      // Give the manager time to call into the controller.
+      Thread.sleep(100);
+    }
+  }
+
+  private void awaitState(State state) throws InterruptedException {
+    var giveUp = Instant.now().plusSeconds(10);
+    while (manager.getState() != state) {
+      if (Instant.now().isAfter(giveUp)) {
+        throw new IllegalStateException(String.format("Manager stuck in %s, expected %s", manager.getState(), state));
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Mocks that only answer what they were stubbed with. Much cheaper to call
+   * than regular mocks, which matters when they are on the measured path.
+   */
+  public static <T> T stub(Class<T> cls) {
+    return mock(cls, withSettings().stubOnly());
+  }
+
+  public static ProxiedPlayer player(int i) {
+    var p = stub(ProxiedPlayer.class);
+    when(p.getUniqueId()).thenReturn(new UUID(0, i));
+    when(p.getName()).thenReturn("player" + i);
+    when(p.isConnected()).thenReturn(true);
+    when(p.getSocketAddress()).thenReturn(new InetSocketAddress("198.51.100.1", 40000 + (i & 0x3fff)));
+    return p;
+  }
+
+  public static ProxiedPlayer[] players(int n) {
+    var res = new ProxiedPlayer[n];
+    for (int i = 0; i < n; i++) {
+      res[i] = player(i);
+    }
+    return res;
+  }
+
+  @Override
+  public void close() {
+    plugin.stopManagers();
+  }
+}
@@ -0,0 +1,90 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+/**
+ * Contention on {@link ServerStateManager} itself: state reads racing with
+ * player count updates, and bursts of players joining the queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class StateManagerBenchmark {
+  /**
+   * Roughly a server's worth of players showing up at once.
+   */
+  private static final int BURST = 30;
+
+  @Param({ "RUNNING", "RESUMING" })
+  public Fixture.Scenario scenario;
+
+  private Fixture fixture;
+  private ProxiedPlayer[] burst;
+  private int playerCount = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    fixture = new Fixture(scenario);
+    burst = Fixture.players(BURST);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public ServerStateManager.State getState() {
+    return fixture.manager.getState();
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void updatePlayerCount() {
+    // Alternate so that every call publishes a new snapshot.
+    playerCount ^= 1;
+    fixture.manager.updatePlayerCount(playerCount);
+  }
+
+  /**
+   * Enqueues then dequeues a burst of players, as when a group joins and then
+   * gives up waiting.
+   */
+  @Benchmark
+  @Group("burst")
+  @GroupThreads(1)
+  @OperationsPerInvocation(BURST)
+  public void enqueueBurst() {
+    for (var p : burst) {
+      fixture.manager.enqueue(p);
+    }
+    for (var p : burst) {
+      fixture.manager.dequeue(p);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+/**
+ * A {@link ServerController} for a server that doesn't exist, taking a fixed
+ * amount of time to resume or suspend.
+ */
+public class StubController implements ServerController {
+  private volatile State state;
+  private final Duration resumeTime, suspendTime;
+
+  public StubController(State initial, Duration resumeTime, Duration suspendTime) {
+    this.state = initial;
+    this.resumeTime = resumeTime;
+    this.suspendTime = suspendTime;
+  }
+
+  @Override
+  public CompletableFuture<State> checkState() {
+    return CompletableFuture.completedFuture(state);
+  }
+
+  @Override
+  public CompletableFuture<Void> resume() {
+    return CompletableFuture.runAsync(() -> state = State.RUNNING,
+        CompletableFuture.delayedExecutor(resumeTime.toMillis(), TimeUnit.MILLISECONDS));
+  }
+
+  @Override
+  public CompletableFuture<Void> suspend() {
+    return CompletableFuture.runAsync(() -> state = State.SUSPENDED,
+        CompletableFuture.delayedExecutor(suspendTime.toMillis(), TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,54 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.WebhookEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Cost of turning an event into the JSON body of a webhook request, excluding
+ * the request itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebhookBenchmark {
+  @Param({ "RESUMED", "JOINED_WHILE_RUNNING", "LEFT" })
+  public WebhookEvent event;
+
+  private WebhookDispatcher dispatcher;
+
+  @Setup
+  public void setUp() {
+    var config = new Configuration();
+    config.set(ConfigKeys.WEBHOOK_URL, "http://127.0.0.1:9/webhook");
+    // Never submitted to, so it never uses the scheduler.
+    dispatcher = new WebhookDispatcher(config, null, Logger.getLogger("autosuspend-benchmark"));
+  }
+
+  @Benchmark
+  public String message() {
+    return ServerStateManager.generateWebhookMessage(event, "Notch", 5);
+  }
+
+  @Benchmark
+  public String messageToJson() {
+    return dispatcher.toJson(ServerStateManager.generateWebhookMessage(event, "Notch", 5));
+  }
+}
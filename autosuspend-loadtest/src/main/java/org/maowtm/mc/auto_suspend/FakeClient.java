@@ -0,0 +1,196 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+/**
+ * One fake player. Logs in to the proxy in offline mode, then waits to be sent
+ * to a backend, answering keepalives as a real client would, and stays
+ * connected for a while once it is.
+ */
+final class FakeClient implements Callable<FakeClient.Outcome> {
+  enum Result {
+    JOINED, KICKED, TIMED_OUT, ERROR
+  }
+
+  static final class Outcome {
+    final String name;
+    /**
+     * When this player started connecting, since the start of its wave.
+     */
+    final Duration arrival;
+    Result result;
+    /**
+     * Until the proxy accepted the login, and until the backend's join packet
+     * came through, or null if that never happened.
+     */
+    Duration login, join;
+    /**
+     * Kick reason or error.
+     */
+    String reason = "";
+    /**
+     * Action bar and chat messages received before joining.
+     */
+    int progressMessages, chatMessages;
+
+    Outcome(String name, Duration arrival) {
+      this.name = name;
+      this.arrival = arrival;
+    }
+  }
+
+  private final InetSocketAddress proxy;
+  private final String name;
+  private final Duration arrival;
+  private final Duration timeout;
+  private final Duration stay;
+
+  FakeClient(InetSocketAddress proxy, String name, Duration arrival, Duration timeout, Duration stay) {
+    this.proxy = proxy;
+    this.name = name;
+    this.arrival = arrival;
+    this.timeout = timeout;
+    this.stay = stay;
+  }
+
+  @Override
+  public Outcome call() {
+    var outcome = new Outcome(name, arrival);
+    long start = System.nanoTime();
+    long giveUpAt = start + timeout.toNanos();
+    try (var socket = new Socket()) {
+      socket.setTcpNoDelay(true);
+      socket.connect(proxy, (int) timeout.toMillis());
+      var conn = new Protocol.Connection(socket);
+      conn.write(Protocol.HANDSHAKE, out -> {
+        Protocol.writeVarInt(out, Protocol.VERSION);
+        Protocol.writeString(out, proxy.getHostString());
+        out.writeShort(proxy.getPort());
+        Protocol.writeVarInt(out, Protocol.NEXT_STATE_LOGIN);
+      });
+      conn.write(Protocol.LOGIN_START, out -> {
+        Protocol.writeString(out, name);
+        out.writeBoolean(true);
+        Protocol.writeUuid(out, Protocol.offlineUuid(name));
+      });
+      if (!login(conn, outcome, start, giveUpAt)) {
+        return outcome;
+      }
+      if (!play(conn, outcome, start, giveUpAt)) {
+        return outcome;
+      }
+      outcome.result = Result.JOINED;
+      stay(conn);
+    } catch (SocketTimeoutException e) {
+      outcome.result = Result.TIMED_OUT;
+    } catch (IOException e) {
+      outcome.result = Result.ERROR;
+      outcome.reason = e instanceof EOFException ? "Connection closed" : e.toString();
+    }
+    return outcome;
+  }
+
+  private static void setTimeout(Protocol.Connection conn, long giveUpAt) throws IOException {
+    long left = (giveUpAt - System.nanoTime()) / 1_000_000;
+    if (left <= 0) {
+      throw new SocketTimeoutException();
+    }
+    conn.socket.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+  }
+
+  /**
+   * @return whether the login was accepted.
+   */
+  private boolean login(Protocol.Connection conn, Outcome outcome, long start, long giveUpAt) throws IOException {
+    while (true) {
+      setTimeout(conn, giveUpAt);
+      var p = conn.read();
+      switch (p.id) {
+        case Protocol.LOGIN_DISCONNECT:
+          outcome.result = Result.KICKED;
+          outcome.reason = Protocol.plainText(Protocol.readString(p.data));
+          return false;
+        case Protocol.ENCRYPTION_REQUEST:
+          outcome.result = Result.ERROR;
+          outcome.reason = "Proxy is in online mode";
+          return false;
+        case Protocol.SET_COMPRESSION:
+          conn.setCompression(Protocol.readVarInt(p.data));
+          break;
+        case Protocol.LOGIN_PLUGIN_REQUEST:
+          int messageId = Protocol.readVarInt(p.data);
+          conn.write(Protocol.LOGIN_PLUGIN_RESPONSE, out -> {
+            Protocol.writeVarInt(out, messageId);
+            out.writeBoolean(false);
+          });
+          break;
+        case Protocol.LOGIN_SUCCESS:
+          outcome.login = Duration.ofNanos(System.nanoTime() - start);
+          return true;
+        default:
+          throw new IOException(String.format("Unexpected login packet 0x%02x", p.id));
+      }
+    }
+  }
+
+  /**
+   * Waits in limbo until the backend's join packet comes through.
+   *
+   * @return whether it did.
+   */
+  private boolean play(Protocol.Connection conn, Outcome outcome, long start, long giveUpAt) throws IOException {
+    while (true) {
+      setTimeout(conn, giveUpAt);
+      var p = conn.read();
+      switch (p.id) {
+        case Protocol.PLAY_LOGIN:
+          outcome.join = Duration.ofNanos(System.nanoTime() - start);
+          return true;
+        case Protocol.PLAY_DISCONNECT:
+          outcome.result = Result.KICKED;
+          outcome.reason = Protocol.plainText(Protocol.readString(p.data));
+          return false;
+        case Protocol.PLAY_KEEP_ALIVE:
+          answerKeepAlive(conn, p);
+          break;
+        case Protocol.PLAY_ACTION_BAR:
+          outcome.progressMessages++;
+          break;
+        case Protocol.PLAY_SYSTEM_CHAT:
+          outcome.chatMessages++;
+          break;
+        default:
+          // Nothing else matters before joining.
+      }
+    }
+  }
+
+  /**
+   * Plays for {@link #stay}, then leaves.
+   */
+  private void stay(Protocol.Connection conn) {
+    long leaveAt = System.nanoTime() + stay.toNanos();
+    try {
+      while (true) {
+        setTimeout(conn, leaveAt);
+        var p = conn.read();
+        if (p.id == Protocol.PLAY_KEEP_ALIVE) {
+          answerKeepAlive(conn, p);
+        }
+      }
+    } catch (IOException e) {
+      // Time to go, or kicked after joining, which isn't what's being tested.
+    }
+  }
+
+  private static void answerKeepAlive(Protocol.Connection conn, Protocol.Packet p) throws IOException {
+    long id = p.data.readLong();
+    conn.write(Protocol.PLAY_KEEP_ALIVE_RESPONSE, out -> out.writeLong(id));
+  }
+}
@@ -0,0 +1,226 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.maowtm.mc.auto_suspend.FakeClient.Outcome;
+import org.maowtm.mc.auto_suspend.FakeClient.Result;
+
+/**
+ * Joins many fake players to a proxy running the plugin at about the same
+ * time, to see how it copes with a burst of joins to a suspended server: how
+ * long players take to get in, how many are kicked, and how quickly the queue
+ * drains. Players arrive over {@code --window-secs}, evenly or at random, in
+ * one or more waves. Each wave waits for everyone from the last one to leave,
+ * and then for {@code --wave-gap-secs}, so that the server can go back to
+ * sleep in between.
+ *
+ * Meant to be run against a local BungeeCord in offline mode, with the plugin
+ * managing a {@link StubBackend} through the {@code local_process} controller.
+ */
+public class LoadTest {
+  private static final String USAGE = String.join("\n",
+      "Usage: java -jar loadtest.jar [options]",
+      "  --proxy=HOST:PORT        proxy to join (default 127.0.0.1:25577)",
+      "  --players=N              players per wave (default 30)",
+      "  --window-secs=X          spread their arrivals over X seconds (default 1, 0 for all at once)",
+      "  --arrival=uniform|poisson  evenly spaced or at random (default uniform)",
+      "  --waves=N                number of waves (default 1)",
+      "  --wave-gap-secs=X        pause between waves (default 120)",
+      "  --stay-secs=X            how long each player stays once in (default 5)",
+      "  --timeout-secs=X         give up on getting in after X seconds (default 180)",
+      "  --name-prefix=S          player names are S0, S1, ... (default load)",
+      "  --seed=N                 random seed for poisson arrivals (default 1)",
+      "  --csv=FILE               also write one line per player to FILE");
+
+  private static String header() {
+    return String.format("%4s %7s %7s %7s %7s %7s %9s %9s %9s %9s %9s %9s %8s", "wave", "players", "joined",
+        "kicked", "timeout", "errors", "login_p50", "join_p50", "join_p90", "join_p99", "join_max", "drained_s",
+        "progress");
+  }
+
+  private static String row(int wave, List<Outcome> outcomes) {
+    var counts = new HashMap<Result, Integer>();
+    var logins = new ArrayList<Duration>();
+    var joins = new ArrayList<Duration>();
+    Duration drained = Duration.ZERO;
+    int progress = 0;
+    for (var o : outcomes) {
+      counts.merge(o.result, 1, Integer::sum);
+      if (o.login != null) {
+        logins.add(o.login);
+      }
+      if (o.join != null) {
+        joins.add(o.join);
+        var in = o.arrival.plus(o.join);
+        if (in.compareTo(drained) > 0) {
+          drained = in;
+        }
+      }
+      if (o.progressMessages > 0) {
+        progress++;
+      }
+    }
+    Collections.sort(logins);
+    Collections.sort(joins);
+    return String.format("%4d %7d %7d %7d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %8d", wave, outcomes.size(),
+        counts.getOrDefault(Result.JOINED, 0), counts.getOrDefault(Result.KICKED, 0),
+        counts.getOrDefault(Result.TIMED_OUT, 0), counts.getOrDefault(Result.ERROR, 0), seconds(logins, 0.5),
+        seconds(joins, 0.5), seconds(joins, 0.9), seconds(joins, 0.99), seconds(joins, 1), drained.toMillis() / 1000.0,
+        progress);
+  }
+
+  /**
+   * Nearest-rank percentile of sorted durations, in seconds, or NaN if there
+   * are none.
+   */
+  private static double seconds(List<Duration> sorted, double p) {
+    if (sorted.isEmpty()) {
+      return Double.NaN;
+    }
+    int i = (int) Math.ceil(p * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1))).toMillis() / 1000.0;
+  }
+
+  /**
+   * @return when each player arrives, since the start of the wave.
+   */
+  private static List<Duration> arrivals(int players, Duration window, boolean poisson, Random random) {
+    var out = new ArrayList<Duration>(players);
+    double meanGapNanos = players == 0 ? 0 : (double) window.toNanos() / players;
+    double at = 0;
+    for (int i = 0; i < players; i++) {
+      if (poisson) {
+        at += -Math.log(1 - random.nextDouble()) * meanGapNanos;
+        out.add(Duration.ofNanos((long) at));
+      } else {
+        out.add(Duration.ofNanos((long) (meanGapNanos * i)));
+      }
+    }
+    return out;
+  }
+
+  private static List<Outcome> runWave(InetSocketAddress proxy, List<Duration> arrivals, String prefix,
+      Duration timeout, Duration stay) throws InterruptedException {
+    // One thread per player, like the blocking clients they stand in for.
+    var pool = Executors.newCachedThreadPool();
+    long start = System.nanoTime();
+    var futures = new ArrayList<Future<Outcome>>();
+    for (int i = 0; i < arrivals.size(); i++) {
+      var arrival = arrivals.get(i);
+      var client = new FakeClient(proxy, prefix + i, arrival, timeout, stay);
+      futures.add(pool.submit(() -> {
+        long wait = start + arrival.toNanos() - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+        return client.call();
+      }));
+    }
+    var outcomes = new ArrayList<Outcome>();
+    for (var f : futures) {
+      try {
+        outcomes.add(f.get());
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    pool.shutdown();
+    return outcomes;
+  }
+
+  private static void writeCsv(Path path, Map<Integer, List<Outcome>> waves) throws IOException {
+    try (var out = new PrintStream(Files.newOutputStream(path))) {
+      out.println("wave,player,arrival_ms,result,login_ms,join_ms,progress,chat,reason");
+      for (var e : waves.entrySet()) {
+        for (var o : e.getValue()) {
+          out.println(String.join(",", Integer.toString(e.getKey()), o.name, Long.toString(o.arrival.toMillis()),
+              o.result.name().toLowerCase(), o.login == null ? "" : Long.toString(o.login.toMillis()),
+              o.join == null ? "" : Long.toString(o.join.toMillis()), Integer.toString(o.progressMessages),
+              Integer.toString(o.chatMessages), "\"" + o.reason.replace("\"", "\"\"") + "\""));
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    var opts = new HashMap<String, String>();
+    for (var arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      opts.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    var proxyOpt = opts.getOrDefault("proxy", "127.0.0.1:25577");
+    int colon = proxyOpt.lastIndexOf(':');
+    if (colon < 0) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    var proxy = new InetSocketAddress(proxyOpt.substring(0, colon), Integer.parseInt(proxyOpt.substring(colon + 1)));
+    int players = Integer.parseInt(opts.getOrDefault("players", "30"));
+    var window = Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("window-secs", "1")) * 1000));
+    var arrival = opts.getOrDefault("arrival", "uniform");
+    if (!arrival.equals("uniform") && !arrival.equals("poisson")) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    int waves = Integer.parseInt(opts.getOrDefault("waves", "1"));
+    var gap = Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("wave-gap-secs", "120")) * 1000));
+    var stay = Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("stay-secs", "5")) * 1000));
+    var timeout = Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("timeout-secs", "180")) * 1000));
+    var prefix = opts.getOrDefault("name-prefix", "load");
+    if (prefix.length() + Integer.toString(Math.max(0, players - 1)).length() > 16) {
+      System.err.println("Player names can be at most 16 characters, use a shorter --name-prefix.");
+      System.exit(2);
+    }
+    var random = new Random(Long.parseLong(opts.getOrDefault("seed", "1")));
+
+    System.out.println(String.format("%d players per wave against %s, arriving %s over %.1fs", players, proxyOpt,
+        arrival, window.toMillis() / 1000.0));
+    System.out.println(header());
+    var results = new TreeMap<Integer, List<Outcome>>();
+    var reasons = new TreeMap<String, Integer>();
+    boolean ok = true;
+    for (int wave = 1; wave <= waves; wave++) {
+      if (wave > 1) {
+        Thread.sleep(gap.toMillis());
+      }
+      var outcomes = runWave(proxy, arrivals(players, window, arrival.equals("poisson"), random), prefix, timeout,
+          stay);
+      results.put(wave, outcomes);
+      System.out.println(row(wave, outcomes));
+      for (var o : outcomes) {
+        if (o.result != Result.JOINED) {
+          ok = false;
+          var what = o.result == Result.TIMED_OUT ? "timed out" : o.result.name().toLowerCase() + ": " + o.reason;
+          reasons.merge(what, 1, Integer::sum);
+        }
+      }
+    }
+    for (var e : reasons.entrySet()) {
+      System.out.println(String.format("%5d %s", e.getValue(), e.getKey()));
+    }
+    if (opts.containsKey("csv")) {
+      writeCsv(Path.of(opts.get("csv")), results);
+    }
+    if (!ok) {
+      System.exit(1);
+    }
+  }
+}
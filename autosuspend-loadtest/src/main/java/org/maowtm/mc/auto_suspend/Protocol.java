@@ -0,0 +1,258 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Just enough of the Minecraft protocol to log in in offline mode and tell a
+ * few packets apart, for both the fake clients and the stub backend. Speaks
+ * 1.20.1 (protocol 763), the last version that goes straight from login to
+ * play, which BungeeCord accepts from clients and passes on to backends.
+ */
+final class Protocol {
+  static final int VERSION = 763;
+  static final String VERSION_NAME = "1.20.1";
+
+  static final int NEXT_STATE_STATUS = 1;
+  static final int NEXT_STATE_LOGIN = 2;
+
+  // Handshake, status and login, serverbound
+  static final int HANDSHAKE = 0x00;
+  static final int STATUS_REQUEST = 0x00;
+  static final int PING = 0x01;
+  static final int LOGIN_START = 0x00;
+  static final int LOGIN_PLUGIN_RESPONSE = 0x02;
+  // Status and login, clientbound
+  static final int STATUS_RESPONSE = 0x00;
+  static final int PONG = 0x01;
+  static final int LOGIN_DISCONNECT = 0x00;
+  static final int ENCRYPTION_REQUEST = 0x01;
+  static final int LOGIN_SUCCESS = 0x02;
+  static final int SET_COMPRESSION = 0x03;
+  static final int LOGIN_PLUGIN_REQUEST = 0x04;
+  // Play, clientbound
+  static final int PLAY_DISCONNECT = 0x1a;
+  static final int PLAY_KEEP_ALIVE = 0x23;
+  static final int PLAY_LOGIN = 0x28;
+  static final int PLAY_ACTION_BAR = 0x46;
+  static final int PLAY_SYSTEM_CHAT = 0x64;
+  // Play, serverbound
+  static final int PLAY_KEEP_ALIVE_RESPONSE = 0x12;
+
+  private static final int MAX_PACKET = 2 * 1024 * 1024;
+  private static final Pattern TEXT = Pattern.compile("\"text\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private Protocol() {
+  }
+
+  interface Body {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  static final class Packet {
+    final int id;
+    final DataInputStream data;
+
+    Packet(int id, DataInputStream data) {
+      this.id = id;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Packet framing over a socket, compressed once {@link #setCompression} has
+   * been called.
+   */
+  static final class Connection implements Closeable {
+    final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private int threshold = -1;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+    }
+
+    void setCompression(int threshold) {
+      this.threshold = threshold;
+    }
+
+    Packet read() throws IOException {
+      int length = readVarInt(in);
+      if (length <= 0 || length > MAX_PACKET) {
+        throw new IOException(String.format("Bad packet length %d", length));
+      }
+      var frame = new byte[length];
+      in.readFully(frame);
+      InputStream body = new ByteArrayInputStream(frame);
+      if (threshold >= 0) {
+        int dataLength = readVarInt(new DataInputStream(body));
+        if (dataLength != 0) {
+          if (dataLength > MAX_PACKET) {
+            throw new IOException(String.format("Bad packet length %d", dataLength));
+          }
+          body = new ByteArrayInputStream(inflate(body.readAllBytes(), dataLength));
+        }
+      }
+      var data = new DataInputStream(body);
+      return new Packet(readVarInt(data), data);
+    }
+
+    void write(int id, Body body) throws IOException {
+      var buf = new ByteArrayOutputStream();
+      var d = new DataOutputStream(buf);
+      writeVarInt(d, id);
+      body.write(d);
+      var data = buf.toByteArray();
+
+      var frame = new ByteArrayOutputStream(data.length + 10);
+      var f = new DataOutputStream(frame);
+      if (threshold < 0) {
+        writeVarInt(f, data.length);
+        f.write(data);
+      } else if (data.length < threshold) {
+        writeVarInt(f, data.length + 1);
+        writeVarInt(f, 0);
+        f.write(data);
+      } else {
+        var compressed = deflate(data);
+        var dataLength = new ByteArrayOutputStream(5);
+        writeVarInt(new DataOutputStream(dataLength), data.length);
+        writeVarInt(f, dataLength.size() + compressed.length);
+        dataLength.writeTo(f);
+        f.write(compressed);
+      }
+      synchronized (out) {
+        frame.writeTo(out);
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private static byte[] inflate(byte[] compressed, int length) throws IOException {
+    var inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      var out = new byte[length];
+      int n = 0;
+      while (n < length && !inflater.finished()) {
+        int got = inflater.inflate(out, n, length - n);
+        if (got == 0 && inflater.needsInput()) {
+          break;
+        }
+        n += got;
+      }
+      if (n != length) {
+        throw new IOException("Truncated compressed packet");
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Bad compressed packet", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] deflate(byte[] data) {
+    var deflater = new Deflater();
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      var out = new ByteArrayOutputStream(data.length);
+      var chunk = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(chunk, 0, deflater.deflate(chunk));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 5; i++) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << (7 * i);
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("VarInt too long");
+  }
+
+  static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0 || length > MAX_PACKET) {
+      throw new IOException(String.format("Bad string length %d", length));
+    }
+    var bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeString(DataOutput out, String s) throws IOException {
+    var bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  /**
+   * The UUID a server in offline mode gives a player.
+   */
+  static UUID offlineUuid(String name) {
+    return UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String json(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Roughly the plain text of a JSON chat component, for reporting kick
+   * reasons.
+   */
+  static String plainText(String json) {
+    var m = TEXT.matcher(json);
+    var sb = new StringBuilder();
+    while (m.find()) {
+      sb.append(m.group(1).replace("\\n", " ").replace("\\\"", "\"").replace("\\\\", "\\"));
+    }
+    return sb.length() > 0 ? sb.toString().trim() : json;
+  }
+}
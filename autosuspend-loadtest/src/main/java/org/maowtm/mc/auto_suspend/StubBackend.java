@@ -0,0 +1,202 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for a Minecraft server in load tests. It answers server list
+ * pings, and accepts logins in offline mode with a join packet and keepalives,
+ * but has no world. Run it through the plugin's {@code local_process}
+ * controller, which then suspends it by freezing its process.
+ *
+ * A frozen process would otherwise answer again the moment it is thawed, so
+ * to stand in for a VM that takes a while to come back, it notices when it has
+ * been frozen and then refuses connections for {@code --resume-delay-secs}.
+ * {@code --start-delay-secs} does the same for a cold start.
+ */
+public class StubBackend {
+  private static final String USAGE = String.join("\n",
+      "Usage: java -cp loadtest.jar org.maowtm.mc.auto_suspend.StubBackend [options]",
+      "  --port=N                 port to listen on (default 25566)",
+      "  --start-delay-secs=X     wait X seconds before listening (default 0)",
+      "  --resume-delay-secs=X    refuse connections for X seconds after being frozen (default 5)");
+
+  private static final long TICK_MILLIS = 100;
+  /**
+   * A gap between ticks this long means the process was frozen.
+   */
+  private static final long FROZEN_NANOS = 1_000_000_000L;
+  private static final int KEEP_ALIVE_MILLIS = 10_000;
+
+  private final long resumeDelayNanos;
+  private final AtomicInteger online = new AtomicInteger();
+  // Guarded by this
+  private long lastTick = System.nanoTime();
+  private long unavailableUntil = 0;
+
+  StubBackend(long resumeDelayNanos) {
+    this.resumeDelayNanos = resumeDelayNanos;
+  }
+
+  /**
+   * Called regularly, and on every connection in case those are handled before
+   * the ticker notices.
+   *
+   * @return whether connections should be refused for now.
+   */
+  synchronized boolean tick() {
+    long now = System.nanoTime();
+    if (now - lastTick > FROZEN_NANOS) {
+      System.out.println(String.format("Thawed after %.1fs, unavailable for %.1fs", (now - lastTick) / 1e9,
+          resumeDelayNanos / 1e9));
+      unavailableUntil = now + resumeDelayNanos;
+    }
+    lastTick = now;
+    return now - unavailableUntil < 0;
+  }
+
+  void handle(Socket socket) {
+    try (var conn = new Protocol.Connection(socket)) {
+      if (tick()) {
+        return;
+      }
+      socket.setTcpNoDelay(true);
+      var handshake = conn.read();
+      if (handshake.id != Protocol.HANDSHAKE) {
+        return;
+      }
+      int protocol = Protocol.readVarInt(handshake.data);
+      Protocol.readString(handshake.data);
+      handshake.data.readUnsignedShort();
+      int next = Protocol.readVarInt(handshake.data);
+      if (next == Protocol.NEXT_STATE_STATUS) {
+        status(conn, protocol);
+      } else if (next == Protocol.NEXT_STATE_LOGIN) {
+        login(conn);
+      }
+    } catch (IOException e) {
+      // Gone.
+    }
+  }
+
+  private void status(Protocol.Connection conn, int protocol) throws IOException {
+    while (true) {
+      var p = conn.read();
+      if (p.id == Protocol.STATUS_REQUEST) {
+        var json = String.format(
+            "{\"version\":{\"name\":%s,\"protocol\":%d},\"players\":{\"max\":1000,\"online\":%d},"
+                + "\"description\":{\"text\":\"autosuspend load test stub\"}}",
+            Protocol.json(Protocol.VERSION_NAME), protocol, online.get());
+        conn.write(Protocol.STATUS_RESPONSE, out -> Protocol.writeString(out, json));
+      } else if (p.id == Protocol.PING) {
+        long payload = p.data.readLong();
+        conn.write(Protocol.PONG, out -> out.writeLong(payload));
+        return;
+      }
+    }
+  }
+
+  private void login(Protocol.Connection conn) throws IOException {
+    var start = conn.read();
+    if (start.id != Protocol.LOGIN_START) {
+      return;
+    }
+    var name = Protocol.readString(start.data);
+    var uuid = Protocol.offlineUuid(name);
+    conn.write(Protocol.LOGIN_SUCCESS, out -> {
+      Protocol.writeUuid(out, uuid);
+      Protocol.writeString(out, name);
+      Protocol.writeVarInt(out, 0);
+    });
+    conn.write(Protocol.PLAY_LOGIN, StubBackend::writeJoinGame);
+    online.incrementAndGet();
+    try {
+      conn.socket.setSoTimeout(KEEP_ALIVE_MILLIS);
+      while (true) {
+        try {
+          conn.read();
+        } catch (SocketTimeoutException e) {
+          long id = System.currentTimeMillis();
+          conn.write(Protocol.PLAY_KEEP_ALIVE, out -> out.writeLong(id));
+        }
+      }
+    } finally {
+      online.decrementAndGet();
+    }
+  }
+
+  /**
+   * The fields of the join packet, with an empty registry. The proxy only
+   * parses them, and the fake clients don't look at them at all.
+   */
+  private static void writeJoinGame(DataOutputStream out) throws IOException {
+    out.writeInt(1); // entity id
+    out.writeBoolean(false); // hardcore
+    out.writeByte(0); // game mode
+    out.writeByte(-1); // previous game mode
+    Protocol.writeVarInt(out, 1);
+    Protocol.writeString(out, "minecraft:overworld");
+    // Empty compound named "".
+    out.writeByte(10);
+    out.writeShort(0);
+    out.writeByte(0);
+    Protocol.writeString(out, "minecraft:overworld"); // dimension type
+    Protocol.writeString(out, "minecraft:overworld"); // dimension
+    out.writeLong(0); // hashed seed
+    Protocol.writeVarInt(out, 1000); // max players
+    Protocol.writeVarInt(out, 2); // view distance
+    Protocol.writeVarInt(out, 2); // simulation distance
+    out.writeBoolean(false); // reduced debug info
+    out.writeBoolean(true); // respawn screen
+    out.writeBoolean(false); // debug world
+    out.writeBoolean(true); // flat world
+    out.writeBoolean(false); // no death location
+    Protocol.writeVarInt(out, 0); // portal cooldown
+  }
+
+  public static void main(String[] args) throws Exception {
+    var opts = new HashMap<String, String>();
+    for (var arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      opts.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    int port = Integer.parseInt(opts.getOrDefault("port", "25566"));
+    long startDelay = (long) (Double.parseDouble(opts.getOrDefault("start-delay-secs", "0")) * 1000);
+    long resumeDelay = (long) (Double.parseDouble(opts.getOrDefault("resume-delay-secs", "5")) * 1e9);
+
+    Thread.sleep(startDelay);
+    var stub = new StubBackend(resumeDelay);
+    var ticker = new Thread(() -> {
+      while (true) {
+        stub.tick();
+        try {
+          Thread.sleep(TICK_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    ticker.setDaemon(true);
+    ticker.start();
+    var pool = Executors.newCachedThreadPool();
+    try (var server = new ServerSocket()) {
+      server.setReuseAddress(true);
+      server.bind(new InetSocketAddress(port), 1024);
+      System.out.println(String.format("Stub backend listening on port %d", port));
+      while (true) {
+        var socket = server.accept();
+        pool.execute(() -> stub.handle(socket));
+      }
+    }
+  }
+}
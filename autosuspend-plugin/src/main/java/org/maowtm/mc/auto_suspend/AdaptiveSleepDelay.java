@@ -0,0 +1,182 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Picks how long to wait after the last player leaves before suspending, based
+ * on how long it usually takes for someone to come back.
+ *
+ * Waiting for a delay D after the server empties costs min(gap, D) of running
+ * time, where gap is the time until the next join. If nobody is back by then,
+ * the server suspends and resumes again, which costs the time spent suspending
+ * and resuming, plus the time the next player has to wait for the resume,
+ * weighted by how much we care about that. The delay chosen is the one
+ * minimizing this cost averaged over recently observed gaps, using measured
+ * resume and suspend times.
+ */
+public class AdaptiveSleepDelay {
+  private static final Duration DEFAULT_RESUME_TIME = Duration.ofSeconds(10);
+  private static final Duration DEFAULT_SUSPEND_TIME = Duration.ofSeconds(15);
+  /**
+   * Weight of the newest sample in the resume and suspend time averages.
+   */
+  private static final double DURATION_SMOOTHING = 0.2;
+
+  private final boolean enabled;
+  private final Duration floor, ceiling;
+  private final double latencyWeight;
+  private final int history, minSamples;
+
+  // Guarded by this
+  private final ArrayDeque<Duration> gaps = new ArrayDeque<>();
+  private Instant emptySince = null;
+  private double resumeSecs = DEFAULT_RESUME_TIME.toMillis() / 1000.0;
+  private double suspendSecs = DEFAULT_SUSPEND_TIME.toMillis() / 1000.0;
+  private boolean measuredResume = false, measuredSuspend = false;
+  private volatile Duration delay;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_ENABLED, false);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_MAX_SECS, 1800);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_LATENCY_WEIGHT, 20.0);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_HISTORY, 200);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_MIN_SAMPLES, 10);
+    return cfg;
+  }
+
+  /**
+   * @param floor the fixed sleep delay, which is also used until there is
+   *              enough history.
+   */
+  public AdaptiveSleepDelay(Configuration config, Duration floor) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.enabled = config.getBoolean(ConfigKeys.ADAPTIVE_SLEEP_ENABLED, false);
+    this.floor = floor;
+    var ceiling = Duration.ofSeconds(config.getInt(ConfigKeys.ADAPTIVE_SLEEP_MAX_SECS, 1800));
+    this.ceiling = ceiling.compareTo(floor) > 0 ? ceiling : floor;
+    this.latencyWeight = config.getDouble(ConfigKeys.ADAPTIVE_SLEEP_LATENCY_WEIGHT, 20.0);
+    this.history = Math.max(1, config.getInt(ConfigKeys.ADAPTIVE_SLEEP_HISTORY, 200));
+    this.minSamples = config.getInt(ConfigKeys.ADAPTIVE_SLEEP_MIN_SAMPLES, 10);
+    this.delay = floor;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The sleep delay to use right now.
+   */
+  public Duration getDelay() {
+    return enabled ? delay : floor;
+  }
+
+  /**
+   * The last player left the server.
+   */
+  public synchronized void serverEmptied(Instant now) {
+    emptySince = now;
+  }
+
+  /**
+   * Someone tried to join the server.
+   *
+   * @return whether the chosen delay changed.
+   */
+  public synchronized boolean joinAttempted(Instant now) {
+    if (!enabled || emptySince == null) {
+      return false;
+    }
+    gaps.addLast(Duration.between(emptySince, now));
+    emptySince = null;
+    while (gaps.size() > history) {
+      gaps.pollFirst();
+    }
+    return recompute();
+  }
+
+  public synchronized void resumeTook(Duration d) {
+    resumeSecs = smooth(resumeSecs, d, measuredResume);
+    measuredResume = true;
+  }
+
+  public synchronized void suspendTook(Duration d) {
+    suspendSecs = smooth(suspendSecs, d, measuredSuspend);
+    measuredSuspend = true;
+  }
+
+  private static double smooth(double avg, Duration sample, boolean hasHistory) {
+    double secs = sample.toMillis() / 1000.0;
+    return hasHistory ? avg * (1 - DURATION_SMOOTHING) + secs * DURATION_SMOOTHING : secs;
+  }
+
+  /**
+   * Must hold this.
+   */
+  private boolean recompute() {
+    var old = delay;
+    if (gaps.size() < minSamples) {
+      delay = floor;
+      return !delay.equals(old);
+    }
+    var sorted = new double[gaps.size()];
+    int i = 0;
+    for (var g : gaps) {
+      sorted[i++] = g.toMillis() / 1000.0;
+    }
+    Arrays.sort(sorted);
+    double floorSecs = floor.toMillis() / 1000.0;
+    double ceilingSecs = ceiling.toMillis() / 1000.0;
+    double cycleCost = resumeSecs + suspendSecs + latencyWeight * resumeSecs;
+    double best = floorSecs;
+    double bestCost = cost(sorted, floorSecs, cycleCost);
+    // The cost only drops right at a gap (once that gap is covered) and grows
+    // in between, so the best delay is the floor, the ceiling or one of the
+    // gaps.
+    for (double candidate : sorted) {
+      if (candidate <= floorSecs) {
+        continue;
+      }
+      if (candidate >= ceilingSecs) {
+        break;
+      }
+      double c = cost(sorted, candidate, cycleCost);
+      if (c < bestCost) {
+        best = candidate;
+        bestCost = c;
+      }
+    }
+    if (cost(sorted, ceilingSecs, cycleCost) < bestCost) {
+      best = ceilingSecs;
+    }
+    delay = Duration.ofMillis((long) Math.ceil(best * 1000));
+    return !delay.equals(old);
+  }
+
+  /**
+   * Average cost, in seconds of running time, of waiting the given delay.
+   */
+  private static double cost(double[] gaps, double delay, double cycleCost) {
+    double total = 0;
+    for (double g : gaps) {
+      total += g <= delay ? g : delay + cycleCost;
+    }
+    return total / gaps.length;
+  }
+
+  /**
+   * For logging.
+   */
+  public synchronized String describe() {
+    return String.format("%d s from %d gaps (resume %.1f s, suspend %.1f s)", getDelay().toSeconds(), gaps.size(),
+        resumeSecs, suspendSecs);
+  }
+}
@@ -0,0 +1,147 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.IntConsumer;
+
+import net.md_5.bungee.api.ServerConnectRequest;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.ServerConnectEvent.Reason;
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * The queue of players waiting for a server, and the pacing of sending them
+ * over once it is up. A freshly resumed server has to load every player's spawn
+ * chunks with cold caches, so players are connected in small batches, each
+ * waiting for the previous one to finish connecting (or for a timeout).
+ *
+ * Not thread-safe: all methods must be called with the owning
+ * {@link ServerStateManager}'s lock held.
+ */
+public class AdmissionController {
+  /**
+   * Give up waiting for a batch to finish connecting after this long.
+   */
+  private static final Duration MAX_BATCH_WAIT = Duration.ofSeconds(15);
+
+  private final int batchSize;
+  private final Duration interval;
+  /**
+   * Keyed by player UUID, so that a player who reconnects while queued keeps
+   * their place instead of being queued twice.
+   */
+  private final LinkedHashMap<UUID, ProxiedPlayer> queue = new LinkedHashMap<>();
+  private int inFlight = 0;
+  /**
+   * Bumped with every batch, so that late callbacks from an earlier batch
+   * don't count towards the current one.
+   */
+  private int batch = 0;
+  private Instant lastBatchAt = Instant.MIN;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.ADMISSION_BATCH_SIZE, 3);
+    cfg.set(ConfigKeys.ADMISSION_INTERVAL_MS, 1000);
+    return cfg;
+  }
+
+  public AdmissionController(Configuration config) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.batchSize = config.getInt(ConfigKeys.ADMISSION_BATCH_SIZE, 3);
+    this.interval = Duration.ofMillis(config.getInt(ConfigKeys.ADMISSION_INTERVAL_MS, 1000));
+  }
+
+  /**
+   * @return whether the player was not already queued.
+   */
+  public boolean enqueue(ProxiedPlayer p) {
+    return queue.put(p.getUniqueId(), p) == null;
+  }
+
+  /**
+   * @return whether the player was queued.
+   */
+  public boolean remove(ProxiedPlayer p) {
+    return queue.remove(p.getUniqueId()) != null;
+  }
+
+  public boolean isEmpty() {
+    return queue.isEmpty();
+  }
+
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return the queued players, in order.
+   */
+  public List<ProxiedPlayer> players() {
+    return new ArrayList<>(queue.values());
+  }
+
+  public void clear() {
+    queue.clear();
+  }
+
+  /**
+   * Sends the next batch of players to the target, if the previous batch is
+   * done and the interval has passed.
+   *
+   * @param onConnectDone called (without any lock held) with the batch number
+   *                      each time a connection attempt finishes.
+   * @return when to call this again, or null if the queue is now empty.
+   */
+  public Instant admit(ServerInfo target, Instant now, IntConsumer onConnectDone) {
+    if (queue.isEmpty()) {
+      return null;
+    }
+    var earliest = lastBatchAt.plus(interval);
+    if (inFlight > 0 && now.isBefore(lastBatchAt.plus(MAX_BATCH_WAIT))) {
+      // Called again when the batch finishes.
+      return lastBatchAt.plus(MAX_BATCH_WAIT);
+    }
+    if (now.isBefore(earliest)) {
+      return earliest;
+    }
+    inFlight = 0;
+    lastBatchAt = now;
+    final int thisBatch = ++batch;
+    var it = queue.values().iterator();
+    int sent = 0;
+    while (it.hasNext() && (batchSize <= 0 || sent < batchSize)) {
+      var p = it.next();
+      it.remove();
+      if (!p.isConnected()) {
+        // Gave up waiting.
+        continue;
+      }
+      inFlight++;
+      sent++;
+      p.connect(ServerConnectRequest.builder()
+          .target(target)
+          .reason(Reason.PLUGIN)
+          .callback((result, err) -> onConnectDone.accept(thisBatch))
+          .build());
+    }
+    return queue.isEmpty() ? null : lastBatchAt.plus(interval);
+  }
+
+  /**
+   * Must be called from the onConnectDone callback of {@link #admit}, with the
+   * lock held.
+   */
+  public void connectDone(int batch) {
+    if (batch == this.batch && inFlight > 0) {
+      inFlight--;
+    }
+  }
+}
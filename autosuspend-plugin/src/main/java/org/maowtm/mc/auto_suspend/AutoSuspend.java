@@ -2,16 +2,59 @@ package org.maowtm.mc.auto_suspend;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.plugin.PluginDescription;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 
 public class AutoSuspend extends Plugin {
+  /**
+   * How long shutting down waits for webhook messages still queued to go out.
+   */
+  private static final Duration WEBHOOK_DRAIN_TIMEOUT = Duration.ofSeconds(5);
+
   private File configFile;
   private Configuration config;
-  private ServerStateManager ssm;
+  private final Map<String, ServerStateManager> managers = new LinkedHashMap<>();
+  private final Map<String, ServerPool> pools = new HashMap<>();
+  private ScheduledExecutorService scheduler;
+  /**
+   * Keyed by URL and JSON key, so that servers posting to the same webhook
+   * share one queue and rate limit.
+   */
+  private final Map<String, WebhookDispatcher> webhooks = new HashMap<>();
+  private final Metrics metrics = new Metrics();
+  private MetricsServer metricsServer = null;
+  private PingLimiter pingLimiter;
+  private Journal journal;
+
+  public AutoSuspend() {
+  }
+
+  /**
+   * For running outside of BungeeCord, e.g. in benchmarks.
+   */
+  protected AutoSuspend(ProxyServer proxy, PluginDescription description) {
+    super(proxy, description);
+  }
 
   @Override
   public void onEnable() {
@@ -35,14 +78,160 @@ public class AutoSuspend extends Plugin {
       throw new RuntimeException(e);
     }
     trySaveConfig();
-    ssm = new ServerStateManager(this, config.getString(ConfigKeys.SERVER),
-        new GCEController(config.getSection(ConfigKeys.GOOGLE_COMPUTE_ENGINE), getLogger()));
-    getProxy().getScheduler().runAsync(this, ssm);
+    startManagers(config);
     getProxy().getPluginManager().registerListener(this, new Events(this));
     getProxy().getPluginManager().registerCommand(this, new KeepAliveCommand(this));
   }
 
-  private Configuration defaultConfig() {
+  /**
+   * Creates and starts a manager for every configured server.
+   */
+  void startManagers(Configuration config) {
+    this.config = config;
+    scheduler = createScheduler(config);
+    pingLimiter = new PingLimiter(config.getSection(ConfigKeys.PING_LIMIT), metrics);
+    journal = new Journal(config.getSection(ConfigKeys.JOURNAL), getDataFolder(), getClock(), scheduler, metrics,
+        getLogger());
+    if (config.contains(ConfigKeys.SERVERS)) {
+      var servers = config.getSection(ConfigKeys.SERVERS);
+      for (var name : servers.getKeys()) {
+        addServer(name, new ServerConfig(servers.getSection(name), config));
+      }
+    } else {
+      addServer(config.getString(ConfigKeys.SERVER), new ServerConfig(null, config));
+    }
+    if (config.contains(ConfigKeys.POOLS)) {
+      var poolsConfig = config.getSection(ConfigKeys.POOLS);
+      for (var name : poolsConfig.getKeys()) {
+        addPool(name, poolsConfig.getSection(name));
+      }
+    }
+    for (var ssm : managers.values()) {
+      ssm.start(scheduler);
+    }
+    metrics.gauge("autosuspend_webhook_queue_depth", "Webhook messages waiting to be sent.", "",
+        this::webhookQueueDepth);
+    var metricsConfig = config.getSection(ConfigKeys.METRICS);
+    if (metricsConfig.getBoolean(ConfigKeys.METRICS_ENABLED, false)) {
+      try {
+        metricsServer = new MetricsServer(metricsConfig, metrics, scheduler, getLogger());
+      } catch (IOException e) {
+        getLogger().severe(String.format("Unable to start metrics server: %s", e.toString()));
+      }
+    }
+  }
+
+  private void addServer(String name, ServerConfig serverConfig) {
+    if (getProxy().getServerInfo(name) == null) {
+      getLogger().severe(String.format("Server %s is not defined in the BungeeCord config, ignoring.", name));
+      return;
+    }
+    var controller = new InstrumentedController(createController(name, serverConfig), metrics, journal, name);
+    managers.put(name, new ServerStateManager(this, name, serverConfig, controller));
+  }
+
+  private void addPool(String name, Configuration poolConfig) {
+    if (getProxy().getServerInfo(name) == null) {
+      getLogger().severe(String.format("Pool %s is not defined as a server in the BungeeCord config, ignoring.",
+          name));
+      return;
+    }
+    if (managers.containsKey(name)) {
+      getLogger().severe(String.format("Pool %s is also configured as a server, ignoring.", name));
+      return;
+    }
+    var members = new ArrayList<ServerStateManager>();
+    for (var member : poolConfig.getStringList(ConfigKeys.POOL_MEMBERS)) {
+      var ssm = managers.get(member);
+      if (ssm == null) {
+        getLogger().severe(String.format("Pool member %s of %s is not a managed server, ignoring.", member, name));
+      } else if (ssm.getPool() != null) {
+        getLogger().severe(String.format("Server %s is already in pool %s, ignoring.", member,
+            ssm.getPool().getName()));
+      } else {
+        members.add(ssm);
+      }
+    }
+    if (members.isEmpty()) {
+      getLogger().severe(String.format("Pool %s has no members, ignoring.", name));
+      return;
+    }
+    var pool = new ServerPool(name, poolConfig, members, metrics, getLogger());
+    for (var ssm : members) {
+      ssm.setPool(pool);
+    }
+    pools.put(name, pool);
+  }
+
+  /**
+   * One small pool drives every server's state machine, instead of a thread per
+   * server. Overridden by the simulator to run on virtual time.
+   */
+  ScheduledExecutorService createScheduler(Configuration config) {
+    final var threadCounter = new AtomicInteger();
+    return new ScheduledThreadPoolExecutor(Math.max(1, config.getInt(ConfigKeys.SCHEDULER_THREADS)), r -> {
+      var t = new Thread(r, "AutoSuspend-" + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * The clock all state managers go by.
+   */
+  Clock getClock() {
+    return Clock.systemDefaultZone();
+  }
+
+  /**
+   * Overridden by benchmarks to run without a cloud API.
+   */
+  ServerController createController(String name, ServerConfig serverConfig) {
+    var type = serverConfig.getString(ConfigKeys.CONTROLLER);
+    switch (type) {
+      case "gce":
+        return new GCEController(serverConfig.getSection(ConfigKeys.GOOGLE_COMPUTE_ENGINE), getLogger());
+      case "local_process":
+        return new LocalProcessController(serverConfig.getSection(ConfigKeys.LOCAL_PROCESS), scheduler, getLogger());
+      case "criu":
+        return new CriuController(serverConfig.getSection(ConfigKeys.CRIU), getDataFolder(), metrics, name,
+            getLogger());
+      default:
+        throw new IllegalArgumentException(String.format("Unknown controller %s for server %s", type, name));
+    }
+  }
+
+  /**
+   * @return the dispatcher for the given webhook config section, shared with
+   *         any other server using the same webhook.
+   */
+  public synchronized WebhookDispatcher getWebhookDispatcher(Configuration webhookConfig) {
+    var key = webhookConfig.getString(ConfigKeys.WEBHOOK_URL) + " "
+        + webhookConfig.getString(ConfigKeys.WEBHOOK_JSON_KEY, "content");
+    return webhooks.computeIfAbsent(key, k -> new WebhookDispatcher(webhookConfig, scheduler, getLogger()));
+  }
+
+  private synchronized double webhookQueueDepth() {
+    int depth = 0;
+    for (var w : webhooks.values()) {
+      depth += w.getQueueDepth();
+    }
+    return depth;
+  }
+
+  public PingLimiter getPingLimiter() {
+    return this.pingLimiter;
+  }
+
+  public Journal getJournal() {
+    return this.journal;
+  }
+
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
+  Configuration defaultConfig() {
     var d = new Configuration();
     String firstServerName = "lobby";
     for (var server : this.getProxy().getServers().keySet()) {
@@ -51,8 +240,26 @@ public class AutoSuspend extends Plugin {
     }
     d.set(ConfigKeys.SERVER, firstServerName);
     d.set(ConfigKeys.SLEEP_DELAY_SECS, 30);
+    d.set(ConfigKeys.ADAPTIVE_SLEEP, AdaptiveSleepDelay.getDefaultConfig());
+    d.set(ConfigKeys.HIBERNATE, Hibernation.getDefaultConfig());
+    d.set(ConfigKeys.CONTROLLER, "gce");
     d.set(ConfigKeys.GOOGLE_COMPUTE_ENGINE, GCEController.getDefaultConfig());
+    d.set(ConfigKeys.LOCAL_PROCESS, LocalProcessController.getDefaultConfig());
+    d.set(ConfigKeys.CRIU, CriuController.getDefaultConfig());
     d.set(ConfigKeys.STATUS_CHECK_INTERVAL_SECS, 30);
+    d.set(ConfigKeys.STATUS_CHECK_MAX_INTERVAL_SECS, 300);
+    d.set(ConfigKeys.SCHEDULER_THREADS, 4);
+    d.set(ConfigKeys.READINESS_TIMEOUT_SECS, 120);
+    d.set(ConfigKeys.HOLDING_SERVER, "");
+    d.set(ConfigKeys.RCON, Rcon.getDefaultConfig());
+    d.set(ConfigKeys.WARM_UP, WarmUp.getDefaultConfig());
+    d.set(ConfigKeys.PRE_SUSPEND, PreSuspend.getDefaultConfig());
+    d.set(ConfigKeys.ADMISSION, AdmissionController.getDefaultConfig());
+    d.set(ConfigKeys.SPECULATIVE, SpeculativeResume.getDefaultConfig());
+    d.set(ConfigKeys.PREDICTOR, JoinPredictor.getDefaultConfig());
+    d.set(ConfigKeys.PING_LIMIT, PingLimiter.getDefaultConfig());
+    d.set(ConfigKeys.JOURNAL, Journal.getDefaultConfig());
+    d.set(ConfigKeys.METRICS, MetricsServer.getDefaultConfig());
     return d;
   }
 
@@ -70,8 +277,43 @@ public class AutoSuspend extends Plugin {
   public void onDisable() {
     // trySaveConfig();
     // No need to save - nothing changes dynamically here.
-    if (this.ssm != null) {
-      this.ssm.stop();
+    stopManagers();
+  }
+
+  void stopManagers() {
+    for (var ssm : managers.values()) {
+      ssm.stop();
+    }
+    drainWebhooks();
+    if (this.metricsServer != null) {
+      this.metricsServer.stop();
+    }
+    if (this.journal != null) {
+      this.journal.close();
+    }
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Sends webhook messages still queued before the scheduler they need goes
+   * away.
+   */
+  private void drainWebhooks() {
+    CompletableFuture<?>[] drained;
+    synchronized (this) {
+      drained = webhooks.values().stream().map(WebhookDispatcher::drain).toArray(CompletableFuture[]::new);
+    }
+    try {
+      CompletableFuture.allOf(drained).get(WEBHOOK_DRAIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      getLogger().warning(String.format("Webhook messages still unsent after %d ms, giving up",
+          WEBHOOK_DRAIN_TIMEOUT.toMillis()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // drain() never fails.
     }
   }
 
@@ -79,7 +321,22 @@ public class AutoSuspend extends Plugin {
     return this.config;
   }
 
-  public ServerStateManager getStateManager() {
-    return this.ssm;
+  /**
+   * @return the manager for the given server, or null if that server is not
+   *         managed by this plugin.
+   */
+  public ServerStateManager getStateManager(String server) {
+    return this.managers.get(server);
+  }
+
+  /**
+   * @return the pool by the given name, or null if there isn't one.
+   */
+  public ServerPool getPool(String name) {
+    return this.pools.get(name);
+  }
+
+  public Collection<ServerStateManager> getStateManagers() {
+    return Collections.unmodifiableCollection(this.managers.values());
   }
 }
@@ -2,16 +2,109 @@ package org.maowtm.mc.auto_suspend;
 
 public final class ConfigKeys {
   public static String SERVER = "server";
+  public static String SERVERS = "servers";
+  public static String POOLS = "pools";
+  public static String SCHEDULER_THREADS = "scheduler_threads";
   public static String SLEEP_DELAY_SECS = "sleep_delay_secs";
+  public static String CONTROLLER = "controller";
   public static String GOOGLE_COMPUTE_ENGINE = "gce";
+  public static String LOCAL_PROCESS = "local_process";
+  public static String CRIU = "criu";
   public static String STATUS_CHECK_INTERVAL_SECS = "status_check_interval_secs";
+  public static String STATUS_CHECK_MAX_INTERVAL_SECS = "status_check_max_interval_secs";
+  public static String READINESS_TIMEOUT_SECS = "readiness_timeout_secs";
+  public static String HOLDING_SERVER = "holding_server";
+  public static String HIBERNATE = "hibernate";
+  public static String RCON = "rcon";
+  public static String WARM_UP = "warm_up";
+  public static String PRE_SUSPEND = "pre_suspend";
 
   public static String GCE_PROJECT = "project";
   public static String GCE_ZONE = "zone";
   public static String GCE_INSTANCE = "instance";
+  public static String GCE_STATUS_CACHE_TTL_MS = "status_cache_ttl_ms";
+
+  public static String POOL_MEMBERS = "members";
+  public static String POOL_PLAYERS_PER_INSTANCE = "players_per_instance";
+  public static String POOL_SCALE_UP_KEEPALIVE_SECS = "scale_up_keepalive_secs";
+
+  public static String LOCAL_COMMAND = "command";
+  public static String LOCAL_WORKING_DIR = "working_dir";
+  public static String LOCAL_PID_FILE = "pid_file";
+  public static String LOCAL_LOG_FILE = "log_file";
+  public static String LOCAL_CGROUP = "cgroup";
+  public static String LOCAL_RECLAIM = "reclaim";
+  public static String LOCAL_FREEZE_TIMEOUT_MS = "freeze_timeout_ms";
+
+  public static String CRIU_BINARY = "binary";
+  public static String CRIU_IMAGES_DIR = "images_dir";
+  public static String CRIU_PRE_DUMP_PASSES = "pre_dump_passes";
+  public static String CRIU_COMPRESS = "compress";
+  public static String CRIU_ZSTD_BINARY = "zstd_binary";
+  public static String CRIU_DUMP_ARGS = "dump_args";
+  public static String CRIU_RESTORE_ARGS = "restore_args";
+
+  public static String HIBERNATE_STOP_AFTER_HOURS = "stop_after_hours";
+  public static String HIBERNATE_MAX_START_SECS = "max_start_secs";
+  public static String HIBERNATE_EXPECTED_START_SECS = "expected_start_secs";
+
+  public static String RCON_HOST = "host";
+  public static String RCON_PORT = "port";
+  public static String RCON_PASSWORD = "password";
+
+  public static String WARM_UP_COMMANDS = "commands";
+  public static String WARM_UP_TIMEOUT_SECS = "timeout_secs";
+
+  public static String PRE_SUSPEND_ENABLED = "enabled";
+  public static String PRE_SUSPEND_COMMANDS = "commands";
+  public static String PRE_SUSPEND_TIMEOUT_SECS = "timeout_secs";
+  public static String PRE_SUSPEND_HOLDOUT_EVERY = "holdout_every";
+
+  public static String SPECULATIVE = "speculative_resume";
+  public static String SPECULATIVE_ENABLED = "enabled";
+  public static String SPECULATIVE_KEEPALIVE_SECS = "keepalive_secs";
+  public static String SPECULATIVE_MAX_PER_HOUR = "max_per_hour";
+  public static String SPECULATIVE_DEDUPE_SECS = "dedupe_secs";
+  public static String SPECULATIVE_KNOWN_PLAYERS_ONLY = "known_players_only";
+
+  public static String PREDICTOR = "join_predictor";
+  public static String PREDICTOR_ENABLED = "enabled";
+  public static String PREDICTOR_SLOT_MINUTES = "slot_minutes";
+  public static String PREDICTOR_LEAD_SECS = "lead_secs";
+  public static String PREDICTOR_THRESHOLD = "threshold";
+  public static String PREDICTOR_DECAY = "decay";
+  public static String PREDICTOR_KEEPALIVE_SECS = "keepalive_secs";
+
+  public static String ADAPTIVE_SLEEP = "adaptive_sleep";
+  public static String ADAPTIVE_SLEEP_ENABLED = "enabled";
+  public static String ADAPTIVE_SLEEP_MAX_SECS = "max_secs";
+  public static String ADAPTIVE_SLEEP_LATENCY_WEIGHT = "latency_weight";
+  public static String ADAPTIVE_SLEEP_HISTORY = "history";
+  public static String ADAPTIVE_SLEEP_MIN_SAMPLES = "min_samples";
+
+  public static String ADMISSION = "admission";
+  public static String ADMISSION_BATCH_SIZE = "batch_size";
+  public static String ADMISSION_INTERVAL_MS = "interval_ms";
 
   public static String WEBHOOK = "webhook";
   public static String WEBHOOK_URL = "url";
   public static String WEBHOOK_JSON_KEY = "json_key";
   public static String WEBHOOK_INCLUDE_USER = "include_user";
+  public static String WEBHOOK_COALESCE_MS = "coalesce_ms";
+
+  public static String PING_LIMIT = "ping_limit";
+  public static String PING_LIMIT_ENABLED = "enabled";
+  public static String PING_LIMIT_PER_MINUTE = "per_minute";
+  public static String PING_LIMIT_BURST = "burst";
+  public static String PING_LIMIT_DROP = "drop";
+
+  public static String JOURNAL = "journal";
+  public static String JOURNAL_ENABLED = "enabled";
+  public static String JOURNAL_SEGMENT_KB = "segment_kb";
+  public static String JOURNAL_MAX_SEGMENTS = "max_segments";
+
+  public static String METRICS = "metrics";
+  public static String METRICS_ENABLED = "enabled";
+  public static String METRICS_BIND = "bind";
+  public static String METRICS_PORT = "port";
 }
@@ -0,0 +1,470 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Runs the backend as a local process, and suspends it by checkpointing it to
+ * disk with CRIU, which also ends the process, so that it holds no memory at
+ * all while suspended. Resuming restores it from the checkpoint with its JIT
+ * compiled code and loaded worlds, which is much faster than starting over.
+ *
+ * Before the final dump, which stops the server for as long as it takes, a few
+ * incremental pre-dumps copy most of its memory while it keeps running, so
+ * that the final dump only has to write what changed since. Memory pages can
+ * be compressed with zstd once dumped.
+ *
+ * CRIU has to run as root or with CAP_CHECKPOINT_RESTORE. The server is
+ * started in its own session, with no terminal and nothing connecting it to
+ * the proxy, so that it can be dumped on its own.
+ */
+public class CriuController implements ServerController {
+  private static final String DUMP_DIR = "dump";
+  private static final String PRE_DUMP_DIR = "pre";
+  private static final String PID_FILE = "pid";
+  private static final String COMPRESSED_SUFFIX = ".zst";
+  /**
+   * How long closing waits for a restore to finish, and for anything killed to
+   * exit.
+   */
+  private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+  private final String criu;
+  private final String zstd;
+  private final List<String> command;
+  private final File workingDir;
+  private final File logFile;
+  private final Path images;
+  private final int preDumpPasses;
+  private final boolean compress;
+  private final List<String> dumpArgs, restoreArgs;
+  private final Logger logger;
+  private final Metrics.Histogram dumpPause, restoreTime;
+  private final AtomicLong imageBytes = new AtomicLong();
+  // Guarded by this
+  private ProcessHandle process = null;
+  /**
+   * The criu or zstd command running, if any.
+   */
+  private Process running = null;
+  /**
+   * Whether the command running is part of a restore.
+   */
+  private boolean restoring = false;
+  /**
+   * Set while the images on disk are incomplete, from the start of a suspend
+   * until the final dump has finished.
+   */
+  private boolean dumping = false;
+  private boolean closed = false;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.CRIU_BINARY, "criu");
+    cfg.set(ConfigKeys.LOCAL_COMMAND, List.of("java", "-XX:-UsePerfData", "-Xmx4G", "-jar", "server.jar", "nogui"));
+    cfg.set(ConfigKeys.LOCAL_WORKING_DIR, "");
+    cfg.set(ConfigKeys.LOCAL_LOG_FILE, "");
+    cfg.set(ConfigKeys.CRIU_IMAGES_DIR, "criu-images");
+    cfg.set(ConfigKeys.CRIU_PRE_DUMP_PASSES, 1);
+    cfg.set(ConfigKeys.CRIU_COMPRESS, false);
+    cfg.set(ConfigKeys.CRIU_ZSTD_BINARY, "zstd");
+    cfg.set(ConfigKeys.CRIU_DUMP_ARGS, List.of("--tcp-established", "--file-locks"));
+    cfg.set(ConfigKeys.CRIU_RESTORE_ARGS, List.of("--tcp-close", "--file-locks"));
+    return cfg;
+  }
+
+  /**
+   * @param dataFolder where images go if images_dir is relative.
+   */
+  public CriuController(Configuration config, File dataFolder, Metrics metrics, String server, Logger logger) {
+    this.criu = config.getString(ConfigKeys.CRIU_BINARY, "criu");
+    this.command = config.getStringList(ConfigKeys.LOCAL_COMMAND);
+    var workingDir = config.getString(ConfigKeys.LOCAL_WORKING_DIR);
+    this.workingDir = workingDir == null || workingDir.isEmpty() ? null : new File(workingDir);
+    var logFile = config.getString(ConfigKeys.LOCAL_LOG_FILE);
+    this.logFile = logFile == null || logFile.isEmpty() ? null : new File(logFile);
+    this.images = dataFolder.toPath().resolve(config.getString(ConfigKeys.CRIU_IMAGES_DIR, "criu-images"))
+        .toAbsolutePath();
+    this.preDumpPasses = Math.max(0, config.getInt(ConfigKeys.CRIU_PRE_DUMP_PASSES, 1));
+    this.compress = config.getBoolean(ConfigKeys.CRIU_COMPRESS, false);
+    this.zstd = config.getString(ConfigKeys.CRIU_ZSTD_BINARY, "zstd");
+    this.dumpArgs = config.getStringList(ConfigKeys.CRIU_DUMP_ARGS);
+    this.restoreArgs = config.getStringList(ConfigKeys.CRIU_RESTORE_ARGS);
+    this.logger = logger;
+
+    this.dumpPause = metrics.histogram("autosuspend_criu_dump_pause_seconds",
+        "Time the server was stopped for the final checkpoint dump.", Metrics.labels("server", server));
+    this.restoreTime = metrics.histogram("autosuspend_criu_restore_seconds",
+        "Time taken to restore the server from its checkpoint, including decompression.",
+        Metrics.labels("server", server));
+    metrics.gauge("autosuspend_criu_image_bytes", "Size of the last checkpoint on disk.",
+        Metrics.labels("server", server), () -> imageBytes.get());
+
+    try {
+      Files.createDirectories(images);
+      this.process = PidFile.load(images.resolve(PID_FILE), logger);
+      if (hasCheckpoint()) {
+        imageBytes.set(imageSize());
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to read state from %s: %s", images, e));
+    }
+  }
+
+  private boolean hasCheckpoint() {
+    return Files.exists(images.resolve(DUMP_DIR).resolve("inventory.img"));
+  }
+
+  /**
+   * Must hold this. Null if the process isn't running.
+   */
+  private ProcessHandle aliveProcess() {
+    if (process != null && !process.isAlive()) {
+      process = null;
+    }
+    return process;
+  }
+
+  /**
+   * Must hold this.
+   */
+  private void setProcess(ProcessHandle p) throws IOException {
+    process = p;
+    var pidFile = images.resolve(PID_FILE);
+    if (p == null) {
+      Files.deleteIfExists(pidFile);
+    } else {
+      PidFile.save(pidFile, p);
+    }
+  }
+
+  @Override
+  public synchronized CompletableFuture<State> checkState() {
+    if (aliveProcess() != null) {
+      return CompletableFuture.completedFuture(State.RUNNING);
+    }
+    return CompletableFuture.completedFuture(hasCheckpoint() || !command.isEmpty() ? State.SUSPENDED
+        : State.NOT_READY);
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> resume() {
+    if (aliveProcess() != null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    try {
+      if (!hasCheckpoint()) {
+        launch();
+        return CompletableFuture.completedFuture(null);
+      }
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    long start = System.nanoTime();
+    var dumpDir = images.resolve(DUMP_DIR);
+    var restoredPid = images.resolve("restored.pid");
+    var args = new ArrayList<>(List.of(criu, "restore", "-D", dumpDir.toString(), "-o", "restore.log",
+        "--restore-detached", "--pidfile", restoredPid.toString()));
+    args.addAll(restoreArgs);
+    restoring = true;
+    return decompress().thenCompose(v -> run("criu restore", args))
+        .whenComplete((v, err) -> {
+          synchronized (this) {
+            restoring = false;
+          }
+        })
+        .thenRun(() -> {
+          long pid;
+          synchronized (this) {
+            try {
+              pid = Long.parseLong(Files.readString(restoredPid).trim());
+              setProcess(ProcessHandle.of(pid).orElseThrow(
+                  () -> new IllegalStateException(String.format("Restored process %d is gone", pid))));
+              // Restoring the same checkpoint again later would roll the
+              // world back.
+              deleteImages();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          restoreTime.observeSince(start);
+          logger.info(String.format("Restored server process %d from checkpoint in %d ms", pid,
+              (System.nanoTime() - start) / 1_000_000));
+        });
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> suspend() {
+    var p = aliveProcess();
+    if (p == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    try {
+      deleteImages();
+      Files.createDirectories(images.resolve(PRE_DUMP_DIR));
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    dumping = true;
+    long start = System.nanoTime();
+    var pid = Long.toString(p.pid());
+    CompletableFuture<Void> f = CompletableFuture.completedFuture(null);
+    for (int i = 1; i <= preDumpPasses; i++) {
+      var dir = images.resolve(PRE_DUMP_DIR).resolve(Integer.toString(i));
+      var args = new ArrayList<>(List.of(criu, "pre-dump", "-t", pid, "-D", dir.toString(), "-o", "pre-dump.log",
+          "--track-mem"));
+      if (i > 1) {
+        // Relative to the images directory.
+        args.addAll(List.of("--prev-images-dir", "../" + (i - 1)));
+      }
+      f = f.thenCompose(v -> mkdir(dir)).thenCompose(v -> run("criu pre-dump", args));
+    }
+    var dumpDir = images.resolve(DUMP_DIR);
+    var args = new ArrayList<>(List.of(criu, "dump", "-t", pid, "-D", dumpDir.toString(), "-o", "dump.log"));
+    if (preDumpPasses > 0) {
+      args.addAll(List.of("--track-mem", "--prev-images-dir", "../" + PRE_DUMP_DIR + "/" + preDumpPasses));
+    }
+    args.addAll(dumpArgs);
+    var pauseStart = new AtomicLong();
+    var pause = new AtomicLong();
+    f = f.thenCompose(v -> mkdir(dumpDir)).thenCompose(v -> {
+      pauseStart.set(System.nanoTime());
+      return run("criu dump", args);
+    }).thenRun(() -> {
+      pause.set(System.nanoTime() - pauseStart.get());
+      dumpPause.observeSince(pauseStart.get());
+      synchronized (this) {
+        try {
+          // CRIU ends the process once dumped.
+          setProcess(null);
+          dumping = false;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    });
+    if (compress) {
+      f = f.thenCompose(v -> compress());
+    }
+    return f.thenRun(() -> {
+      long size;
+      try {
+        size = imageSize();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      imageBytes.set(size);
+      logger.info(String.format("Checkpointed server process %s to %s: %d MiB in %d ms, paused for %d ms", pid,
+          images, size >> 20, (System.nanoTime() - start) / 1_000_000,
+          pause.get() / 1_000_000));
+    });
+  }
+
+  /**
+   * Must hold this.
+   */
+  private void launch() throws IOException {
+    if (command.isEmpty()) {
+      throw new IOException("No checkpoint to restore, and no command is configured to start the server");
+    }
+    var args = new ArrayList<String>();
+    // Leave the proxy's session, so that CRIU doesn't need --shell-job.
+    args.add("setsid");
+    args.addAll(command);
+    var pb = new ProcessBuilder(args).redirectErrorStream(true)
+        .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+        .redirectOutput(logFile != null ? ProcessBuilder.Redirect.appendTo(logFile)
+            : ProcessBuilder.Redirect.to(new File("/dev/null")));
+    if (workingDir != null) {
+      pb.directory(workingDir);
+    }
+    var p = pb.start().toHandle();
+    setProcess(p);
+    logger.info(String.format("Started server process %d", p.pid()));
+  }
+
+  private static CompletableFuture<Void> mkdir(Path dir) {
+    try {
+      Files.createDirectories(dir);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Runs a command without waiting on it, failing if it exits with an error.
+   * Its output goes to a log next to the images.
+   */
+  private synchronized CompletableFuture<Void> run(String what, List<String> args) {
+    if (closed) {
+      return CompletableFuture.failedFuture(new IOException(String.format("Not running %s, controller is closed",
+          what)));
+    }
+    var pb = new ProcessBuilder(args).redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(images.resolve("criu-output.log").toFile()));
+    final Process started;
+    try {
+      started = pb.start();
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    running = started;
+    return started.onExit().thenAccept(proc -> {
+      synchronized (this) {
+        if (running == proc) {
+          running = null;
+        }
+      }
+      if (proc.exitValue() != 0) {
+        throw new RuntimeException(String.format("%s exited with %d, see the logs in %s", what,
+            proc.exitValue(), images));
+      }
+    });
+  }
+
+  private List<Path> imageFiles(String suffix) throws IOException {
+    try (Stream<Path> s = Files.walk(images)) {
+      return s.filter(p -> {
+        var name = p.getFileName().toString();
+        return name.startsWith("pages-") && name.endsWith(suffix);
+      }).collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Compresses memory pages, which make up nearly all of a checkpoint.
+   */
+  private CompletableFuture<Void> compress() {
+    try {
+      // Overwriting whatever an interrupted run left behind. The input is only
+      // removed once it has been compressed in full.
+      var args = new ArrayList<>(List.of(zstd, "-q", "-f", "--rm", "-T0"));
+      var files = imageFiles(".img");
+      if (files.isEmpty()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      files.forEach(p -> args.add(p.toString()));
+      return run(zstd, args);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Decompresses any compressed pages, whether or not compression is on now,
+   * since it may have been turned off since the checkpoint was taken.
+   */
+  private CompletableFuture<Void> decompress() {
+    try {
+      var args = new ArrayList<>(List.of(zstd, "-d", "-q", "-f", "--rm", "-T0"));
+      var files = imageFiles(".img" + COMPRESSED_SUFFIX);
+      if (files.isEmpty()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      files.forEach(p -> args.add(p.toString()));
+      return run(zstd + " -d", args);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private long imageSize() throws IOException {
+    long total = 0;
+    for (var dir : List.of(images.resolve(DUMP_DIR), images.resolve(PRE_DUMP_DIR))) {
+      if (!Files.exists(dir)) {
+        continue;
+      }
+      try (Stream<Path> s = Files.walk(dir)) {
+        for (var p : (Iterable<Path>) s.filter(Files::isRegularFile)::iterator) {
+          total += Files.size(p);
+        }
+      }
+    }
+    return total;
+  }
+
+  private void deleteImages() throws IOException {
+    for (var dir : List.of(images.resolve(DUMP_DIR), images.resolve(PRE_DUMP_DIR))) {
+      if (!Files.exists(dir)) {
+        continue;
+      }
+      try (Stream<Path> s = Files.walk(dir)) {
+        for (var p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) {
+          Files.delete(p);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops whatever criu or zstd command is running, so that it doesn't outlive
+   * the plugin. A restore is given a while to finish, as its images are kept
+   * and it can be run again. Anything else is killed. If a dump was under way,
+   * the server process keeps running and the incomplete images are deleted.
+   */
+  @Override
+  public void close() {
+    Process proc;
+    boolean waitFirst;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      proc = running;
+      waitFirst = restoring;
+    }
+    if (proc != null) {
+      try {
+        if (waitFirst) {
+          try {
+            proc.onExit().get(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+          } catch (TimeoutException e) {
+            logger.warning(String.format("criu restore still running after %d ms, killing it",
+                CLOSE_TIMEOUT.toMillis()));
+          }
+        }
+        if (proc.isAlive()) {
+          proc.destroy();
+          if (!proc.waitFor(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            proc.destroyForcibly();
+            proc.waitFor(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        logger.warning(String.format("Unable to stop %s: %s", proc.info().command().orElse("criu"), e));
+      }
+    }
+    synchronized (this) {
+      if (dumping) {
+        try {
+          deleteImages();
+          dumping = false;
+        } catch (IOException e) {
+          logger.warning(String.format("Unable to delete incomplete checkpoint in %s: %s", images, e));
+        }
+      }
+    }
+  }
+}
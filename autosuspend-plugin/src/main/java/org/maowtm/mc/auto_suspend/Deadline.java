@@ -0,0 +1,68 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single pending wakeup on a scheduler. Setting a new time replaces the
+ * previous one, so nothing runs until the latest deadline actually passes.
+ */
+public class Deadline {
+  private final ScheduledExecutorService scheduler;
+  private final Clock clock;
+  private final Runnable action;
+  private ScheduledFuture<?> future = null;
+  private Instant at = null;
+
+  public Deadline(ScheduledExecutorService scheduler, Clock clock, Runnable action) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.action = action;
+  }
+
+  /**
+   * Run the action at the given time, replacing any earlier setting. A null
+   * or {@link Instant#MAX} time means never. Setting the same time again does
+   * nothing, even if it has already passed and the action already ran -
+   * otherwise a condition that stays false past its deadline would have the
+   * action run over and over.
+   */
+  public synchronized void set(Instant at) {
+    if (at == null || at.equals(Instant.MAX)) {
+      cancel();
+      return;
+    }
+    if (at.equals(this.at) && future != null) {
+      return;
+    }
+    cancel();
+    this.at = at;
+    // Round up so that the action never observes a time before the deadline.
+    var delay = Duration.between(clock.instant(), at);
+    long delayMicros;
+    if (delay.isNegative()) {
+      // Including times too far back to count in nanoseconds, such as ones
+      // worked out from Instant.MIN.
+      delayMicros = 0;
+    } else {
+      try {
+        delayMicros = delay.toNanos() / 1000 + 1;
+      } catch (ArithmeticException e) {
+        delayMicros = Long.MAX_VALUE;
+      }
+    }
+    this.future = scheduler.schedule(action, delayMicros, TimeUnit.MICROSECONDS);
+  }
+
+  public synchronized void cancel() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+    at = null;
+  }
+}
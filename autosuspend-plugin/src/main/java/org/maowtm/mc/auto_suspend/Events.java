@@ -1,14 +1,26 @@
 package org.maowtm.mc.auto_suspend;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.maowtm.mc.auto_suspend.ServerStateManager.WebhookEvent;
 
+import net.md_5.bungee.api.AbstractReconnectHandler;
 import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.ProxyPingEvent;
 import net.md_5.bungee.api.event.ServerConnectEvent;
 import net.md_5.bungee.api.event.ServerConnectEvent.Reason;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
+import net.md_5.bungee.api.event.ServerDisconnectEvent;
+import net.md_5.bungee.api.event.ServerSwitchEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
@@ -19,65 +31,237 @@ public class Events implements Listener {
 
   private AutoSuspend plugin;
 
+  private static final BaseComponent NOT_READY_DESCRIPTION = new TextComponent(
+      new ComponentBuilder().color(ChatColor.RED).append("Server not ready :(").create());
+  /**
+   * Descriptions shown while sleeping, keyed by the description they decorate,
+   * so that pings don't build new components every time. There is normally
+   * one per listener MOTD. The cached components are shared between pings and
+   * must not be modified.
+   */
+  private final Map<BaseComponent, BaseComponent> sleepingDescriptions = new ConcurrentHashMap<>();
+  private static final int MAX_CACHED_DESCRIPTIONS = 64;
+  /**
+   * Same for stopped servers, by prefix, which includes the expected start
+   * time.
+   */
+  private final Map<String, Map<BaseComponent, BaseComponent>> stoppedDescriptions = new ConcurrentHashMap<>();
+  private static final int MAX_CACHED_PREFIXES = 16;
+
   public Events(AutoSuspend plugin) {
     this.plugin = plugin;
   }
 
-  private ServerStateManager getServerState() {
-    return this.plugin.getStateManager();
+  private ServerStateManager getServerState(ServerInfo server) {
+    if (server == null) {
+      return null;
+    }
+    return this.plugin.getStateManager(server.getName());
+  }
+
+  /**
+   * Like {@link #getServerState}, but for a pool, the member a player joining
+   * it now would be sent to.
+   */
+  private ServerStateManager getJoinTarget(ServerInfo server) {
+    if (server == null) {
+      return null;
+    }
+    var pool = this.plugin.getPool(server.getName());
+    if (pool != null) {
+      return pool.route();
+    }
+    return getServerState(server);
+  }
+
+  /**
+   * The server a pinging client would end up on if it joined now.
+   */
+  private ServerInfo getPingTarget(PendingConnection con) {
+    var forced = AbstractReconnectHandler.getForcedHost(con);
+    if (forced != null) {
+      return forced;
+    }
+    var priorities = con.getListener().getServerPriority();
+    if (priorities.isEmpty()) {
+      return null;
+    }
+    return this.plugin.getProxy().getServerInfo(priorities.get(0));
   }
 
   @EventHandler
   public void onServerConnect(ServerConnectEvent evt) {
     final var player = evt.getPlayer();
-    final var target = evt.getTarget();
-    final var serverState = getServerState();
-    if (!target.getName().equals(serverState.getTargetServer())) {
+    final var serverState = getJoinTarget(evt.getTarget());
+    if (serverState == null) {
       return;
     }
-    if (evt.getReason() != Reason.JOIN_PROXY) {
-      // Don't handle event caused by our own .connects
+    if (serverState.getPool() != null) {
+      evt.setTarget(serverState.getServerInfo());
+    }
+    final var reason = evt.getReason();
+    if (reason != Reason.JOIN_PROXY && reason != Reason.COMMAND) {
+      // Don't handle event caused by our own .connects, or by fallbacks where
+      // the player has nowhere else to go.
       return;
     }
-    serverState.updatePlayerCount(this.plugin.getProxy().getOnlineCount());
-    switch (serverState.getState()) {
+    serverState.recordJoin();
+    var snapshot = serverState.getSnapshot();
+    switch (snapshot.state) {
       case NOT_READY:
+        if (snapshot.reconciling) {
+          // Just started, and don't know yet. Probably fine in a moment.
+          holdPlayer(evt, serverState);
+          break;
+        }
         evt.setCancelled(true);
-        player.disconnect(new ComponentBuilder().color(ChatColor.RED).append("Server is not ready.").create());
+        var msg = new ComponentBuilder().color(ChatColor.RED).append("Server is not ready.").create();
+        if (reason == Reason.JOIN_PROXY) {
+          player.disconnect(msg);
+        } else {
+          player.sendMessage(msg);
+        }
         break;
       case SUSPENDED:
-        evt.setCancelled(true);
-        serverState.enqueue(player);
+      case STOPPED:
+        holdPlayer(evt, serverState);
         break;
       case RUNNING:
+        if (!snapshot.backendReady) {
+          // Just resumed, but not accepting connections yet.
+          holdPlayer(evt, serverState);
+          break;
+        }
         serverState.webhookNotify(WebhookEvent.JOINED_WHILE_RUNNING, player);
         break;
     }
   }
 
+  /**
+   * Queues the player until the server is ready. Players joining the proxy are
+   * sent to the holding server in the meantime, if there is one, so that they
+   * aren't left on the loading screen; everyone else stays where they are.
+   */
+  private void holdPlayer(ServerConnectEvent evt, ServerStateManager serverState) {
+    var holding = serverState.getHoldingServer();
+    if (holding != null && evt.getReason() == Reason.JOIN_PROXY) {
+      evt.setTarget(holding);
+    } else {
+      evt.setCancelled(true);
+    }
+    serverState.enqueue(evt.getPlayer());
+  }
+
+  @EventHandler
+  public void onServerConnected(ServerConnectedEvent evt) {
+    final var player = evt.getPlayer();
+    final var target = evt.getServer().getInfo().getName();
+    for (var ssm : this.plugin.getStateManagers()) {
+      if (ssm.getTargetServer().equals(target)) {
+        ssm.playerConnected(player);
+      } else {
+        ssm.playerDisconnected(player);
+      }
+    }
+  }
+
+  @EventHandler
+  public void onServerSwitch(ServerSwitchEvent evt) {
+    playerLeft(getServerState(evt.getFrom()), evt.getPlayer());
+  }
+
+  @EventHandler
+  public void onServerDisconnect(ServerDisconnectEvent evt) {
+    playerLeft(getServerState(evt.getTarget()), evt.getPlayer());
+  }
+
   @EventHandler
   public void onDisconnect(PlayerDisconnectEvent evt) {
-    this.getServerState().updatePlayerCount(this.plugin.getProxy().getOnlineCount() - 1);
-    this.getServerState().webhookNotify(WebhookEvent.LEFT, evt.getPlayer());
+    for (var ssm : this.plugin.getStateManagers()) {
+      ssm.dequeue(evt.getPlayer());
+      playerLeft(ssm, evt.getPlayer());
+    }
+  }
+
+  private void playerLeft(ServerStateManager ssm, ProxiedPlayer player) {
+    if (ssm == null) {
+      return;
+    }
+    // The same departure may be reported by more than one event, so only the
+    // first one to actually remove the player notifies.
+    if (ssm.playerDisconnected(player)) {
+      ssm.webhookNotify(WebhookEvent.LEFT, player);
+    }
   }
 
   @EventHandler
   public void onPing(ProxyPingEvent evt) {
+    var con = evt.getConnection();
+    var serverState = getJoinTarget(getPingTarget(con));
+    if (serverState == null) {
+      return;
+    }
+    // Pings over the limit don't get to start a resume, and are answered from
+    // cache only, if at all.
+    var limiter = this.plugin.getPingLimiter();
+    if (limiter.tryAcquire(ServerStateManager.addressOf(con.getSocketAddress()), System.nanoTime())) {
+      serverState.onPing(con.getSocketAddress());
+    } else if (limiter.dropsExcess()) {
+      con.disconnect();
+      return;
+    }
     var res = evt.getResponse();
-    switch (this.getServerState().getState()) {
+    switch (serverState.getState()) {
       case NOT_READY:
-        res.setDescriptionComponent(
-            new TextComponent(new ComponentBuilder().color(ChatColor.RED).append("Server not ready :(").create()));
+        res.setDescriptionComponent(NOT_READY_DESCRIPTION);
         res.getPlayers().setMax(0);
         break;
       case SUSPENDED:
-        var current_desc = res.getDescriptionComponent();
-        var n = new ComponentBuilder().append("(sleeping) ").append(current_desc).create();
-        res.setDescriptionComponent(new TextComponent(n));
+        res.setDescriptionComponent(sleepingDescription(res.getDescriptionComponent()));
+        break;
+      case STOPPED:
+        res.setDescriptionComponent(stoppedDescription(res.getDescriptionComponent(),
+            serverState.getExpectedWakeTime()));
         break;
       case RUNNING:
         break;
     }
     evt.setResponse(res);
   }
+
+  private BaseComponent sleepingDescription(BaseComponent description) {
+    return decorate(sleepingDescriptions, "(sleeping) ", description);
+  }
+
+  /**
+   * Tells players roughly how long they'd wait, in whole minutes, so that
+   * there are only ever a few versions of it to cache.
+   */
+  private BaseComponent stoppedDescription(BaseComponent description, Duration expected) {
+    var prefix = "(stopped) ";
+    if (expected != null) {
+      prefix = String.format("(stopped, takes about %d min to start) ", Math.max(1, (expected.toSeconds() + 30) / 60));
+    }
+    var cache = stoppedDescriptions.computeIfAbsent(prefix, k -> new ConcurrentHashMap<>());
+    if (stoppedDescriptions.size() > MAX_CACHED_PREFIXES) {
+      stoppedDescriptions.clear();
+    }
+    return decorate(cache, prefix, description);
+  }
+
+  private static BaseComponent decorate(Map<BaseComponent, BaseComponent> cache, String prefix,
+      BaseComponent description) {
+    var cached = cache.get(description);
+    if (cached != null) {
+      return cached;
+    }
+    if (cache.size() >= MAX_CACHED_DESCRIPTIONS) {
+      // Something is generating a new description every time, e.g. another
+      // plugin. Caching won't help.
+      cache.clear();
+    }
+    var n = new TextComponent(new ComponentBuilder().append(prefix).append(description).create());
+    cache.put(description, n);
+    return n;
+  }
 }
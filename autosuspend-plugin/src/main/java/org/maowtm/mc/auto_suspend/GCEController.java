@@ -1,28 +1,59 @@
 package org.maowtm.mc.auto_suspend;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import org.maowtm.mc.auto_suspend.ServerStateManager.State;
 
-import com.google.api.gax.rpc.ApiException;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.httpjson.HttpJsonCallContext;
+import com.google.api.gax.rpc.ApiCallContext;
 import com.google.cloud.compute.v1.GetInstanceRequest;
 import com.google.cloud.compute.v1.Instance;
 import com.google.cloud.compute.v1.InstancesClient;
+import com.google.cloud.compute.v1.Operation;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import net.md_5.bungee.config.Configuration;
 
 public class GCEController implements ServerController {
+  /**
+   * Only ask for what checkState needs, rather than the whole instance with its
+   * disks, metadata and network interfaces.
+   */
+  private static final ApiCallContext STATUS_CALL_CONTEXT = HttpJsonCallContext.createDefault()
+      .withExtraHeaders(Map.of("X-Goog-FieldMask", List.of("name,status")));
+  /**
+   * One client (and connection pool) for all instances, closed along with the
+   * last controller using it.
+   */
+  private static InstancesClient sharedClient = null;
+  private static int sharedClientUsers = 0;
+
   private final Configuration config;
   private final Logger logger;
-  private final InstancesClient instancesClient;
+  private final GetInstanceRequest getRequest;
+  private final Duration statusCacheTtl;
+  // Guarded by this
+  private InstancesClient client = null;
+  private boolean closed = false;
   private Instance lastInstanceData = null;
+  private Instant lastFetch = null;
+  private CompletableFuture<Instance> pendingFetch = null;
 
   public static Configuration getDefaultConfig() {
     var cfg = new Configuration();
     cfg.set(ConfigKeys.GCE_PROJECT, "my-project");
     cfg.set(ConfigKeys.GCE_ZONE, "europe-west2-c");
     cfg.set(ConfigKeys.GCE_INSTANCE, "minecraft-vm");
+    cfg.set(ConfigKeys.GCE_STATUS_CACHE_TTL_MS, 1000);
     return cfg;
   }
 
@@ -33,64 +64,194 @@ public class GCEController implements ServerController {
         .setInstance(config.getString(ConfigKeys.GCE_INSTANCE)).build();
   }
 
-  private Instance tryFetchInstanceData() {
-    try {
-      lastInstanceData = instancesClient.get(buildGetRequest());
-    } catch (ApiException e) {
-      logger.severe(String.format("Unable to fetch compute instance: ", e.toString()));
-      if (lastInstanceData == null) {
+  /**
+   * Created on first use rather than when the plugin is enabled, as it may take
+   * a while to find credentials.
+   */
+  private static synchronized InstancesClient acquireSharedClient() {
+    if (sharedClient == null) {
+      try {
+        sharedClient = InstancesClient.create();
+      } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
-    return lastInstanceData;
+    sharedClientUsers++;
+    return sharedClient;
+  }
+
+  private static synchronized void releaseSharedClient() {
+    sharedClientUsers--;
+    if (sharedClientUsers == 0) {
+      sharedClient.close();
+      sharedClient = null;
+    }
+  }
+
+  private synchronized InstancesClient getClient() {
+    if (closed) {
+      throw new IllegalStateException("Controller is closed");
+    }
+    if (client == null) {
+      client = acquireSharedClient();
+    }
+    return client;
+  }
+
+  private static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> f) {
+    var res = new CompletableFuture<T>();
+    ApiFutures.addCallback(f, new ApiFutureCallback<T>() {
+      @Override
+      public void onSuccess(T value) {
+        res.complete(value);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        res.completeExceptionally(t);
+      }
+    }, MoreExecutors.directExecutor());
+    return res;
+  }
+
+  /**
+   * Returns the last fetched instance status if it is recent enough, so that
+   * callers checking at around the same time share one API call. Callers
+   * checking while a fetch is in flight share that fetch.
+   */
+  private synchronized CompletableFuture<Instance> tryFetchInstanceData() {
+    if (lastInstanceData != null && lastFetch != null
+        && lastFetch.plus(statusCacheTtl).isAfter(Instant.now())) {
+      return CompletableFuture.completedFuture(lastInstanceData);
+    }
+    if (pendingFetch != null) {
+      return pendingFetch;
+    }
+    final var res = new CompletableFuture<Instance>();
+    pendingFetch = res;
+    toCompletableFuture(getClient().getCallable().futureCall(getRequest, STATUS_CALL_CONTEXT))
+        .whenComplete((inst, err) -> {
+          Instance fallback;
+          synchronized (this) {
+            pendingFetch = null;
+            if (err == null) {
+              if (lastInstanceData == null || !lastInstanceData.getStatus().equals(inst.getStatus())) {
+                logger.info(String.format("GCP instance %s is now %s", inst.getName(), inst.getStatus()));
+              }
+              lastInstanceData = inst;
+              lastFetch = Instant.now();
+            } else {
+              logger.severe(String.format("Unable to fetch compute instance: %s", err.toString()));
+            }
+            fallback = lastInstanceData;
+          }
+          if (err == null) {
+            res.complete(inst);
+          } else if (fallback != null) {
+            res.complete(fallback);
+          } else {
+            res.completeExceptionally(err);
+          }
+        });
+    return res;
+  }
+
+  /**
+   * Forget the cached status, after we did something that changes it.
+   */
+  private synchronized void invalidateCache() {
+    lastFetch = null;
+  }
+
+  /**
+   * Completes once a long-running operation has finished, without holding up a
+   * thread in the meantime.
+   */
+  private CompletableFuture<Void> awaitOperation(ApiFuture<Operation> f) {
+    return toCompletableFuture(f).handle((res, err) -> {
+      invalidateCache();
+      if (err != null) {
+        throw err instanceof RuntimeException ? (RuntimeException) err : new RuntimeException(err);
+      }
+      if (res.hasError()) {
+        throw new RuntimeException(res.getError().toString());
+      }
+      return null;
+    });
   }
 
   public GCEController(Configuration config, Logger logger) {
     this.config = config;
     this.logger = logger;
-    try {
-      this.instancesClient = InstancesClient.create();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-    logger.info(tryFetchInstanceData().getStatus());
+    this.getRequest = buildGetRequest();
+    this.statusCacheTtl = Duration.ofMillis(config.getInt(ConfigKeys.GCE_STATUS_CACHE_TTL_MS, 1000));
   }
 
   @Override
-  public State checkState() {
-    var inst = tryFetchInstanceData();
-    var state = inst.getStatus();
-    logger.info(String.format("GCP checkState %s: %s", inst.getName(), state));
-    switch (state) {
-      case "RUNNING":
-        return State.RUNNING;
-      case "SUSPENDING":
-      case "SUSPENDED":
-      case "STAGING":
-        return State.SUSPENDED;
-      default:
-        return State.NOT_READY;
-    }
+  public CompletableFuture<State> checkState() {
+    return tryFetchInstanceData().thenApply(inst -> {
+      switch (inst.getStatus()) {
+        case "RUNNING":
+          return State.RUNNING;
+        case "SUSPENDING":
+        case "SUSPENDED":
+        case "PROVISIONING":
+        case "STAGING":
+          return State.SUSPENDED;
+        case "STOPPING":
+        case "TERMINATED":
+          return State.STOPPED;
+        default:
+          return State.NOT_READY;
+      }
+    });
   }
 
   @Override
-  public void resume() throws Exception {
-    var f = instancesClient.resumeAsync(config.getString(ConfigKeys.GCE_PROJECT), config.getString(ConfigKeys.GCE_ZONE),
-        config.getString(ConfigKeys.GCE_INSTANCE));
-    var res = f.get();
-    if (res.hasError()) {
-      throw new RuntimeException(res.getError().toString());
-    }
+  public CompletableFuture<Void> resume() {
+    return awaitOperation(getClient().resumeAsync(config.getString(ConfigKeys.GCE_PROJECT),
+        config.getString(ConfigKeys.GCE_ZONE), config.getString(ConfigKeys.GCE_INSTANCE)));
+  }
+
+  @Override
+  public CompletableFuture<Void> suspend() {
+    return awaitOperation(getClient().suspendAsync(config.getString(ConfigKeys.GCE_PROJECT),
+        config.getString(ConfigKeys.GCE_ZONE), config.getString(ConfigKeys.GCE_INSTANCE)));
+  }
+
+  @Override
+  public boolean canStop() {
+    return true;
+  }
+
+  @Override
+  public CompletableFuture<Void> stop() {
+    return awaitOperation(getClient().stopAsync(config.getString(ConfigKeys.GCE_PROJECT),
+        config.getString(ConfigKeys.GCE_ZONE), config.getString(ConfigKeys.GCE_INSTANCE)));
   }
 
   @Override
-  public void suspend() throws Exception {
-    var f = instancesClient.suspendAsync(config.getString(ConfigKeys.GCE_PROJECT),
-        config.getString(ConfigKeys.GCE_ZONE),
-        config.getString(ConfigKeys.GCE_INSTANCE));
-    var res = f.get();
-    if (res.hasError()) {
-      throw new RuntimeException(res.getError().toString());
+  public CompletableFuture<Void> start() {
+    return awaitOperation(getClient().startAsync(config.getString(ConfigKeys.GCE_PROJECT),
+        config.getString(ConfigKeys.GCE_ZONE), config.getString(ConfigKeys.GCE_INSTANCE)));
+  }
+
+  /**
+   * Lets go of the shared client, closing it if no other controller uses it.
+   * Calls still in flight fail.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (client == null) {
+        return;
+      }
+      client = null;
     }
+    releaseSharedClient();
   }
 }
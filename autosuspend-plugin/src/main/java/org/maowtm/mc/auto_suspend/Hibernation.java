@@ -0,0 +1,64 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Decides when a suspended server should be stopped altogether. A suspended
+ * VM still pays for its preserved memory, while a stopped one only pays for
+ * its disk, but starting it again means booting the OS and Minecraft from
+ * scratch. Servers are stopped once they have been idle long enough, but only
+ * if starting them is expected to take no longer than the configured budget.
+ */
+public class Hibernation {
+  private final Duration stopAfter;
+  private final Duration maxStartTime;
+  private final Duration expectedStartTime;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.HIBERNATE_STOP_AFTER_HOURS, 0);
+    cfg.set(ConfigKeys.HIBERNATE_MAX_START_SECS, 300);
+    cfg.set(ConfigKeys.HIBERNATE_EXPECTED_START_SECS, 90);
+    return cfg;
+  }
+
+  public Hibernation(Configuration config) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.stopAfter = Duration.ofMinutes((long) (config.getDouble(ConfigKeys.HIBERNATE_STOP_AFTER_HOURS, 0) * 60));
+    this.maxStartTime = Duration.ofSeconds(config.getInt(ConfigKeys.HIBERNATE_MAX_START_SECS, 300));
+    this.expectedStartTime = Duration.ofSeconds(config.getInt(ConfigKeys.HIBERNATE_EXPECTED_START_SECS, 90));
+  }
+
+  public boolean isEnabled() {
+    return !stopAfter.isZero() && !stopAfter.isNegative();
+  }
+
+  /**
+   * How long a server has to be idle before it is stopped.
+   */
+  public Duration getStopAfter() {
+    return stopAfter;
+  }
+
+  /**
+   * @param observed typical time recent starts took, or null if there haven't
+   *                 been any.
+   * @return how long starting a stopped server will probably take.
+   */
+  public Duration expectedStartTime(Duration observed) {
+    return observed != null ? observed : expectedStartTime;
+  }
+
+  /**
+   * @param idle     time since the last player left.
+   * @param observed typical time recent starts took, or null.
+   */
+  public boolean shouldStop(Duration idle, Duration observed) {
+    return isEnabled() && idle.compareTo(stopAfter) >= 0
+        && expectedStartTime(observed).compareTo(maxStartTime) <= 0;
+  }
+}
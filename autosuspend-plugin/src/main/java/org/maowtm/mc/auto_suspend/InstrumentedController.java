@@ -0,0 +1,93 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+/**
+ * Wraps a {@link ServerController}, recording how long each operation takes
+ * and how often it fails, in metrics and in the journal.
+ */
+public class InstrumentedController implements ServerController {
+  private final ServerController inner;
+  private final Journal journal;
+  private final String server;
+  private final Metrics.Histogram checkStateTime, resumeTime, suspendTime, stopTime, startTime;
+  private final Metrics.Counter checkStateErrors, resumeErrors, suspendErrors, stopErrors, startErrors;
+
+  public InstrumentedController(ServerController inner, Metrics metrics, Journal journal, String server) {
+    this.inner = inner;
+    this.journal = journal;
+    this.server = server;
+    var name = "autosuspend_controller_call_seconds";
+    var help = "Time taken by ServerController operations.";
+    this.checkStateTime = metrics.histogram(name, help, Metrics.labels("server", server, "method", "checkState"));
+    this.resumeTime = metrics.histogram(name, help, Metrics.labels("server", server, "method", "resume"));
+    this.suspendTime = metrics.histogram(name, help, Metrics.labels("server", server, "method", "suspend"));
+    this.stopTime = metrics.histogram(name, help, Metrics.labels("server", server, "method", "stop"));
+    this.startTime = metrics.histogram(name, help, Metrics.labels("server", server, "method", "start"));
+    name = "autosuspend_controller_errors_total";
+    help = "ServerController operations that failed.";
+    this.checkStateErrors = metrics.counter(name, help, Metrics.labels("server", server, "method", "checkState"));
+    this.resumeErrors = metrics.counter(name, help, Metrics.labels("server", server, "method", "resume"));
+    this.suspendErrors = metrics.counter(name, help, Metrics.labels("server", server, "method", "suspend"));
+    this.stopErrors = metrics.counter(name, help, Metrics.labels("server", server, "method", "stop"));
+    this.startErrors = metrics.counter(name, help, Metrics.labels("server", server, "method", "start"));
+  }
+
+  private <T> CompletableFuture<T> measure(String method, Supplier<CompletableFuture<T>> op,
+      Metrics.Histogram time, Metrics.Counter errors) {
+    long start = System.nanoTime();
+    CompletableFuture<T> f;
+    try {
+      f = op.get();
+    } catch (RuntimeException e) {
+      f = CompletableFuture.failedFuture(e);
+    }
+    f.whenComplete((res, err) -> {
+      long took = System.nanoTime() - start;
+      time.observeNanos(took);
+      if (err != null) {
+        errors.inc();
+      }
+      journal.controllerCall(server, method, took, err == null);
+    });
+    return f;
+  }
+
+  @Override
+  public CompletableFuture<State> checkState() {
+    return measure("checkState", inner::checkState, checkStateTime, checkStateErrors);
+  }
+
+  @Override
+  public CompletableFuture<Void> resume() {
+    return measure("resume", inner::resume, resumeTime, resumeErrors);
+  }
+
+  @Override
+  public CompletableFuture<Void> suspend() {
+    return measure("suspend", inner::suspend, suspendTime, suspendErrors);
+  }
+
+  @Override
+  public boolean canStop() {
+    return inner.canStop();
+  }
+
+  @Override
+  public CompletableFuture<Void> stop() {
+    return measure("stop", inner::stop, stopTime, stopErrors);
+  }
+
+  @Override
+  public CompletableFuture<Void> start() {
+    return measure("start", inner::start, startTime, startErrors);
+  }
+
+  @Override
+  public void close() {
+    inner.close();
+  }
+}
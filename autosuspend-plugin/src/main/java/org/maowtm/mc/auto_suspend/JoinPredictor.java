@@ -0,0 +1,232 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.logging.Logger;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Learns which times of the week players usually join, so that the server can
+ * be resumed shortly before they do.
+ *
+ * The week is split into fixed slots (30 minutes by default). Each slot holds
+ * an exponentially weighted average of whether anyone joined during it in
+ * previous weeks, which is used directly as the arrival probability for that
+ * slot. The whole table is a few KB and is persisted to the data folder.
+ */
+public class JoinPredictor {
+  private static final int FILE_MAGIC = 0x4a505231; // "JPR1"
+
+  private final boolean enabled;
+  private final int slotMinutes;
+  private final int slotsPerWeek;
+  private final Duration lead;
+  private final double threshold;
+  private final double decay;
+  private final Duration keepAlive;
+  private final File file;
+  private final Logger logger;
+  private final Clock clock;
+  private final ZoneId zone;
+  private final PrewarmStats stats = new PrewarmStats();
+
+  // Guarded by this
+  private final double[] probability;
+  /**
+   * Absolute index (minutes since epoch / slot length) of the slot currently in
+   * progress. Slots before it have been folded into {@link #probability}.
+   */
+  private long currentSlot;
+  private boolean joinedInCurrentSlot = false;
+  private boolean dirty = false;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.PREDICTOR_ENABLED, false);
+    cfg.set(ConfigKeys.PREDICTOR_SLOT_MINUTES, 30);
+    cfg.set(ConfigKeys.PREDICTOR_LEAD_SECS, 120);
+    cfg.set(ConfigKeys.PREDICTOR_THRESHOLD, 0.5);
+    cfg.set(ConfigKeys.PREDICTOR_DECAY, 0.25);
+    cfg.set(ConfigKeys.PREDICTOR_KEEPALIVE_SECS, 600);
+    return cfg;
+  }
+
+  public JoinPredictor(Configuration config, File file, Clock clock, Logger logger) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.enabled = config.getBoolean(ConfigKeys.PREDICTOR_ENABLED, false);
+    int slotMinutes = config.getInt(ConfigKeys.PREDICTOR_SLOT_MINUTES, 30);
+    if (slotMinutes <= 0 || (7 * 24 * 60) % slotMinutes != 0) {
+      logger.warning(String.format("%s must divide a week evenly, using 30", ConfigKeys.PREDICTOR_SLOT_MINUTES));
+      slotMinutes = 30;
+    }
+    this.slotMinutes = slotMinutes;
+    this.slotsPerWeek = 7 * 24 * 60 / slotMinutes;
+    this.lead = Duration.ofSeconds(config.getInt(ConfigKeys.PREDICTOR_LEAD_SECS, 120));
+    this.threshold = config.getDouble(ConfigKeys.PREDICTOR_THRESHOLD, 0.5);
+    this.decay = config.getDouble(ConfigKeys.PREDICTOR_DECAY, 0.25);
+    this.keepAlive = Duration.ofSeconds(config.getInt(ConfigKeys.PREDICTOR_KEEPALIVE_SECS, 600));
+    this.file = file;
+    this.clock = clock;
+    this.zone = clock.getZone();
+    this.logger = logger;
+    this.probability = new double[slotsPerWeek];
+    this.currentSlot = absoluteSlot(clock.instant());
+    if (enabled) {
+      load();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * How long to keep the server up after a pre-warm if nobody joins.
+   */
+  public Duration getKeepAlive() {
+    return keepAlive;
+  }
+
+  public PrewarmStats getStats() {
+    return stats;
+  }
+
+  private long absoluteSlot(Instant t) {
+    // Shift by the zone offset so that slots line up with local wall-clock
+    // time, which is what players' habits follow.
+    long localMinutes = (t.getEpochSecond() + zone.getRules().getOffset(t).getTotalSeconds()) / 60;
+    return Math.floorDiv(localMinutes, slotMinutes);
+  }
+
+  private Instant slotStart(long absSlot) {
+    long localSecs = absSlot * slotMinutes * 60;
+    var guess = Instant.ofEpochSecond(localSecs);
+    return guess.minusSeconds(zone.getRules().getOffset(guess).getTotalSeconds());
+  }
+
+  private int weekSlot(long absSlot) {
+    // The epoch was a Thursday, which is as good a start of the week as any.
+    return (int) Math.floorMod(absSlot, (long) slotsPerWeek);
+  }
+
+  /**
+   * Must hold this. Folds every slot that has ended by now into the table.
+   */
+  private void advanceTo(Instant now) {
+    long slot = absoluteSlot(now);
+    if (slot <= currentSlot) {
+      return;
+    }
+    fold(currentSlot, joinedInCurrentSlot);
+    // Any slots skipped over entirely had no joins. No need to go around the
+    // week more than once.
+    for (long s = currentSlot + 1; s < slot && s <= currentSlot + slotsPerWeek; s++) {
+      fold(s, false);
+    }
+    currentSlot = slot;
+    joinedInCurrentSlot = false;
+    dirty = true;
+  }
+
+  private void fold(long absSlot, boolean joined) {
+    int i = weekSlot(absSlot);
+    probability[i] = probability[i] * (1 - decay) + (joined ? decay : 0);
+  }
+
+  public synchronized void recordJoin(Instant now) {
+    if (!enabled) {
+      return;
+    }
+    advanceTo(now);
+    if (!joinedInCurrentSlot) {
+      joinedInCurrentSlot = true;
+      dirty = true;
+    }
+  }
+
+  public synchronized double probabilityAt(Instant t) {
+    return probability[weekSlot(absoluteSlot(t))];
+  }
+
+  /**
+   * @return when to next resume the server ahead of a likely arrival, or null
+   *         if nothing in the coming week looks likely enough. Only the start of
+   *         a run of likely slots counts, since the server stays up anyway once
+   *         players are on.
+   */
+  public synchronized Instant nextPrewarm(Instant now) {
+    if (!enabled) {
+      return null;
+    }
+    advanceTo(now);
+    for (long s = currentSlot + 1; s <= currentSlot + slotsPerWeek; s++) {
+      if (probability[weekSlot(s)] >= threshold && probability[weekSlot(s - 1)] < threshold) {
+        var at = slotStart(s).minus(lead);
+        if (at.isAfter(now)) {
+          return at;
+        }
+      }
+    }
+    return null;
+  }
+
+  private synchronized void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try (var in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != FILE_MAGIC || in.readInt() != slotMinutes) {
+        logger.warning(String.format("Ignoring %s: written with a different format or slot length", file));
+        return;
+      }
+      long savedSlot = in.readLong();
+      boolean savedJoined = in.readBoolean();
+      for (int i = 0; i < slotsPerWeek; i++) {
+        probability[i] = in.readDouble();
+      }
+      currentSlot = savedSlot;
+      joinedInCurrentSlot = savedJoined;
+      advanceTo(clock.instant());
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to read join history %s: %s", file, e));
+    }
+  }
+
+  /**
+   * Writes the table to disk if it changed since the last save.
+   */
+  public synchronized void save() {
+    if (!enabled || !dirty) {
+      return;
+    }
+    var tmp = new File(file.getPath() + ".tmp");
+    try {
+      try (var out = new DataOutputStream(new FileOutputStream(tmp))) {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(slotMinutes);
+        out.writeLong(currentSlot);
+        out.writeBoolean(joinedInCurrentSlot);
+        for (double p : probability) {
+          out.writeDouble(p);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      dirty = false;
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to save join history %s: %s", file, e));
+    }
+  }
+}
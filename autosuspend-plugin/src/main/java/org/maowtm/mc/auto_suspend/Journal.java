@@ -0,0 +1,424 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * An append-only binary log of what the plugin sees: state changes, controller
+ * calls and players joining and leaving, for working out capacity and tuning
+ * settings later with {@link JournalReader}.
+ *
+ * Records are written into a memory-mapped, preallocated segment file, so an
+ * append is a few stores into memory and the kernel writes them out whenever
+ * it likes. A crash of the proxy loses nothing; a crash of the machine may lose
+ * the last few seconds. Each record's length is written last, so a torn record
+ * reads as the end of the segment.
+ *
+ * When a segment is full it is trimmed to its used length and a new one is
+ * started. Closed segments are then compacted off the hot path: status checks,
+ * which make up most records but say little, are dropped, small segments are
+ * merged, and the oldest are deleted beyond max_segments.
+ *
+ * Segment layout: magic "ASJ1", version byte, flags byte, two reserved bytes,
+ * creation time in epoch millis, then records. Record layout: total length
+ * (u16), type (u8), epoch millis (i64), server name (u8 length + UTF-8), then
+ * the type's fields. See {@link JournalReader} for those.
+ */
+public class Journal {
+  static final int MAGIC = 0x41534a31; // "ASJ1"
+  static final byte VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final byte FLAG_COMPACTED = 1;
+  static final int RECORD_HEADER_SIZE = 2 + 1 + 8;
+
+  static final byte TYPE_STATE = 1;
+  static final byte TYPE_CONTROLLER_CALL = 2;
+  static final byte TYPE_JOIN = 3;
+  static final byte TYPE_LEAVE = 4;
+
+  static final String SEGMENT_PREFIX = "segment-";
+  static final String SEGMENT_SUFFIX = ".bin";
+
+  private final File dir;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+  private final Logger logger;
+  private final Metrics.Counter records, errors;
+  private final Map<String, byte[]> names = new ConcurrentHashMap<>();
+  // Guarded by this. buf is null if journaling is off or broken.
+  private FileChannel channel = null;
+  private MappedByteBuffer buf = null;
+  private long segment;
+  private boolean compactionPending = false;
+  private final Object compactionLock = new Object();
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.JOURNAL_ENABLED, true);
+    cfg.set(ConfigKeys.JOURNAL_SEGMENT_KB, 1024);
+    cfg.set(ConfigKeys.JOURNAL_MAX_SEGMENTS, 32);
+    return cfg;
+  }
+
+  public Journal(Configuration config, File dataFolder, Clock clock, ScheduledExecutorService scheduler,
+      Metrics metrics, Logger logger) {
+    this.dir = new File(dataFolder, "journal");
+    this.segmentSize = Math.max(4, config.getInt(ConfigKeys.JOURNAL_SEGMENT_KB, 1024)) * 1024;
+    this.maxSegments = Math.max(2, config.getInt(ConfigKeys.JOURNAL_MAX_SEGMENTS, 32));
+    this.clock = clock;
+    this.scheduler = scheduler;
+    this.logger = logger;
+    this.records = metrics.counter("autosuspend_journal_records_total", "Records appended to the journal.", "");
+    this.errors = metrics.counter("autosuspend_journal_errors_total",
+        "Journal writes or compactions that failed.", "");
+    if (!config.getBoolean(ConfigKeys.JOURNAL_ENABLED, true)) {
+      return;
+    }
+    synchronized (this) {
+      try {
+        Files.createDirectories(dir.toPath());
+        var existing = segmentFiles(dir);
+        if (!existing.isEmpty()) {
+          var last = existing.get(existing.size() - 1);
+          segment = segmentNumber(last);
+          if (last.length() == segmentSize && openSegment(last, false)) {
+            return;
+          }
+        }
+        segment++;
+        openSegment(segmentFile(segment), true);
+      } catch (IOException e) {
+        logger.severe(String.format("Unable to open journal in %s, not journaling: %s", dir, e));
+        buf = null;
+      }
+    }
+  }
+
+  static List<File> segmentFiles(File dir) {
+    var files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      return List.of();
+    }
+    Arrays.sort(files, (a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+    return Arrays.asList(files);
+  }
+
+  static long segmentNumber(File f) {
+    var name = f.getName();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private File segmentFile(long n) {
+    return new File(dir, String.format("%s%010d%s", SEGMENT_PREFIX, n, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Must hold this. Maps the given segment and positions it after its last
+   * record.
+   *
+   * @return false if an existing segment isn't one we can append to.
+   */
+  private boolean openSegment(File f, boolean create) throws IOException {
+    channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    if (create) {
+      buf.putInt(MAGIC).put(VERSION).put((byte) 0).putShort((short) 0).putLong(clock.millis());
+      return true;
+    }
+    if (buf.getInt(0) != MAGIC || buf.get(4) != VERSION || (buf.get(5) & FLAG_COMPACTED) != 0) {
+      channel.close();
+      channel = null;
+      buf = null;
+      return false;
+    }
+    buf.position(endOfRecords(buf, HEADER_SIZE));
+    return true;
+  }
+
+  /**
+   * @return the offset just past the last complete record.
+   */
+  static int endOfRecords(ByteBuffer b, int pos) {
+    while (pos + RECORD_HEADER_SIZE <= b.limit()) {
+      int len = Short.toUnsignedInt(b.getShort(pos));
+      if (len < RECORD_HEADER_SIZE || pos + len > b.limit()) {
+        break;
+      }
+      pos += len;
+    }
+    return pos;
+  }
+
+  private byte[] nameBytes(String s) {
+    return names.computeIfAbsent(s, k -> {
+      var b = k.getBytes(StandardCharsets.UTF_8);
+      return b.length > 255 ? Arrays.copyOf(b, 255) : b;
+    });
+  }
+
+  /**
+   * Must hold this. Makes room for a record with the given payload size and
+   * writes everything but its length.
+   *
+   * @return the record's offset, or -1 if journaling is off.
+   */
+  private int begin(byte type, byte[] server, int payload) {
+    if (buf == null) {
+      return -1;
+    }
+    int len = RECORD_HEADER_SIZE + 1 + server.length + payload;
+    if (buf.remaining() < len) {
+      rollOver();
+      if (buf == null) {
+        return -1;
+      }
+    }
+    int start = buf.position();
+    buf.position(start + 2);
+    buf.put(type).putLong(clock.millis()).put((byte) server.length).put(server);
+    return start;
+  }
+
+  /**
+   * Must hold this. Publishes the record started at the given offset.
+   */
+  private void finish(int start) {
+    buf.putShort(start, (short) (buf.position() - start));
+    records.inc();
+  }
+
+  public void stateChanged(String server, State from, State to) {
+    var name = nameBytes(server);
+    synchronized (this) {
+      int start = begin(TYPE_STATE, name, 2);
+      if (start < 0) {
+        return;
+      }
+      buf.put((byte) from.ordinal()).put((byte) to.ordinal());
+      finish(start);
+    }
+  }
+
+  public void controllerCall(String server, String method, long nanos, boolean ok) {
+    var name = nameBytes(server);
+    var m = nameBytes(method);
+    synchronized (this) {
+      int start = begin(TYPE_CONTROLLER_CALL, name, 1 + m.length + 1 + 8);
+      if (start < 0) {
+        return;
+      }
+      buf.put((byte) m.length).put(m).put((byte) (ok ? 1 : 0)).putLong(nanos);
+      finish(start);
+    }
+  }
+
+  public void playerJoined(String server, UUID player) {
+    playerRecord(TYPE_JOIN, server, player);
+  }
+
+  public void playerLeft(String server, UUID player) {
+    playerRecord(TYPE_LEAVE, server, player);
+  }
+
+  private void playerRecord(byte type, String server, UUID player) {
+    var name = nameBytes(server);
+    synchronized (this) {
+      int start = begin(type, name, 16);
+      if (start < 0) {
+        return;
+      }
+      buf.putLong(player.getMostSignificantBits()).putLong(player.getLeastSignificantBits());
+      finish(start);
+    }
+  }
+
+  /**
+   * Must hold this. Trims the full segment and starts a new one.
+   */
+  private void rollOver() {
+    try {
+      closeSegment();
+      segment++;
+      openSegment(segmentFile(segment), true);
+    } catch (IOException e) {
+      logger.severe(String.format("Unable to roll over journal, not journaling: %s", e));
+      errors.inc();
+      buf = null;
+      return;
+    }
+    if (!compactionPending && scheduler != null) {
+      compactionPending = true;
+      scheduler.execute(this::compact);
+    }
+  }
+
+  /**
+   * Must hold this.
+   */
+  private void closeSegment() throws IOException {
+    if (buf == null) {
+      return;
+    }
+    int used = buf.position();
+    buf.force();
+    buf = null;
+    channel.truncate(used);
+    channel.close();
+    channel = null;
+  }
+
+  /**
+   * Compacts every closed segment, merges small ones and deletes the oldest
+   * beyond the limit. Runs on the scheduler, and never touches the segment
+   * being written to.
+   */
+  private void compact() {
+    synchronized (compactionLock) {
+      compactLocked();
+    }
+  }
+
+  private void compactLocked() {
+    long active;
+    synchronized (this) {
+      compactionPending = false;
+      active = segment;
+    }
+    try {
+      var closed = new ArrayList<File>();
+      for (var f : segmentFiles(dir)) {
+        if (segmentNumber(f) < active) {
+          closed.add(f);
+        }
+      }
+      var compacted = new ArrayList<byte[]>();
+      for (var f : closed) {
+        compacted.add(compactRecords(Files.readAllBytes(f.toPath())));
+      }
+      // Merge runs of neighbours that fit in one segment, keeping the number
+      // (and name) of the first of each run.
+      int i = 0;
+      var kept = new ArrayList<File>();
+      while (i < closed.size()) {
+        var first = closed.get(i);
+        var merged = ByteBuffer.allocate(segmentSize);
+        var header = ByteBuffer.wrap(compacted.get(i), 0, HEADER_SIZE);
+        merged.put(header);
+        merged.put(5, FLAG_COMPACTED);
+        int j = i;
+        while (j < closed.size() && merged.remaining() >= compacted.get(j).length - HEADER_SIZE) {
+          merged.put(compacted.get(j), HEADER_SIZE, compacted.get(j).length - HEADER_SIZE);
+          j++;
+        }
+        if (j == i) {
+          // Doesn't fit even on its own, which can't happen as it came from a
+          // segment of this size, unless the size was lowered since.
+          j = i + 1;
+          merged = ByteBuffer.wrap(compacted.get(i));
+          merged.position(merged.limit());
+        }
+        if (j == i + 1 && merged.position() == first.length()) {
+          // Compacted already, and nothing to merge it with.
+          kept.add(first);
+          i = j;
+          continue;
+        }
+        var tmp = new File(dir, first.getName() + ".tmp");
+        Files.write(tmp.toPath(), Arrays.copyOf(merged.array(), merged.position()));
+        Files.move(tmp.toPath(), first.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        for (int k = i + 1; k < j; k++) {
+          Files.delete(closed.get(k).toPath());
+        }
+        kept.add(first);
+        i = j;
+      }
+      // Plus the active one.
+      for (int k = 0; k < kept.size() + 1 - maxSegments; k++) {
+        Files.delete(kept.get(k).toPath());
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warning(String.format("Unable to compact journal in %s: %s", dir, e));
+      errors.inc();
+    }
+  }
+
+  /**
+   * @return the segment with status check records dropped, or unchanged if
+   *         already compacted.
+   */
+  static byte[] compactRecords(byte[] segment) throws IOException {
+    var in = ByteBuffer.wrap(segment);
+    if (segment.length < HEADER_SIZE || in.getInt(0) != MAGIC) {
+      throw new IOException("Not a journal segment");
+    }
+    int end = endOfRecords(in, HEADER_SIZE);
+    if ((in.get(5) & FLAG_COMPACTED) != 0) {
+      return Arrays.copyOf(segment, end);
+    }
+    var out = ByteBuffer.allocate(end);
+    out.put(segment, 0, HEADER_SIZE);
+    out.put(5, FLAG_COMPACTED);
+    int pos = HEADER_SIZE;
+    while (pos < end) {
+      int len = Short.toUnsignedInt(in.getShort(pos));
+      if (!isStatusCheck(in, pos)) {
+        out.put(segment, pos, len);
+      }
+      pos += len;
+    }
+    return Arrays.copyOf(out.array(), out.position());
+  }
+
+  private static final byte[] CHECK_STATE = "checkState".getBytes(StandardCharsets.UTF_8);
+
+  private static boolean isStatusCheck(ByteBuffer b, int pos) {
+    if (b.get(pos + 2) != TYPE_CONTROLLER_CALL) {
+      return false;
+    }
+    int methodAt = pos + RECORD_HEADER_SIZE + 1 + Byte.toUnsignedInt(b.get(pos + RECORD_HEADER_SIZE));
+    int len = Byte.toUnsignedInt(b.get(methodAt));
+    return len == CHECK_STATE.length
+        && Arrays.equals(b.array(), methodAt + 1, methodAt + 1 + len, CHECK_STATE, 0, len);
+  }
+
+  /**
+   * Flushes the current segment to disk. Appends after this are dropped.
+   */
+  public synchronized void close() {
+    if (buf == null) {
+      return;
+    }
+    try {
+      buf.force();
+      channel.close();
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to close journal: %s", e));
+    }
+    channel = null;
+    buf = null;
+  }
+}
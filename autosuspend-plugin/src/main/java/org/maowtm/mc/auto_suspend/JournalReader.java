@@ -0,0 +1,169 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+/**
+ * Reads a {@link Journal} back, for exporting it to something that can chart
+ * it. Runs on its own, without the proxy:
+ *
+ * <pre>
+ * java -cp autosuspend.jar org.maowtm.mc.auto_suspend.JournalReader plugins/autosuspend/journal
+ * </pre>
+ *
+ * Fields per record type, after the common header:
+ * <ul>
+ * <li>state: from state, to state (u8 each, {@link State} ordinals)</li>
+ * <li>controller call: method (u8 length + UTF-8), succeeded (u8), duration in
+ * nanoseconds (i64)</li>
+ * <li>join, leave: player UUID (two i64)</li>
+ * </ul>
+ */
+public class JournalReader {
+  /**
+   * One record. Fields that don't apply to its type are null.
+   */
+  public static class Entry {
+    public final String type;
+    public final Instant at;
+    public final String server;
+    public String from, to, method, player;
+    public Boolean ok;
+    public Duration took;
+
+    Entry(String type, Instant at, String server) {
+      this.type = type;
+      this.at = at;
+      this.server = server;
+    }
+  }
+
+  /**
+   * Reads every segment in the directory, oldest first.
+   */
+  public static void read(File dir, Consumer<Entry> out) throws IOException {
+    for (var f : Journal.segmentFiles(dir)) {
+      readSegment(Files.readAllBytes(f.toPath()), f, out);
+    }
+  }
+
+  private static void readSegment(byte[] bytes, File f, Consumer<Entry> out) throws IOException {
+    var b = ByteBuffer.wrap(bytes);
+    if (bytes.length < Journal.HEADER_SIZE || b.getInt(0) != Journal.MAGIC) {
+      throw new IOException(String.format("%s is not a journal segment", f));
+    }
+    if (b.get(4) != Journal.VERSION) {
+      throw new IOException(String.format("%s has unknown version %d", f, b.get(4)));
+    }
+    int end = Journal.endOfRecords(b, Journal.HEADER_SIZE);
+    int pos = Journal.HEADER_SIZE;
+    while (pos < end) {
+      int len = Short.toUnsignedInt(b.getShort(pos));
+      b.position(pos + 2);
+      byte type = b.get();
+      var at = Instant.ofEpochMilli(b.getLong());
+      var server = readString(b);
+      Entry e;
+      switch (type) {
+        case Journal.TYPE_STATE:
+          e = new Entry("state", at, server);
+          e.from = stateName(b.get());
+          e.to = stateName(b.get());
+          break;
+        case Journal.TYPE_CONTROLLER_CALL:
+          e = new Entry("call", at, server);
+          e.method = readString(b);
+          e.ok = b.get() != 0;
+          e.took = Duration.ofNanos(b.getLong());
+          break;
+        case Journal.TYPE_JOIN:
+        case Journal.TYPE_LEAVE:
+          e = new Entry(type == Journal.TYPE_JOIN ? "join" : "leave", at, server);
+          e.player = new UUID(b.getLong(), b.getLong()).toString();
+          break;
+        default:
+          // Written by a newer version. Skip it.
+          e = null;
+      }
+      if (e != null) {
+        out.accept(e);
+      }
+      pos += len;
+    }
+  }
+
+  private static String readString(ByteBuffer b) {
+    int len = Byte.toUnsignedInt(b.get());
+    var s = new String(b.array(), b.position(), len, StandardCharsets.UTF_8);
+    b.position(b.position() + len);
+    return s;
+  }
+
+  private static String stateName(byte ordinal) {
+    var states = State.values();
+    return ordinal >= 0 && ordinal < states.length ? states[ordinal].name() : Byte.toString(ordinal);
+  }
+
+  private static String orEmpty(Object o) {
+    return o == null ? "" : o.toString();
+  }
+
+  private static String csvLine(Entry e) {
+    return String.join(",", e.at.toString(), e.type, e.server, orEmpty(e.from), orEmpty(e.to), orEmpty(e.method),
+        orEmpty(e.ok), e.took == null ? "" : String.format("%.3f", e.took.toNanos() / 1e6), orEmpty(e.player));
+  }
+
+  private static String jsonLine(Entry e) {
+    var sb = new StringBuilder();
+    sb.append(String.format("{\"at\":\"%s\",\"type\":\"%s\",\"server\":%s", e.at, e.type, jsonString(e.server)));
+    if (e.from != null) {
+      sb.append(String.format(",\"from\":\"%s\",\"to\":\"%s\"", e.from, e.to));
+    }
+    if (e.method != null) {
+      sb.append(String.format(",\"method\":%s,\"ok\":%b,\"ms\":%.3f", jsonString(e.method), e.ok,
+          e.took.toNanos() / 1e6));
+    }
+    if (e.player != null) {
+      sb.append(String.format(",\"player\":\"%s\"", e.player));
+    }
+    return sb.append('}').toString();
+  }
+
+  private static String jsonString(String s) {
+    var sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--json"))) {
+      System.err.println("Usage: JournalReader <journal directory> [--json]");
+      System.err.println("Prints every record as CSV, or as one JSON object per line.");
+      System.exit(2);
+    }
+    boolean json = args.length == 2;
+    PrintStream out = System.out;
+    if (!json) {
+      out.println("at,type,server,from,to,method,ok,ms,player");
+    }
+    read(new File(args[0]), e -> out.println(json ? jsonLine(e) : csvLine(e)));
+  }
+}
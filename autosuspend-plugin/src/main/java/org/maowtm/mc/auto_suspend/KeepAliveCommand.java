@@ -1,10 +1,12 @@
 package org.maowtm.mc.auto_suspend;
 
 import java.time.Duration;
+import java.util.ArrayList;
 
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 
 public class KeepAliveCommand extends Command {
@@ -20,17 +22,22 @@ public class KeepAliveCommand extends Command {
     if (!this.hasPermission(sender)) {
       return;
     }
-    final String USAGE = "Usage: /keepalive [number of minutes]; or\n" +
-        "         /keepalive indefinitely";
-    if (args.length != 1) {
+    final String USAGE = "Usage: /keepalive [number of minutes] [server]; or\n" +
+        "         /keepalive indefinitely [server]";
+    if (args.length != 1 && args.length != 2) {
       sender.sendMessage(new ComponentBuilder().color(ChatColor.RED).append(USAGE).create());
       return;
     }
-    ServerStateManager ssm = this.plugin.getStateManager();
+    ServerStateManager ssm = findServer(sender, args.length == 2 ? args[1] : null);
+    if (ssm == null) {
+      return;
+    }
     if (args[0].equalsIgnoreCase("indefinitely")) {
       ssm.keepAliveForever();
       sender.sendMessage(new ComponentBuilder().color(ChatColor.GREEN)
-          .append("Server will be kept running indefinitely. Cancel with /keepalive 0").create());
+          .append(String.format("Server %s will be kept running indefinitely. Cancel with /keepalive 0",
+              ssm.getTargetServer()))
+          .create());
       return;
     } else {
       double minutes;
@@ -49,13 +56,47 @@ public class KeepAliveCommand extends Command {
       ssm.keepAliveFor(dur);
       if (dur.isZero()) {
         sender.sendMessage(new ComponentBuilder().color(ChatColor.GREEN)
-            .append("Server will now suspend normally.")
+            .append(String.format("Server %s will now suspend normally.", ssm.getTargetServer()))
             .create());
       } else {
         sender.sendMessage(new ComponentBuilder().color(ChatColor.GREEN)
-            .append(String.format("Server will be kept running for %s minutes. Cancel with /keepalive 0", args[0]))
+            .append(String.format("Server %s will be kept running for %s minutes. Cancel with /keepalive 0",
+                ssm.getTargetServer(), args[0]))
             .create());
       }
     }
   }
+
+  /**
+   * Resolves which server a command applies to. Without an explicit name, this
+   * is the only managed server, or else the one the sender is currently on.
+   * Tells the sender what went wrong and returns null if there is no match.
+   */
+  private ServerStateManager findServer(CommandSender sender, String name) {
+    if (name == null) {
+      var managers = this.plugin.getStateManagers();
+      if (managers.size() == 1) {
+        return managers.iterator().next();
+      }
+      if (sender instanceof ProxiedPlayer && ((ProxiedPlayer) sender).getServer() != null) {
+        var ssm = this.plugin.getStateManager(((ProxiedPlayer) sender).getServer().getInfo().getName());
+        if (ssm != null) {
+          return ssm;
+        }
+      }
+    } else {
+      var ssm = this.plugin.getStateManager(name);
+      if (ssm != null) {
+        return ssm;
+      }
+    }
+    var names = new ArrayList<String>();
+    for (var ssm : this.plugin.getStateManagers()) {
+      names.add(ssm.getTargetServer());
+    }
+    sender.sendMessage(new ComponentBuilder().color(ChatColor.RED)
+        .append(String.format("Please specify one of these servers: %s", String.join(", ", names)))
+        .create());
+    return null;
+  }
 }
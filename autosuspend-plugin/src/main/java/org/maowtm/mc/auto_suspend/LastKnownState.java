@@ -0,0 +1,75 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+/**
+ * The state a server was last seen in, kept in the data folder so that a
+ * restarted proxy has something to go by before the cloud API answers. Also
+ * keeps when a player was last on it, so that a restart doesn't reset how long
+ * it has been idle.
+ */
+public class LastKnownState {
+  private static final int FILE_MAGIC = 0x4c4b5332; // "LKS2"
+
+  public final State state;
+  public final Instant at;
+  public final Instant lastPlayerActive;
+
+  public LastKnownState(State state, Instant at, Instant lastPlayerActive) {
+    this.state = state;
+    this.at = at;
+    this.lastPlayerActive = lastPlayerActive;
+  }
+
+  /**
+   * @return null if nothing was saved or the file can't be read.
+   */
+  public static LastKnownState load(File file, Logger logger) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (var in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != FILE_MAGIC) {
+        logger.warning(String.format("Ignoring %s: written with a different format", file));
+        return null;
+      }
+      var state = State.valueOf(in.readUTF());
+      var at = Instant.ofEpochMilli(in.readLong());
+      var lastPlayerActive = Instant.ofEpochMilli(in.readLong());
+      return new LastKnownState(state, at, lastPlayerActive);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warning(String.format("Unable to read last known state %s: %s", file, e));
+      return null;
+    }
+  }
+
+  public void save(File file, Logger logger) {
+    // Saves of different servers go to different files, but saves of the same
+    // server may race.
+    synchronized (LastKnownState.class) {
+      var tmp = new File(file.getPath() + ".tmp");
+      try {
+        try (var out = new DataOutputStream(new FileOutputStream(tmp))) {
+          out.writeInt(FILE_MAGIC);
+          out.writeUTF(state.name());
+          out.writeLong(at.toEpochMilli());
+          out.writeLong(lastPlayerActive.toEpochMilli());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        logger.warning(String.format("Unable to save last known state %s: %s", file, e));
+      }
+    }
+  }
+}
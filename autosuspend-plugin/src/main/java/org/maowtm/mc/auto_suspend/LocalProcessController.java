@@ -0,0 +1,327 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Runs the backend as a process on the same machine as the proxy, and
+ * suspends it by freezing it in place, which takes well under a second either
+ * way.
+ *
+ * If given a cgroup v2 group that the proxy can write to, the process is put in
+ * it and the whole group is frozen through {@code cgroup.freeze}. Its memory
+ * can then be pushed out to swap through {@code memory.reclaim}, so that other
+ * services on the machine get it back. Otherwise SIGSTOP and SIGCONT are sent
+ * to the process and its children.
+ *
+ * Resuming a server whose process isn't running starts it with the configured
+ * command.
+ */
+public class LocalProcessController implements ServerController {
+  private static final long FREEZE_POLL_MS = 10;
+
+  private final List<String> command;
+  private final File workingDir;
+  private final File pidFile;
+  private final File logFile;
+  /**
+   * Null if freezing with signals.
+   */
+  private final Path cgroup;
+  /**
+   * Runs memory reclaims, which block for as long as the kernel takes, off the
+   * shared scheduler. Null if not reclaiming.
+   */
+  private final ExecutorService reclaimer;
+  private final Duration freezeTimeout;
+  private final ScheduledExecutorService scheduler;
+  private final Logger logger;
+  // Guarded by this
+  private ProcessHandle process = null;
+  private boolean stopped = false;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.LOCAL_COMMAND, List.of("java", "-Xmx4G", "-jar", "server.jar", "nogui"));
+    cfg.set(ConfigKeys.LOCAL_WORKING_DIR, "");
+    cfg.set(ConfigKeys.LOCAL_PID_FILE, "");
+    cfg.set(ConfigKeys.LOCAL_LOG_FILE, "");
+    cfg.set(ConfigKeys.LOCAL_CGROUP, "");
+    cfg.set(ConfigKeys.LOCAL_RECLAIM, false);
+    cfg.set(ConfigKeys.LOCAL_FREEZE_TIMEOUT_MS, 5000);
+    return cfg;
+  }
+
+  private static File fileOrNull(String path) {
+    return path == null || path.isEmpty() ? null : new File(path);
+  }
+
+  public LocalProcessController(Configuration config, ScheduledExecutorService scheduler, Logger logger) {
+    this.command = config.getStringList(ConfigKeys.LOCAL_COMMAND);
+    this.workingDir = fileOrNull(config.getString(ConfigKeys.LOCAL_WORKING_DIR));
+    this.pidFile = fileOrNull(config.getString(ConfigKeys.LOCAL_PID_FILE));
+    this.logFile = fileOrNull(config.getString(ConfigKeys.LOCAL_LOG_FILE));
+    this.freezeTimeout = Duration.ofMillis(config.getInt(ConfigKeys.LOCAL_FREEZE_TIMEOUT_MS, 5000));
+    this.scheduler = scheduler;
+    this.logger = logger;
+
+    var cgroupPath = config.getString(ConfigKeys.LOCAL_CGROUP);
+    Path cgroup = null;
+    if (cgroupPath != null && !cgroupPath.isEmpty()) {
+      cgroup = Path.of(cgroupPath);
+      if (!Files.isWritable(cgroup.resolve("cgroup.freeze")) || !Files.isWritable(cgroup.resolve("cgroup.procs"))) {
+        logger.warning(String.format("Can't write to cgroup %s, falling back to SIGSTOP/SIGCONT", cgroupPath));
+        cgroup = null;
+      }
+    }
+    this.cgroup = cgroup;
+    if (cgroup != null && config.getBoolean(ConfigKeys.LOCAL_RECLAIM, false)) {
+      this.reclaimer = Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(r, "AutoSuspend-reclaim");
+        t.setDaemon(true);
+        return t;
+      });
+    } else {
+      this.reclaimer = null;
+    }
+
+    if (this.pidFile != null) {
+      this.process = PidFile.load(this.pidFile.toPath(), logger);
+      if (this.process != null) {
+        logger.info(String.format("Found server process %d from %s", this.process.pid(), this.pidFile));
+      }
+    }
+  }
+
+  /**
+   * Must hold this. Null if the process isn't running.
+   */
+  private ProcessHandle aliveProcess() {
+    if (process != null && !process.isAlive()) {
+      logger.info(String.format("Server process %d has exited", process.pid()));
+      process = null;
+    }
+    return process;
+  }
+
+  private boolean isFrozen(ProcessHandle p) throws IOException {
+    if (cgroup != null) {
+      return readCgroupFrozen();
+    }
+    // The third field of /proc/<pid>/stat is the state, T for stopped. The
+    // second is the command name in parentheses, which may contain spaces.
+    var stat = Files.readString(Path.of("/proc", Long.toString(p.pid()), "stat"));
+    var fields = stat.substring(stat.lastIndexOf(')') + 2);
+    return fields.charAt(0) == 'T';
+  }
+
+  private boolean readCgroupFrozen() throws IOException {
+    for (var line : Files.readAllLines(cgroup.resolve("cgroup.events"))) {
+      if (line.startsWith("frozen ")) {
+        return line.substring("frozen ".length()).trim().equals("1");
+      }
+    }
+    throw new IOException(String.format("No frozen entry in %s/cgroup.events", cgroup));
+  }
+
+  @Override
+  public synchronized CompletableFuture<State> checkState() {
+    var p = aliveProcess();
+    if (p == null) {
+      // Not running is as good as suspended if we can start it.
+      return CompletableFuture.completedFuture(command.isEmpty() ? State.NOT_READY : State.SUSPENDED);
+    }
+    try {
+      return CompletableFuture.completedFuture(isFrozen(p) ? State.SUSPENDED : State.RUNNING);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> resume() {
+    try {
+      var p = aliveProcess();
+      if (p == null) {
+        launch();
+        return CompletableFuture.completedFuture(null);
+      }
+      if (cgroup != null) {
+        Files.writeString(cgroup.resolve("cgroup.freeze"), "0");
+        return awaitCgroupFrozen(false);
+      }
+      return signal(p, "CONT");
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> suspend() {
+    var p = aliveProcess();
+    if (p == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (cgroup == null) {
+      return signal(p, "STOP");
+    }
+    try {
+      Files.writeString(cgroup.resolve("cgroup.freeze"), "1");
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    var frozen = awaitCgroupFrozen(true);
+    if (reclaimer != null) {
+      // Can take a while for a large heap, and isn't needed to call the
+      // server suspended.
+      frozen.thenRunAsync(this::reclaimMemory, reclaimer);
+    }
+    return frozen;
+  }
+
+  /**
+   * Must hold this.
+   */
+  private void launch() throws IOException {
+    if (command.isEmpty()) {
+      throw new IOException("Server process is not running, and no command is configured to start it");
+    }
+    if (cgroup != null) {
+      // In case it was left frozen by a process that has since died.
+      Files.writeString(cgroup.resolve("cgroup.freeze"), "0");
+    }
+    var pb = new ProcessBuilder(command).redirectErrorStream(true);
+    if (workingDir != null) {
+      pb.directory(workingDir);
+    }
+    pb.redirectOutput(logFile != null ? ProcessBuilder.Redirect.appendTo(logFile) : ProcessBuilder.Redirect.DISCARD);
+    var p = pb.start().toHandle();
+    process = p;
+    logger.info(String.format("Started server process %d", p.pid()));
+    if (cgroup != null) {
+      // Anything it starts from now on ends up in the same group.
+      Files.writeString(cgroup.resolve("cgroup.procs"), Long.toString(p.pid()));
+    }
+    if (pidFile != null) {
+      PidFile.save(pidFile.toPath(), p);
+    }
+  }
+
+  /**
+   * Completes once the kernel reports the group as (un)frozen, which happens
+   * once every task in it has stopped or started running again.
+   */
+  private CompletableFuture<Void> awaitCgroupFrozen(boolean want) {
+    var res = new CompletableFuture<Void>();
+    long deadline = System.nanoTime() + freezeTimeout.toNanos();
+    var poll = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (readCgroupFrozen() == want) {
+            res.complete(null);
+          } else if (System.nanoTime() > deadline) {
+            res.completeExceptionally(new TimeoutException(String.format("cgroup %s not %s after %d ms", cgroup,
+                want ? "frozen" : "thawed", freezeTimeout.toMillis())));
+          } else {
+            scheduler.schedule(this, FREEZE_POLL_MS, TimeUnit.MILLISECONDS);
+          }
+        } catch (IOException | RuntimeException e) {
+          res.completeExceptionally(e);
+        }
+      }
+    };
+    poll.run();
+    return res;
+  }
+
+  /**
+   * Sends a signal to the process and all its descendants, children first
+   * when stopping so that none of them notice the parent stop.
+   */
+  private static CompletableFuture<Void> signal(ProcessHandle p, String signal) {
+    var args = new ArrayList<String>();
+    args.add("kill");
+    args.add("-" + signal);
+    p.descendants().forEach(d -> args.add(Long.toString(d.pid())));
+    args.add(Long.toString(p.pid()));
+    try {
+      return new ProcessBuilder(args).redirectErrorStream(true).start().onExit().thenAccept(kill -> {
+        if (kill.exitValue() != 0) {
+          throw new RuntimeException(String.format("kill -%s %d exited with %d", signal, p.pid(), kill.exitValue()));
+        }
+      });
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private static long readLong(Path file) throws IOException {
+    return Long.parseLong(Files.readString(file).trim());
+  }
+
+  /**
+   * Asks the kernel to swap out everything the frozen group uses.
+   */
+  private void reclaimMemory() {
+    var current = cgroup.resolve("memory.current");
+    try {
+      long before = readLong(current);
+      try {
+        Files.writeString(cgroup.resolve("memory.reclaim"), Long.toString(before));
+      } catch (IOException e) {
+        // Fails with EAGAIN if it couldn't reclaim all of it, which is
+        // expected, e.g. without enough swap.
+      }
+      long after = readLong(current);
+      logger.info(String.format("Reclaimed %d MiB from %s, %d MiB left", (before - after) >> 20, cgroup,
+          after >> 20));
+    } catch (IOException | NumberFormatException e) {
+      logger.warning(String.format("Unable to reclaim memory from %s: %s", cgroup, e));
+    }
+  }
+
+  /**
+   * Lets the process run again, so that it isn't left frozen without anyone
+   * to thaw it.
+   */
+  @Override
+  public synchronized void close() {
+    if (stopped) {
+      return;
+    }
+    stopped = true;
+    if (reclaimer != null) {
+      reclaimer.shutdownNow();
+    }
+    var p = aliveProcess();
+    if (p == null) {
+      return;
+    }
+    try {
+      if (cgroup != null) {
+        Files.writeString(cgroup.resolve("cgroup.freeze"), "0");
+      } else {
+        signal(p, "CONT").get(5, TimeUnit.SECONDS);
+      }
+    } catch (Exception e) {
+      logger.warning(String.format("Unable to thaw server process %d: %s", p.pid(), e));
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A minimal metrics registry, rendered in the Prometheus text format by
+ * {@link MetricsServer}.
+ *
+ * Recording (incrementing a counter or observing a histogram value) only
+ * touches preallocated atomics, so it is safe to do on hot paths. Gauges are
+ * computed when scraped.
+ */
+public class Metrics {
+  /**
+   * Bucket upper bounds, in seconds, for all duration histograms. Covers
+   * everything from a fast API call to a slow resume.
+   */
+  public static final double[] DURATION_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 20, 30, 60, 120, 300 };
+
+  private interface Sample {
+    void write(StringBuilder out, String name, String labels);
+  }
+
+  private static final class Family {
+    final String help;
+    final String type;
+    final List<Sample> samples = new ArrayList<>();
+    final List<String> labels = new ArrayList<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  public static final class Counter implements Sample {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+      value.increment();
+    }
+
+    public long get() {
+      return value.sum();
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      writeSample(out, name, labels, value.sum());
+    }
+  }
+
+  public static final class Histogram implements Sample {
+    private final double[] bounds;
+    private final long[] boundsNanos;
+    /**
+     * Per-bucket (not cumulative) counts, with one extra for +Inf.
+     */
+    private final AtomicLongArray counts;
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    private Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.boundsNanos = new long[bounds.length];
+      for (int i = 0; i < bounds.length; i++) {
+        this.boundsNanos[i] = (long) (bounds[i] * 1e9);
+      }
+      this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void observeNanos(long nanos) {
+      int i = 0;
+      while (i < boundsNanos.length && nanos > boundsNanos[i]) {
+        i++;
+      }
+      counts.incrementAndGet(i);
+      sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Observes the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void observeSince(long startNanos) {
+      observeNanos(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      long cumulative = 0;
+      String sep = labels.isEmpty() ? "" : ",";
+      for (int i = 0; i < bounds.length; i++) {
+        cumulative += counts.get(i);
+        writeSample(out, name + "_bucket", labels + sep + "le=\"" + bounds[i] + "\"", cumulative);
+      }
+      cumulative += counts.get(bounds.length);
+      writeSample(out, name + "_bucket", labels + sep + "le=\"+Inf\"", cumulative);
+      writeSample(out, name + "_sum", labels, sumNanos.get() / 1e9);
+      writeSample(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  // Guarded by this
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * Formats label pairs, e.g. {@code labels("server", "lobby")}.
+   */
+  public static String labels(String... kv) {
+    var sb = new StringBuilder();
+    for (int i = 0; i + 1 < kv.length; i += 2) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(kv[i]).append("=\"");
+      var v = kv[i + 1];
+      for (int j = 0; j < v.length(); j++) {
+        char c = v.charAt(j);
+        if (c == '\\' || c == '"') {
+          sb.append('\\').append(c);
+        } else if (c == '\n') {
+          sb.append("\\n");
+        } else {
+          sb.append(c);
+        }
+      }
+      sb.append('"');
+    }
+    return sb.toString();
+  }
+
+  private synchronized void register(String name, String help, String type, String labels, Sample sample) {
+    var family = families.computeIfAbsent(name, k -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(String.format("Metric %s registered as both %s and %s", name, family.type, type));
+    }
+    family.samples.add(sample);
+    family.labels.add(labels);
+  }
+
+  public Counter counter(String name, String help, String labels) {
+    var c = new Counter();
+    register(name, help, "counter", labels, c);
+    return c;
+  }
+
+  /**
+   * A counter whose value is computed when scraped.
+   */
+  public void counter(String name, String help, String labels, DoubleSupplier value) {
+    register(name, help, "counter", labels, (out, n, l) -> writeSample(out, n, l, value.getAsDouble()));
+  }
+
+  public void gauge(String name, String help, String labels, DoubleSupplier value) {
+    register(name, help, "gauge", labels, (out, n, l) -> writeSample(out, n, l, value.getAsDouble()));
+  }
+
+  /**
+   * A histogram of durations, in seconds.
+   */
+  public Histogram histogram(String name, String help, String labels) {
+    var h = new Histogram(DURATION_BUCKETS);
+    register(name, help, "histogram", labels, h);
+    return h;
+  }
+
+  public synchronized String render() {
+    var out = new StringBuilder();
+    for (var e : families.entrySet()) {
+      var name = e.getKey();
+      var family = e.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (int i = 0; i < family.samples.size(); i++) {
+        family.samples.get(i).write(out, name, family.labels.get(i));
+      }
+    }
+    return out.toString();
+  }
+
+  private static void writeSample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+}
@@ -0,0 +1,54 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Serves {@link Metrics} over HTTP at /metrics, for Prometheus to scrape.
+ * Listens on localhost by default.
+ */
+public class MetricsServer {
+  private final HttpServer server;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.METRICS_ENABLED, false);
+    cfg.set(ConfigKeys.METRICS_BIND, "127.0.0.1");
+    cfg.set(ConfigKeys.METRICS_PORT, 9464);
+    return cfg;
+  }
+
+  public MetricsServer(Configuration config, Metrics metrics, Executor executor, Logger logger) throws IOException {
+    var addr = new InetSocketAddress(config.getString(ConfigKeys.METRICS_BIND, "127.0.0.1"),
+        config.getInt(ConfigKeys.METRICS_PORT, 9464));
+    this.server = HttpServer.create(addr, 0);
+    this.server.createContext("/metrics", exchange -> {
+      try (exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+          exchange.sendResponseHeaders(405, -1);
+          return;
+        }
+        var body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+      } catch (Exception e) {
+        logger.warning(String.format("Error serving metrics: %s", e));
+      }
+    });
+    this.server.setExecutor(executor);
+    this.server.start();
+    logger.info(String.format("Serving metrics on http://%s:%d/metrics", addr.getHostString(), addr.getPort()));
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+}
@@ -0,0 +1,63 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.logging.Logger;
+
+/**
+ * A file holding the id of a server process, so that it can be found again
+ * after the proxy restarts. Process ids get reused, after a reboot or once
+ * they wrap around, so the process's start time is kept next to it, and a
+ * process that started at a different time is not the server.
+ */
+final class PidFile {
+  private PidFile() {
+  }
+
+  private static Instant startTime(ProcessHandle p) {
+    return p.info().startInstant().orElse(null);
+  }
+
+  /**
+   * @return the process, or null if it isn't running any more. A pid file that
+   *         doesn't match a running process is deleted.
+   */
+  static ProcessHandle load(Path file, Logger logger) {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try {
+      var fields = Files.readString(file).trim().split("\\s+");
+      long pid = Long.parseLong(fields[0]);
+      var started = fields.length > 1 ? Instant.ofEpochMilli(Long.parseLong(fields[1])) : null;
+      var p = ProcessHandle.of(pid).filter(ProcessHandle::isAlive).orElse(null);
+      if (p != null && started != null && started.equals(startTime(p))) {
+        return p;
+      }
+      if (p != null) {
+        logger.warning(String.format("Process %d from %s started at a different time, so it isn't the server",
+            pid, file));
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warning(String.format("Unable to read pid file %s: %s", file, e));
+    }
+    delete(file, logger);
+    return null;
+  }
+
+  static void save(Path file, ProcessHandle p) throws IOException {
+    var started = startTime(p);
+    Files.writeString(file, started == null ? Long.toString(p.pid())
+        : String.format("%d %d", p.pid(), started.toEpochMilli()));
+  }
+
+  private static void delete(Path file, Logger logger) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to delete pid file %s: %s", file, e));
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Per-address token bucket for server list pings. Scanners ping every address
+ * on the internet constantly; pings over the limit are still answered, but
+ * skip everything that could cost more than a cached description, or are
+ * dropped altogether if so configured.
+ */
+public class PingLimiter {
+  private static final int MAX_TRACKED_ADDRESSES = 10000;
+  private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+
+  private final boolean enabled;
+  private final boolean dropExcess;
+  private final double burst;
+  /**
+   * Tokens regained per nanosecond.
+   */
+  private final double refillRate;
+  private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+  private final Metrics.Counter allowed, limited;
+
+  private final class Bucket {
+    // Guarded by this
+    private double tokens = burst;
+    private long updatedNanos;
+
+    Bucket(long now) {
+      this.updatedNanos = now;
+    }
+
+    synchronized boolean take(long now) {
+      refill(now);
+      if (tokens < 1) {
+        return false;
+      }
+      tokens -= 1;
+      return true;
+    }
+
+    synchronized boolean isFull(long now) {
+      refill(now);
+      return tokens >= burst;
+    }
+
+    private void refill(long now) {
+      tokens = Math.min(burst, tokens + (now - updatedNanos) * refillRate);
+      updatedNanos = now;
+    }
+  }
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.PING_LIMIT_ENABLED, true);
+    cfg.set(ConfigKeys.PING_LIMIT_PER_MINUTE, 30);
+    cfg.set(ConfigKeys.PING_LIMIT_BURST, 10);
+    cfg.set(ConfigKeys.PING_LIMIT_DROP, false);
+    return cfg;
+  }
+
+  public PingLimiter(Configuration config, Metrics metrics) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.enabled = config.getBoolean(ConfigKeys.PING_LIMIT_ENABLED, true);
+    this.dropExcess = config.getBoolean(ConfigKeys.PING_LIMIT_DROP, false);
+    this.burst = Math.max(1, config.getInt(ConfigKeys.PING_LIMIT_BURST, 10));
+    this.refillRate = Math.max(0, config.getInt(ConfigKeys.PING_LIMIT_PER_MINUTE, 30)) / (double) NANOS_PER_MINUTE;
+    var name = "autosuspend_pings_total";
+    var help = "Server list pings for managed servers, by whether they were within the rate limit.";
+    this.allowed = metrics.counter(name, help, Metrics.labels("result", "allowed"));
+    this.limited = metrics.counter(name, help, Metrics.labels("result", "limited"));
+  }
+
+  /**
+   * @param now {@link System#nanoTime()}
+   * @return whether a ping from the given address is within the limit.
+   */
+  public boolean tryAcquire(InetAddress from, long now) {
+    if (!enabled || from == null) {
+      allowed.inc();
+      return true;
+    }
+    var bucket = buckets.get(from);
+    if (bucket == null) {
+      if (buckets.size() >= MAX_TRACKED_ADDRESSES) {
+        evictIdle(now);
+      }
+      bucket = buckets.computeIfAbsent(from, k -> new Bucket(now));
+    }
+    if (bucket.take(now)) {
+      allowed.inc();
+      return true;
+    }
+    limited.inc();
+    return false;
+  }
+
+  /**
+   * Forgets addresses whose bucket has filled up again, which behave the same
+   * as addresses never seen. If that isn't enough, forgets everyone.
+   */
+  private void evictIdle(long now) {
+    buckets.values().removeIf(b -> b.isFull(now));
+    if (buckets.size() >= MAX_TRACKED_ADDRESSES) {
+      buckets.clear();
+    }
+  }
+
+  /**
+   * Whether pings over the limit should be dropped rather than answered.
+   */
+  public boolean dropsExcess() {
+    return dropExcess;
+  }
+}
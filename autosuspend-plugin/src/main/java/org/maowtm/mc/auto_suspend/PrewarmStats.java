@@ -0,0 +1,78 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit/miss accounting for resumes done ahead of any actual join. A window opens
+ * when such a resume is started and closes when the server suspends again; it
+ * counts as a hit if anyone joined in between.
+ */
+public class PrewarmStats {
+  private final AtomicLong triggered = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong missedRunningMillis = new AtomicLong();
+  /**
+   * Start of the current window, null if none. Guarded by this.
+   */
+  private Instant windowStart = null;
+  private boolean windowHit = false;
+
+  public synchronized boolean isWindowOpen() {
+    return windowStart != null;
+  }
+
+  public synchronized void open(Instant now) {
+    if (windowStart != null) {
+      return;
+    }
+    windowStart = now;
+    windowHit = false;
+    triggered.incrementAndGet();
+  }
+
+  public synchronized void onJoin() {
+    if (windowStart != null && !windowHit) {
+      windowHit = true;
+      hits.incrementAndGet();
+    }
+  }
+
+  /**
+   * Closes the current window, if any, and accounts the running time if nobody
+   * came.
+   */
+  public synchronized void close(Instant now) {
+    if (windowStart == null) {
+      return;
+    }
+    if (!windowHit) {
+      missedRunningMillis.addAndGet(Duration.between(windowStart, now).toMillis());
+    }
+    windowStart = null;
+  }
+
+  public long getTriggered() {
+    return triggered.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Total time the server spent running because of resumes that nobody
+   * followed up on.
+   */
+  public Duration getMissedRunningTime() {
+    return Duration.ofMillis(missedRunningMillis.get());
+  }
+
+  @Override
+  public String toString() {
+    long t = getTriggered(), h = getHits();
+    return String.format("%d early resumes, %d hits (%.0f%%), %d min of unused running time", t, h,
+        t == 0 ? 0.0 : 100.0 * h / t, getMissedRunningTime().toMinutes());
+  }
+}
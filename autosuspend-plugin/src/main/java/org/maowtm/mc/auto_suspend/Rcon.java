@@ -0,0 +1,233 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * A minimal non-blocking RCON client, for running commands on a backend that
+ * has {@code enable-rcon} set. Each {@link #run} opens a connection, logs in,
+ * runs the commands one after another and closes it again.
+ */
+public class Rcon {
+  private static final int TYPE_COMMAND = 2;
+  private static final int TYPE_LOGIN = 3;
+  /**
+   * Id, type and the two terminating nulls.
+   */
+  private static final int MIN_PACKET_LENGTH = 10;
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final String host;
+  private final int port;
+  private final String password;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.RCON_HOST, "");
+    cfg.set(ConfigKeys.RCON_PORT, 25575);
+    cfg.set(ConfigKeys.RCON_PASSWORD, "");
+    return cfg;
+  }
+
+  /**
+   * @param backend the backend's address, used for the host if none is
+   *                configured.
+   */
+  public Rcon(Configuration config, SocketAddress backend) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    var host = config.getString(ConfigKeys.RCON_HOST, "");
+    if (host.isEmpty() && backend instanceof InetSocketAddress) {
+      host = ((InetSocketAddress) backend).getHostString();
+    }
+    this.host = host;
+    this.port = config.getInt(ConfigKeys.RCON_PORT, 25575);
+    this.password = config.getString(ConfigKeys.RCON_PASSWORD, "");
+  }
+
+  public boolean isConfigured() {
+    return !host.isEmpty() && !password.isEmpty();
+  }
+
+  /**
+   * Runs the given commands in order.
+   *
+   * @return a future completed with the response to each command, or completed
+   *         exceptionally on any connection error, refused login or timeout.
+   *         Cancelling it closes the connection.
+   */
+  public CompletableFuture<List<String>> run(List<String> commands, Duration timeout,
+      ScheduledExecutorService scheduler) {
+    var result = new CompletableFuture<List<String>>();
+    final AsynchronousSocketChannel ch;
+    try {
+      ch = AsynchronousSocketChannel.open();
+    } catch (IOException e) {
+      result.completeExceptionally(e);
+      return result;
+    }
+    var timeoutTask = scheduler.schedule(() -> {
+      result.completeExceptionally(new TimeoutException(String.format("RCON commands did not finish within %s",
+          timeout)));
+    }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+    result.whenComplete((v, e) -> {
+      timeoutTask.cancel(false);
+      try {
+        ch.close();
+      } catch (IOException ignored) {
+      }
+    });
+
+    var session = new Session(ch);
+    var responses = new ArrayList<String>(commands.size());
+    // Resolve again every time, in case the address changes while the backend
+    // is suspended.
+    var connected = new CompletableFuture<Void>();
+    try {
+      ch.connect(new InetSocketAddress(host, port), null, handler(connected));
+    } catch (RuntimeException e) {
+      // e.g. UnresolvedAddressException. Completing result closes the channel.
+      result.completeExceptionally(e);
+      return result;
+    }
+    var chain = connected.thenCompose(v -> session.send(TYPE_LOGIN, password)).thenAccept(p -> {
+      if (p.id == -1) {
+        throw new CompletionException(new IOException("RCON login refused, check the password"));
+      }
+    });
+    for (var command : commands) {
+      chain = chain.thenCompose(v -> session.send(TYPE_COMMAND, command)).thenAccept(p -> responses.add(p.body));
+    }
+    chain.whenComplete((v, e) -> {
+      if (e == null) {
+        result.complete(responses);
+      } else {
+        result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Like {@link #run}, for when only whether the commands succeeded matters.
+   *
+   * @return a future completed with the time the commands took.
+   */
+  public CompletableFuture<Duration> runTimed(List<String> commands, Duration timeout,
+      ScheduledExecutorService scheduler) {
+    long start = System.nanoTime();
+    var responses = run(commands, timeout, scheduler);
+    var result = responses.thenApply(r -> Duration.ofNanos(System.nanoTime() - start));
+    result.whenComplete((v, err) -> responses.cancel(false));
+    return result;
+  }
+
+  private static <V> CompletionHandler<V, Void> handler(CompletableFuture<V> f) {
+    return new CompletionHandler<>() {
+      @Override
+      public void completed(V v, Void a) {
+        f.complete(v);
+      }
+
+      @Override
+      public void failed(Throwable e, Void a) {
+        f.completeExceptionally(e);
+      }
+    };
+  }
+
+  private static final class Packet {
+    final int id;
+    final String body;
+
+    Packet(int id, String body) {
+      this.id = id;
+      this.body = body;
+    }
+  }
+
+  /**
+   * One connection. Requests are sent one at a time, each after the previous
+   * one's response has been read.
+   */
+  private static final class Session {
+    private final AsynchronousSocketChannel ch;
+    /**
+     * Bytes read but not yet consumed, in write mode.
+     */
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private int nextId = 1;
+
+    Session(AsynchronousSocketChannel ch) {
+      this.ch = ch;
+    }
+
+    /**
+     * @return the response to the request. Login responses have id -1 if the
+     *         password was wrong.
+     */
+    CompletableFuture<Packet> send(int type, String body) {
+      int id = nextId++;
+      var bytes = body.getBytes(StandardCharsets.UTF_8);
+      var out = ByteBuffer.allocate(4 + MIN_PACKET_LENGTH + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+      out.putInt(MIN_PACKET_LENGTH + bytes.length).putInt(id).putInt(type).put(bytes).put((byte) 0).put((byte) 0);
+      return write(out.flip()).thenCompose(v -> awaitResponse(id));
+    }
+
+    private CompletableFuture<Void> write(ByteBuffer b) {
+      var written = new CompletableFuture<Integer>();
+      ch.write(b, null, handler(written));
+      return written.thenCompose(n -> b.hasRemaining() ? write(b) : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Skips anything left over from earlier requests, such as the empty packet
+     * some servers send before a login response, or the rest of a response
+     * that was split into several packets.
+     */
+    private CompletableFuture<Packet> awaitResponse(int id) {
+      return readPacket().thenCompose(p -> p.id == id || p.id == -1 ? CompletableFuture.completedFuture(p)
+          : awaitResponse(id));
+    }
+
+    private CompletableFuture<Packet> readPacket() {
+      var view = in.duplicate().flip().order(ByteOrder.LITTLE_ENDIAN);
+      if (view.remaining() >= 4) {
+        int length = view.getInt();
+        if (length < MIN_PACKET_LENGTH || length > BUFFER_SIZE - 4) {
+          return CompletableFuture.failedFuture(new IOException("Malformed RCON packet"));
+        }
+        if (view.remaining() >= length) {
+          int id = view.getInt();
+          view.getInt(); // type
+          var body = new String(view.array(), view.position(), length - MIN_PACKET_LENGTH, StandardCharsets.UTF_8);
+          in.flip().position(4 + length);
+          in.compact();
+          return CompletableFuture.completedFuture(new Packet(id, body));
+        }
+      }
+      var read = new CompletableFuture<Integer>();
+      ch.read(in, null, handler(read));
+      return read.thenCompose(n -> n < 0
+          ? CompletableFuture.failedFuture(new IOException("Connection closed before RCON response"))
+          : readPacket());
+    }
+  }
+}
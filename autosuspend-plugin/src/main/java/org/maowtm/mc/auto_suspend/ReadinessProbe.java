@@ -0,0 +1,71 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.net.InetSocketAddress;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Repeatedly pings a backend with {@link StatusPing} until it answers. Retries
+ * start almost immediately and back off, so a backend that comes up quickly is
+ * noticed within tens of milliseconds without hammering one that takes a while.
+ */
+public class ReadinessProbe {
+  private static final Duration INITIAL_BACKOFF = Duration.ofMillis(50);
+  private static final Duration MAX_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration ATTEMPT_TIMEOUT = Duration.ofSeconds(2);
+
+  private final InetSocketAddress target;
+  private final ScheduledExecutorService scheduler;
+  private final Clock clock;
+
+  public ReadinessProbe(InetSocketAddress target, ScheduledExecutorService scheduler, Clock clock) {
+    this.target = target;
+    this.scheduler = scheduler;
+    this.clock = clock;
+  }
+
+  /**
+   * @return a future completed with the time it took for the backend to answer,
+   *         or completed exceptionally with a {@link TimeoutException} if it
+   *         didn't within the given time.
+   */
+  public CompletableFuture<Duration> awaitReady(Duration timeout) {
+    var result = new CompletableFuture<Duration>();
+    var start = clock.instant();
+    attempt(result, start, start.plus(timeout), INITIAL_BACKOFF);
+    return result;
+  }
+
+  private void attempt(CompletableFuture<Duration> result, Instant start, Instant giveUpAt, Duration backoff) {
+    if (result.isDone()) {
+      return;
+    }
+    // Resolve again every time, in case the address changes while the backend
+    // is coming up.
+    var addr = new InetSocketAddress(target.getHostString(), target.getPort());
+    StatusPing.ping(addr, ATTEMPT_TIMEOUT, scheduler).whenComplete((v, err) -> {
+      var now = clock.instant();
+      if (err == null) {
+        result.complete(Duration.between(start, now));
+        return;
+      }
+      if (!now.plus(backoff).isBefore(giveUpAt)) {
+        result.completeExceptionally(new TimeoutException(String.format(
+            "%s did not answer a status ping within %s: %s", target, Duration.between(start, giveUpAt), err)));
+        return;
+      }
+      var next = backoff.multipliedBy(2);
+      if (next.compareTo(MAX_BACKOFF) > 0) {
+        next = MAX_BACKOFF;
+      }
+      final var nextBackoff = next;
+      scheduler.schedule(() -> attempt(result, start, giveUpAt, nextBackoff), backoff.toMillis(),
+          TimeUnit.MILLISECONDS);
+    });
+  }
+}
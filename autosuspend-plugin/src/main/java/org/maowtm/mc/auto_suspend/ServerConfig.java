@@ -0,0 +1,41 @@
+package org.maowtm.mc.auto_suspend;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Config for a single managed server. Keys missing from the server's own
+ * section under {@code servers} fall back to the top-level config, so a
+ * single-server setup is just a {@code ServerConfig} with no section.
+ */
+public class ServerConfig {
+  private final Configuration section;
+  private final Configuration global;
+
+  public ServerConfig(Configuration section, Configuration global) {
+    this.section = section;
+    this.global = global;
+  }
+
+  private Configuration pick(String key) {
+    if (section != null && section.contains(key)) {
+      return section;
+    }
+    return global;
+  }
+
+  public boolean contains(String key) {
+    return pick(key).contains(key);
+  }
+
+  public int getInt(String key) {
+    return pick(key).getInt(key);
+  }
+
+  public String getString(String key) {
+    return pick(key).getString(key);
+  }
+
+  public Configuration getSection(String key) {
+    return pick(key).getSection(key);
+  }
+}
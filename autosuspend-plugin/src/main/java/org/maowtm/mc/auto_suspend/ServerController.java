@@ -1,7 +1,44 @@
 package org.maowtm.mc.auto_suspend;
 
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resumes and suspends the machine behind a server. Every call returns as soon
+ * as the operation has been started, with a future that completes once it is
+ * done, so that no thread waits on it. Futures may complete on any thread.
+ */
 public interface ServerController {
-  public ServerStateManager.State checkState();
-  public void resume() throws Exception;
-  public void suspend() throws Exception;
+  public CompletableFuture<ServerStateManager.State> checkState();
+
+  public CompletableFuture<Void> resume();
+
+  public CompletableFuture<Void> suspend();
+
+  /**
+   * Whether {@link #stop} and {@link #start} are supported.
+   */
+  public default boolean canStop() {
+    return false;
+  }
+
+  /**
+   * Shuts a suspended machine down entirely, discarding its memory, after
+   * which {@link #checkState} reports it as stopped.
+   */
+  public default CompletableFuture<Void> stop() {
+    return CompletableFuture.failedFuture(new UnsupportedOperationException("Stopping is not supported"));
+  }
+
+  /**
+   * Boots a stopped machine.
+   */
+  public default CompletableFuture<Void> start() {
+    return CompletableFuture.failedFuture(new UnsupportedOperationException("Stopping is not supported"));
+  }
+
+  /**
+   * Called when the plugin is disabled.
+   */
+  public default void close() {
+  }
 }
@@ -0,0 +1,188 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * A set of identical backing servers behind one logical server. Each member is
+ * a server with its own {@link ServerStateManager} and controller, which
+ * suspends it once it has been empty for long enough as usual. On top of that
+ * the pool decides which member a join goes to, and resumes more members as
+ * players per running member cross a threshold.
+ *
+ * Joins go to the running member with the most players that is still under
+ * the threshold, so that the rest drain and get suspended once load drops. If
+ * none is running, players are queued on one that is resuming, and moved over
+ * to whichever member is ready first.
+ */
+public class ServerPool {
+  private final String name;
+  private final List<ServerStateManager> members;
+  private final int playersPerInstance;
+  private final Duration scaleUpKeepAlive;
+  private final Logger logger;
+  private final Metrics.Counter scaleUps, handoffs;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.POOL_MEMBERS, List.of());
+    cfg.set(ConfigKeys.POOL_PLAYERS_PER_INSTANCE, 20);
+    cfg.set(ConfigKeys.POOL_SCALE_UP_KEEPALIVE_SECS, 600);
+    return cfg;
+  }
+
+  public ServerPool(String name, Configuration config, List<ServerStateManager> members, Metrics metrics,
+      Logger logger) {
+    this.name = name;
+    this.members = List.copyOf(members);
+    this.playersPerInstance = Math.max(1, config.getInt(ConfigKeys.POOL_PLAYERS_PER_INSTANCE, 20));
+    this.scaleUpKeepAlive = Duration.ofSeconds(config.getInt(ConfigKeys.POOL_SCALE_UP_KEEPALIVE_SECS, 600));
+    this.logger = logger;
+    this.scaleUps = metrics.counter("autosuspend_pool_scale_ups_total",
+        "Members resumed because the rest of the pool was full.", Metrics.labels("pool", name));
+    this.handoffs = metrics.counter("autosuspend_pool_handoffs_total",
+        "Queued players moved to a member that was ready sooner.", Metrics.labels("pool", name));
+    metrics.gauge("autosuspend_pool_active_members", "Members running or resuming.", Metrics.labels("pool", name),
+        this::activeMembers);
+  }
+
+  private static boolean isReady(ServerStateManager.Snapshot s) {
+    return s.state == State.RUNNING && s.backendReady;
+  }
+
+  /**
+   * Running, or on its way there.
+   */
+  private static boolean isActive(ServerStateManager.Snapshot s) {
+    return s.state == State.RUNNING || s.resuming;
+  }
+
+  /**
+   * @return the member a player joining the pool now should go to. Only looks
+   *         at snapshots, so it is cheap enough to call for every ping.
+   */
+  public ServerStateManager route() {
+    ServerStateManager packed = null, leastLoaded = null, comingUp = null, suspended = null, stopped = null;
+    int packedPlayers = -1, leastPlayers = Integer.MAX_VALUE;
+    for (var m : members) {
+      var s = m.getSnapshot();
+      if (isReady(s)) {
+        if (s.playerCount < playersPerInstance && s.playerCount > packedPlayers) {
+          packed = m;
+          packedPlayers = s.playerCount;
+        }
+        if (s.playerCount < leastPlayers) {
+          leastLoaded = m;
+          leastPlayers = s.playerCount;
+        }
+      } else if (isActive(s)) {
+        if (comingUp == null) {
+          comingUp = m;
+        }
+      } else if (s.state == State.SUSPENDED || s.reconciling) {
+        if (suspended == null) {
+          suspended = m;
+        }
+      } else if (s.state == State.STOPPED) {
+        if (stopped == null) {
+          stopped = m;
+        }
+      }
+    }
+    if (packed != null) {
+      return packed;
+    }
+    if (leastLoaded != null && comingUp == null) {
+      // Everyone is full, but a little more crowded beats waiting.
+      return leastLoaded;
+    }
+    if (comingUp != null) {
+      // Moved to another member if that one is ready first.
+      return comingUp;
+    }
+    if (suspended != null) {
+      return suspended;
+    }
+    if (stopped != null) {
+      // Slower to bring up than a suspended one.
+      return stopped;
+    }
+    return members.get(0);
+  }
+
+  /**
+   * Called (off the member's lock) whenever a member's snapshot changes or
+   * someone is queued on it. Moves queued players to members that are ready,
+   * then resumes another member if the active ones are full.
+   */
+  synchronized void memberChanged() {
+    for (var ready : members) {
+      var s = ready.getSnapshot();
+      if (!isReady(s)) {
+        continue;
+      }
+      int room = playersPerInstance - s.playerCount - ready.getQueueDepth();
+      for (var other : members) {
+        if (room <= 0) {
+          break;
+        }
+        if (other == ready || isReady(other.getSnapshot())) {
+          continue;
+        }
+        var moved = other.takeQueued(room);
+        if (moved.isEmpty()) {
+          continue;
+        }
+        logger.info(String.format("Moving %d queued players from %s to %s, which is ready first", moved.size(),
+            other.getTargetServer(), ready.getTargetServer()));
+        for (var p : moved) {
+          ready.enqueue(p);
+          handoffs.inc();
+        }
+        room -= moved.size();
+      }
+    }
+
+    int active = 0, load = 0;
+    ServerStateManager spare = null;
+    for (var m : members) {
+      var s = m.getSnapshot();
+      load += s.playerCount + m.getQueueDepth();
+      if (isActive(s)) {
+        active++;
+      } else if (!s.reconciling && s.state.isAsleep()
+          && (spare == null || spare.getState() == State.STOPPED && s.state == State.SUSPENDED)) {
+        spare = m;
+      }
+    }
+    if (active > 0 && spare != null && load >= active * playersPerInstance) {
+      logger.info(String.format("Pool %s has %d players on %d members, resuming %s", name, load, active,
+          spare.getTargetServer()));
+      scaleUps.inc();
+      spare.scaleUp(scaleUpKeepAlive);
+    }
+  }
+
+  private double activeMembers() {
+    int active = 0;
+    for (var m : members) {
+      if (isActive(m.getSnapshot())) {
+        active++;
+      }
+    }
+    return active;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public List<ServerStateManager> getMembers() {
+    return members;
+  }
+}
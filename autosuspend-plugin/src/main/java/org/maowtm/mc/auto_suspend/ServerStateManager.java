@@ -1,78 +1,742 @@
 package org.maowtm.mc.auto_suspend;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import java.util.function.Supplier;
 
 import net.md_5.bungee.api.ChatColor;
-import net.md_5.bungee.api.ServerConnectRequest;
 import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
-import net.md_5.bungee.api.event.ServerConnectEvent.Reason;
 
-public class ServerStateManager implements Runnable {
+public class ServerStateManager {
+  /**
+   * Guards all mutable state below. Never held across a controller call.
+   */
   private final Lock l = new ReentrantLock();
   private final AutoSuspend plugin;
   private final String targetServer;
   private final ServerInfo serverInfo;
+  private final ServerConfig config;
+  private final Clock clock;
   private volatile boolean stopped = false;
-  private ArrayList<ProxiedPlayer> queue = new ArrayList<>();
-  private Instant lastPlayerActive = Instant.now();
+  private ScheduledExecutorService scheduler;
+  /**
+   * Wakeups for things that change on their own with time. Anything else that
+   * can affect the state (joins, leaves, keepalive commands) calls
+   * {@link #requestUpdate()} directly, so nothing here polls.
+   */
+  private Deadline sleepDeadline, statusCheckDeadline, keepAliveDeadline, prewarmDeadline, admissionDeadline,
+      progressDeadline, hibernateDeadline;
+  /**
+   * Number of update requests not yet served. Whoever bumps this from zero
+   * submits the update task, so at most one update runs at a time.
+   */
+  private final AtomicInteger pendingUpdates = new AtomicInteger();
+  private final Set<UUID> connectedPlayers = ConcurrentHashMap.newKeySet();
+  private final AdmissionController queue;
+  private final WaitingRoom waitingRoom;
+  /**
+   * Where players joining the proxy wait for the server, or null to keep them
+   * on the loading screen.
+   */
+  private final ServerInfo holdingServer;
+  private Instant lastPlayerActive;
   private int lastPlayerCount = 0;
   private final ServerController controller;
-  private Duration statusCheckInterval;
-  private Instant lastStatusCheck = Instant.now();
+  /**
+   * Status checks start at statusCheckInterval after a state change and back
+   * off up to statusCheckMaxInterval while nothing changes.
+   */
+  private final Duration statusCheckInterval, statusCheckMaxInterval;
+  private Duration currentStatusCheckInterval;
+  private final AdaptiveSleepDelay sleepDelay;
+  private final Hibernation hibernation;
+  private Instant lastStatusCheck = Instant.MIN;
   private Instant keepAliveUntil = null;
-  private HttpClient webhookClient;
+  private final SpeculativeResume speculative;
+  /**
+   * Keepalive set by a speculative resume. Kept apart from
+   * {@link #keepAliveUntil} so that it never shortens an admin's keepalive.
+   */
+  private Instant speculativeUntil = null;
+  private final JoinPredictor predictor;
+  /**
+   * Stats of whichever early resume is keeping the server up, if any.
+   */
+  private volatile PrewarmStats activeWindow = null;
+  /**
+   * Whether the backend has answered a status ping, and been warmed up, since
+   * it last became RUNNING. Players are only sent over once it has.
+   */
+  private boolean backendReady = false;
+  private final InetSocketAddress readinessTarget;
+  private ReadinessProbe readinessProbe = null;
+  private final Duration readinessTimeout;
+  private CompletableFuture<Duration> readinessCheck = null;
+  private final Rcon rcon;
+  private final WarmUp warmUp;
+  /**
+   * Set when the server comes back up from being suspended or stopped, until
+   * it has been warmed up.
+   */
+  private boolean warmUpPending = false;
+  private final PreSuspend preSuspend;
+  /**
+   * Whether the pre-suspend commands ran before the server was last suspended
+   * by us, or null if it wasn't (or has been resumed since).
+   */
+  private Boolean lastSuspendPrepared = null;
+  /**
+   * The resume or suspend in progress, if any. Nothing else is started until
+   * it finishes, but joins, leaves and keepalives are still taken note of in
+   * the meantime, and acted on as soon as it does.
+   */
+  private CompletableFuture<?> operation = null;
+  /**
+   * Set from when a resume is asked for until it finishes.
+   */
+  private boolean resuming = false;
+  /**
+   * The pool this server is a member of, if any.
+   */
+  private volatile ServerPool pool = null;
+  /**
+   * The status check in progress, if any.
+   */
+  private CompletableFuture<State> statusCheck = null;
+  private final WebhookDispatcher webhook;
+  private final boolean webhookIncludeUser;
+  private final Metrics.Histogram resumeToRunning, resumeToReady, resumeToFirstPlayer, suspendTime, warmUpTime,
+      preSuspendTime;
+  private final Metrics.Counter warmUpErrors, preSuspendErrors;
+  /**
+   * Indexed by from.ordinal() * number of states + to.ordinal().
+   */
+  private final Metrics.Counter[] transitions;
+  private final long[] nanosInState;
+  private long stateSinceNanos = System.nanoTime();
+  /**
+   * {@link System#nanoTime()} at which the current resume was requested, or 0
+   * if not resuming or the backend is already ready.
+   */
+  private long resumeStartNanos = 0;
+  /**
+   * Like {@link #resumeStartNanos}, but kept until the first queued player
+   * arrives. Read without the lock on player connect.
+   */
+  private final AtomicLong firstPlayerPendingSince = new AtomicLong();
 
   public static enum State {
     NOT_READY,
     RUNNING,
-    SUSPENDED
+    SUSPENDED,
+    /**
+     * Shut down entirely. Cheaper to leave than SUSPENDED, but slower to bring
+     * back.
+     */
+    STOPPED;
+
+    /**
+     * Whether the server is down, but can be brought back up.
+     */
+    public boolean isAsleep() {
+      return this == SUSPENDED || this == STOPPED;
+    }
   }
 
   private State state = State.NOT_READY;
+  /**
+   * Set while {@link #state} is only a guess: after startup, where it is
+   * whatever was last seen before the proxy restarted, and after a failed
+   * suspend. Until the next status check, joins are held rather than let
+   * through or turned away.
+   */
+  private boolean reconciling = true;
+  private final File lastKnownFile;
+  /**
+   * When a player was last on the server before the proxy restarted, until the
+   * first status check.
+   */
+  private Instant savedLastPlayerActive = null;
+
+  private static final Duration NOT_READY_RECHECK_INTERVAL = Duration.ofSeconds(5);
+  private static final long RESUME_POLL_INITIAL_MS = 500;
+  private static final long RESUME_POLL_MAX_MS = 5000;
 
-  public ServerStateManager(AutoSuspend plugin, String targetServer, ServerController controller) {
+  public ServerStateManager(AutoSuspend plugin, String targetServer, ServerConfig config,
+      ServerController controller) {
     this.plugin = plugin;
     this.targetServer = targetServer;
     this.serverInfo = plugin.getProxy().getServerInfo(targetServer);
+    this.config = config;
     this.controller = controller;
-    this.statusCheckInterval = Duration.ofSeconds(plugin.getConfig().getInt(ConfigKeys.STATUS_CHECK_INTERVAL_SECS));
-    this.webhookClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(10000)).build();
+    this.clock = plugin.getClock();
+    this.lastPlayerActive = clock.instant();
+    this.statusCheckInterval = Duration.ofSeconds(config.getInt(ConfigKeys.STATUS_CHECK_INTERVAL_SECS));
+    var maxInterval = Duration.ofSeconds(config.getInt(ConfigKeys.STATUS_CHECK_MAX_INTERVAL_SECS));
+    this.statusCheckMaxInterval = maxInterval.compareTo(statusCheckInterval) > 0 ? maxInterval : statusCheckInterval;
+    this.currentStatusCheckInterval = this.statusCheckInterval;
+    this.sleepDelay = new AdaptiveSleepDelay(config.getSection(ConfigKeys.ADAPTIVE_SLEEP),
+        Duration.ofSeconds(config.getInt(ConfigKeys.SLEEP_DELAY_SECS)));
+    this.hibernation = new Hibernation(config.getSection(ConfigKeys.HIBERNATE));
+    this.queue = new AdmissionController(config.getSection(ConfigKeys.ADMISSION));
+    this.waitingRoom = new WaitingRoom(targetServer, clock);
+    this.waitingRoom.setExpectedResumeTime(State.STOPPED, this.hibernation.expectedStartTime(null));
+    var holdingServerName = config.getString(ConfigKeys.HOLDING_SERVER);
+    if (holdingServerName != null && !holdingServerName.isEmpty()) {
+      this.holdingServer = plugin.getProxy().getServerInfo(holdingServerName);
+      if (this.holdingServer == null) {
+        plugin.getLogger().warning(String.format("Holding server %s does not exist", holdingServerName));
+      }
+    } else {
+      this.holdingServer = null;
+    }
+    this.speculative = new SpeculativeResume(config.getSection(ConfigKeys.SPECULATIVE));
+    this.predictor = new JoinPredictor(config.getSection(ConfigKeys.PREDICTOR),
+        new File(plugin.getDataFolder(), String.format("join-history-%s.bin", targetServer)), clock,
+        plugin.getLogger());
+    this.lastKnownFile = new File(plugin.getDataFolder(), String.format("last-state-%s.bin", targetServer));
+    var lastKnown = LastKnownState.load(this.lastKnownFile, plugin.getLogger());
+    if (lastKnown != null) {
+      plugin.getLogger().info(String.format("Server %s was %s as of %s, assuming it still is until checked",
+          targetServer, lastKnown.state, lastKnown.at));
+      this.state = lastKnown.state;
+      this.savedLastPlayerActive = lastKnown.lastPlayerActive;
+    }
+    this.readinessTimeout = Duration.ofSeconds(config.getInt(ConfigKeys.READINESS_TIMEOUT_SECS));
+    var addr = this.serverInfo.getSocketAddress();
+    if (!this.readinessTimeout.isZero() && addr instanceof InetSocketAddress) {
+      this.readinessTarget = (InetSocketAddress) addr;
+    } else {
+      this.readinessTarget = null;
+    }
+    this.rcon = new Rcon(config.getSection(ConfigKeys.RCON), addr);
+    this.warmUp = new WarmUp(config.getSection(ConfigKeys.WARM_UP), this.rcon);
+    if (!this.warmUp.getCommands().isEmpty() && !this.rcon.isConfigured()) {
+      plugin.getLogger().warning(String.format("Warm-up commands for %s need rcon.password set, not warming up",
+          targetServer));
+    }
+    this.preSuspend = new PreSuspend(config.getSection(ConfigKeys.PRE_SUSPEND), this.rcon);
+    if (config.contains(ConfigKeys.WEBHOOK)) {
+      var webhookConfig = config.getSection(ConfigKeys.WEBHOOK);
+      this.webhook = plugin.getWebhookDispatcher(webhookConfig);
+      this.webhookIncludeUser = webhookConfig.getBoolean(ConfigKeys.WEBHOOK_INCLUDE_USER, true);
+    } else {
+      this.webhook = null;
+      this.webhookIncludeUser = false;
+    }
+
+    var metrics = plugin.getMetrics();
+    var name = "autosuspend_resume_seconds";
+    var help = "Time from requesting a resume to reaching each phase.";
+    this.resumeToRunning = metrics.histogram(name, help, Metrics.labels("server", targetServer, "phase", "running"));
+    this.resumeToReady = metrics.histogram(name, help, Metrics.labels("server", targetServer, "phase", "ready"));
+    this.resumeToFirstPlayer = metrics.histogram(name, help,
+        Metrics.labels("server", targetServer, "phase", "first_player"));
+    this.suspendTime = metrics.histogram("autosuspend_suspend_seconds", "Time taken to suspend the server.",
+        Metrics.labels("server", targetServer));
+    this.warmUpTime = metrics.histogram("autosuspend_warm_up_seconds",
+        "Time taken by the warm-up commands after a resume.", Metrics.labels("server", targetServer));
+    this.warmUpErrors = metrics.counter("autosuspend_warm_up_errors_total",
+        "Warm-ups that failed or timed out.", Metrics.labels("server", targetServer));
+    this.preSuspendTime = metrics.histogram("autosuspend_pre_suspend_seconds",
+        "Time taken by the pre-suspend commands.", Metrics.labels("server", targetServer));
+    this.preSuspendErrors = metrics.counter("autosuspend_pre_suspend_errors_total",
+        "Pre-suspend commands that failed or timed out.", Metrics.labels("server", targetServer));
+    name = "autosuspend_pre_suspend_saved_seconds";
+    help = "Median suspend or resume time without the pre-suspend commands minus with them.";
+    metrics.gauge(name, help, Metrics.labels("server", targetServer, "operation", "suspend"),
+        () -> secondsOrNaN(preSuspend.getSuspendSaving()));
+    metrics.gauge(name, help, Metrics.labels("server", targetServer, "operation", "resume"),
+        () -> secondsOrNaN(preSuspend.getResumeSaving()));
+    registerPrewarmMetrics(metrics, "speculative", speculative.getStats());
+    registerPrewarmMetrics(metrics, "predictor", predictor.getStats());
+    var states = State.values();
+    this.nanosInState = new long[states.length];
+    this.transitions = new Metrics.Counter[states.length * states.length];
+    for (var from : states) {
+      for (var to : states) {
+        if (from != to) {
+          this.transitions[from.ordinal() * states.length + to.ordinal()] = metrics.counter(
+              "autosuspend_state_transitions_total", "State changes of the server.",
+              Metrics.labels("server", targetServer, "from", from.name(), "to", to.name()));
+        }
+      }
+      metrics.counter("autosuspend_state_seconds_total", "Time spent in each state.",
+          Metrics.labels("server", targetServer, "state", from.name()), () -> secondsInState(from));
+    }
+    metrics.gauge("autosuspend_queue_depth", "Players waiting for the server.", Metrics.labels("server", targetServer),
+        this::getQueueDepth);
+    publishSnapshot();
+    metrics.gauge("autosuspend_sleep_delay_seconds", "Current delay before suspending an empty server.",
+        Metrics.labels("server", targetServer), () -> sleepDelay.getDelay().toMillis() / 1000.0);
+    metrics.gauge("autosuspend_players", "Players connected to the server.", Metrics.labels("server", targetServer),
+        () -> getSnapshot().playerCount);
+  }
+
+  public void start(ScheduledExecutorService scheduler) {
+    l.lock();
+    try {
+      this.sleepDeadline = new Deadline(scheduler, clock, this::requestUpdate);
+      this.statusCheckDeadline = new Deadline(scheduler, clock, this::requestUpdate);
+      this.keepAliveDeadline = new Deadline(scheduler, clock, this::requestUpdate);
+      this.prewarmDeadline = new Deadline(scheduler, clock, this::onPrewarmDue);
+      this.admissionDeadline = new Deadline(scheduler, clock, this::requestUpdate);
+      this.hibernateDeadline = new Deadline(scheduler, clock, this::requestUpdate);
+      this.progressDeadline = new Deadline(scheduler, clock, () -> this.waitingRoom.tick(this::queuedPlayers));
+      this.waitingRoom.setTicker(this.progressDeadline);
+      this.prewarmDeadline.set(this.predictor.nextPrewarm(clock.instant()));
+      if (this.readinessTarget != null) {
+        this.readinessProbe = new ReadinessProbe(this.readinessTarget, scheduler, clock);
+      }
+      this.scheduler = scheduler;
+    } finally {
+      l.unlock();
+    }
+    requestUpdate();
   }
 
   public void stop() {
     stopped = true;
-    synchronized (this) {
-      this.notify();
+    l.lock();
+    try {
+      if (this.scheduler != null) {
+        this.sleepDeadline.cancel();
+        this.statusCheckDeadline.cancel();
+        this.keepAliveDeadline.cancel();
+        this.prewarmDeadline.cancel();
+        this.admissionDeadline.cancel();
+        this.hibernateDeadline.cancel();
+        this.waitingRoom.reset();
+      }
+    } finally {
+      l.unlock();
+    }
+    this.predictor.save();
+    saveLastKnownState();
+    this.controller.close();
+  }
+
+  /**
+   * Saves whatever the state is by the time this gets to run, off the lock.
+   */
+  private void saveLastKnownStateLater() {
+    if (!stopped && this.scheduler != null) {
+      this.scheduler.execute(this::saveLastKnownState);
+    }
+  }
+
+  private void saveLastKnownState() {
+    var snapshot = getSnapshot();
+    if (snapshot.reconciling) {
+      // Nothing new learned.
+      return;
+    }
+    var now = clock.instant();
+    Instant lastActive;
+    l.lock();
+    try {
+      lastActive = this.lastPlayerCount > 0 ? now : this.lastPlayerActive;
+    } finally {
+      l.unlock();
+    }
+    new LastKnownState(snapshot.state, now, lastActive).save(this.lastKnownFile, this.plugin.getLogger());
+  }
+
+  /**
+   * Must hold lock already. Points each deadline at the next moment its
+   * condition in {@link #update()} could become true.
+   */
+  private void rescheduleDeadlines() {
+    if (this.scheduler == null || stopped) {
+      return;
     }
+    if (this.state == State.RUNNING && this.lastPlayerCount == 0) {
+      this.sleepDeadline.set(this.lastPlayerActive.plus(this.sleepDelay.getDelay()));
+    } else {
+      this.sleepDeadline.cancel();
+    }
+    if (this.state == State.NOT_READY || this.reconciling) {
+      this.statusCheckDeadline.set(this.lastStatusCheck.plus(NOT_READY_RECHECK_INTERVAL));
+    } else {
+      this.statusCheckDeadline.set(this.lastStatusCheck.plus(this.currentStatusCheckInterval));
+    }
+    if (this.state == State.SUSPENDED && canHibernate()) {
+      this.hibernateDeadline.set(this.lastPlayerActive.plus(this.hibernation.getStopAfter()));
+    } else {
+      this.hibernateDeadline.cancel();
+    }
+    var keepAliveEnd = this.keepAliveUntil;
+    if (this.speculativeUntil != null && (keepAliveEnd == null || this.speculativeUntil.isAfter(keepAliveEnd))) {
+      keepAliveEnd = this.speculativeUntil;
+    }
+    this.keepAliveDeadline.set(keepAliveEnd);
+  }
+
+  /**
+   * Runs {@link #update()} on the shared scheduler as soon as possible. Calls
+   * made while an update is already pending or running are coalesced into one
+   * more run afterwards.
+   */
+  private void requestUpdate() {
+    if (stopped || scheduler == null) {
+      return;
+    }
+    if (pendingUpdates.getAndIncrement() == 0) {
+      scheduler.execute(this::drainUpdates);
+    }
+  }
+
+  private void drainUpdates() {
+    int served;
+    do {
+      served = pendingUpdates.get();
+      if (stopped) {
+        pendingUpdates.set(0);
+        return;
+      }
+      try {
+        update();
+      } catch (Exception e) {
+        this.plugin.getLogger().severe(String.format("Error updating state of %s: %s", this.targetServer, e));
+        e.printStackTrace();
+      }
+    } while (pendingUpdates.addAndGet(-served) > 0);
   }
 
   public void updatePlayerCount(int count) {
     l.lock();
-    this.lastPlayerCount = count;
-    if (count > 0) {
-      this.lastPlayerActive = Instant.now();
+    try {
+      if (count > 0 || this.lastPlayerCount > 0) {
+        // Also stamp the moment the last player leaves, which is where the sleep
+        // delay starts counting from.
+        this.lastPlayerActive = clock.instant();
+      }
+      if (count == 0 && this.lastPlayerCount > 0) {
+        this.sleepDelay.serverEmptied(this.lastPlayerActive);
+      }
+      this.lastPlayerCount = count;
+      publishSnapshot();
+      rescheduleDeadlines();
+    } finally {
+      l.unlock();
     }
-    l.unlock();
   }
 
-  public synchronized State getState() {
+  /**
+   * Record that a player is now connected to this server.
+   */
+  public void playerConnected(ProxiedPlayer p) {
+    if (connectedPlayers.add(p.getUniqueId())) {
+      this.plugin.getJournal().playerJoined(this.targetServer, p.getUniqueId());
+      var window = this.activeWindow;
+      if (window != null) {
+        window.onJoin();
+      }
+      speculative.playerSeen(addressOf(p.getSocketAddress()));
+      long since = firstPlayerPendingSince.getAndSet(0);
+      if (since != 0) {
+        resumeToFirstPlayer.observeSince(since);
+      }
+    }
+    updatePlayerCount(connectedPlayers.size());
+  }
+
+  /**
+   * Record that a player is no longer connected to this server.
+   *
+   * @return whether the player was previously counted as connected here.
+   */
+  public boolean playerDisconnected(ProxiedPlayer p) {
+    boolean removed = connectedPlayers.remove(p.getUniqueId());
+    if (removed) {
+      this.plugin.getJournal().playerLeft(this.targetServer, p.getUniqueId());
+      updatePlayerCount(connectedPlayers.size());
+    }
+    return removed;
+  }
+
+  /**
+   * An immutable view of the manager's state, published after every change.
+   * Reading it never blocks, which keeps the ping and connect handlers off the
+   * lock entirely.
+   */
+  public static final class Snapshot {
+    public final State state;
+    public final int playerCount;
+    /**
+     * Null if no keepalive is set, {@link Instant#MAX} if indefinite.
+     */
+    public final Instant keepAliveUntil;
+    /**
+     * Whether players can be sent to the backend right now. Only meaningful
+     * when {@link #state} is RUNNING.
+     */
+    public final boolean backendReady;
+    /**
+     * Whether {@link #state} is only a guess, e.g. what was last seen before
+     * the proxy restarted, and hasn't been checked yet.
+     */
+    public final boolean reconciling;
+    /**
+     * Whether a resume has been asked for or is in progress.
+     */
+    public final boolean resuming;
+
+    private Snapshot(State state, int playerCount, Instant keepAliveUntil, boolean backendReady,
+        boolean reconciling, boolean resuming) {
+      this.state = state;
+      this.playerCount = playerCount;
+      this.keepAliveUntil = keepAliveUntil;
+      this.backendReady = backendReady;
+      this.reconciling = reconciling;
+      this.resuming = resuming;
+    }
+  }
+
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(
+      new Snapshot(State.NOT_READY, 0, null, false, true, false));
+
+  /**
+   * Must hold lock already.
+   */
+  private void publishSnapshot() {
+    var cur = this.snapshot.get();
+    if (cur.state != this.state || cur.playerCount != this.lastPlayerCount
+        || cur.keepAliveUntil != this.keepAliveUntil || cur.backendReady != this.backendReady
+        || cur.reconciling != this.reconciling || cur.resuming != this.resuming) {
+      this.snapshot.set(new Snapshot(this.state, this.lastPlayerCount, this.keepAliveUntil, this.backendReady,
+          this.reconciling, this.resuming));
+      notifyPool();
+    }
+  }
+
+  /**
+   * Lets the pool, if any, know that something changed, without holding up
+   * whoever changed it.
+   */
+  private void notifyPool() {
+    var pool = this.pool;
+    if (pool != null && this.scheduler != null && !stopped) {
+      this.scheduler.execute(pool::memberChanged);
+    }
+  }
+
+  void setPool(ServerPool pool) {
+    this.pool = pool;
+  }
+
+  public ServerPool getPool() {
+    return this.pool;
+  }
+
+  /**
+   * Must hold lock already. Publishes immediately, so that the new state is
+   * visible even while the lock is released for a controller call.
+   */
+  private void setState(State state) {
+    boolean changed = state != this.state;
+    if (changed) {
+      this.currentStatusCheckInterval = this.statusCheckInterval;
+      long now = System.nanoTime();
+      this.nanosInState[this.state.ordinal()] += now - this.stateSinceNanos;
+      this.stateSinceNanos = now;
+      this.transitions[this.state.ordinal() * this.nanosInState.length + state.ordinal()].inc();
+      this.plugin.getJournal().stateChanged(this.targetServer, this.state, state);
+      if (state == State.RUNNING && this.state.isAsleep()) {
+        this.warmUpPending = true;
+      }
+    }
+    this.state = state;
+    if (state != State.RUNNING) {
+      this.backendReady = false;
+      if (this.readinessCheck != null) {
+        this.readinessCheck.cancel(false);
+        this.readinessCheck = null;
+      }
+    }
+    publishSnapshot();
+    if (changed) {
+      saveLastKnownStateLater();
+    }
+  }
+
+  /**
+   * Must hold lock already. Starts pinging the backend, unless already doing
+   * so. Once it answers (or the probe gives up) and has been warmed up, players
+   * are let through.
+   */
+  private void startReadinessCheck() {
+    if (this.readinessCheck != null) {
+      return;
+    }
+    if (this.readinessProbe == null) {
+      this.observeReady();
+      if (this.startWarmUp()) {
+        return;
+      }
+      this.waitingRoom.backendReady(clock.instant());
+      this.backendReady = true;
+      publishSnapshot();
+      return;
+    }
+    final var check = this.readinessProbe.awaitReady(this.readinessTimeout);
+    this.readinessCheck = check;
+    check.whenComplete((took, err) -> {
+      l.lock();
+      try {
+        if (this.readinessCheck != check) {
+          // Cancelled by a state change.
+          return;
+        }
+        this.readinessCheck = null;
+        if (err == null) {
+          this.observeReady();
+          this.plugin.getLogger().info(String.format("Server %s accepting connections after %d ms",
+              this.targetServer, took.toMillis()));
+          if (this.startWarmUp()) {
+            return;
+          }
+          this.waitingRoom.backendReady(clock.instant());
+        } else {
+          // Let players try anyway, as we would have without the probe.
+          this.warmUpPending = false;
+          this.waitingRoom.reset();
+          this.resumeStartNanos = 0;
+          this.plugin.getLogger().warning(String.format("Readiness probe for %s failed: %s", this.targetServer, err));
+        }
+        this.backendReady = true;
+        publishSnapshot();
+      } finally {
+        l.unlock();
+      }
+      requestUpdate();
+    });
+  }
+
+  /**
+   * Must hold lock already.
+   */
+  private boolean shouldSuspend() {
+    return this.state == State.RUNNING && this.queue.isEmpty() && !isKeepAliveEffective()
+        && this.lastPlayerCount == 0
+        && !this.lastPlayerActive.plus(this.sleepDelay.getDelay()).isAfter(clock.instant());
+  }
+
+  private void registerPrewarmMetrics(Metrics metrics, String source, PrewarmStats stats) {
+    var labels = Metrics.labels("server", targetServer, "source", source);
+    metrics.counter("autosuspend_early_resumes_total", "Resumes started ahead of any join.", labels,
+        stats::getTriggered);
+    metrics.counter("autosuspend_early_resume_hits_total",
+        "Early resumes that someone joined after, before the next suspend.", labels, stats::getHits);
+    metrics.counter("autosuspend_early_resume_missed_seconds_total",
+        "Time spent running because of early resumes that nobody joined after.", labels,
+        () -> stats.getMissedRunningTime().toMillis() / 1000.0);
+  }
+
+  private static double secondsOrNaN(Duration d) {
+    return d == null ? Double.NaN : d.toNanos() / 1e9;
+  }
+
+  /**
+   * Must hold lock already. Runs the warm-up commands if the server has just
+   * come back up, keeping players waiting until they finish. If they fail or
+   * time out, players are let in anyway.
+   *
+   * @return whether a warm-up was started.
+   */
+  private boolean startWarmUp() {
+    if (!this.warmUpPending || !this.warmUp.isEnabled()) {
+      return false;
+    }
+    this.warmUpPending = false;
+    this.waitingRoom.warmingUp();
+    final var w = this.warmUp.run(this.scheduler);
+    this.readinessCheck = w;
+    w.whenComplete((took, err) -> {
+      l.lock();
+      try {
+        if (this.readinessCheck != w) {
+          // Cancelled by a state change.
+          return;
+        }
+        this.readinessCheck = null;
+        if (err == null) {
+          this.warmUpTime.observeNanos(took.toNanos());
+          this.plugin.getLogger().info(String.format("Warmed up %s in %d ms", this.targetServer, took.toMillis()));
+        } else {
+          this.warmUpErrors.inc();
+          this.plugin.getLogger().warning(String.format("Warm-up of %s failed, letting players in anyway: %s",
+              this.targetServer, err));
+        }
+        this.waitingRoom.backendReady(clock.instant());
+        this.backendReady = true;
+        publishSnapshot();
+      } finally {
+        l.unlock();
+      }
+      requestUpdate();
+    });
+    return true;
+  }
+
+  /**
+   * Must hold lock already.
+   */
+  private void observeReady() {
+    if (this.resumeStartNanos != 0) {
+      this.resumeToReady.observeSince(this.resumeStartNanos);
+      this.resumeStartNanos = 0;
+    }
+  }
+
+  private double secondsInState(State s) {
     l.lock();
-    var s = this.state;
-    l.unlock();
-    return s;
+    try {
+      long nanos = this.nanosInState[s.ordinal()];
+      if (this.state == s) {
+        nanos += System.nanoTime() - this.stateSinceNanos;
+      }
+      return nanos / 1e9;
+    } finally {
+      l.unlock();
+    }
+  }
+
+  int getQueueDepth() {
+    l.lock();
+    try {
+      return this.queue.size();
+    } finally {
+      l.unlock();
+    }
+  }
+
+  public Snapshot getSnapshot() {
+    return this.snapshot.get();
+  }
+
+  public State getState() {
+    return this.snapshot.get().state;
   }
 
   public String getTargetServer() {
@@ -80,47 +744,196 @@ public class ServerStateManager implements Runnable {
     return targetServer;
   }
 
+  public ServerInfo getServerInfo() {
+    return serverInfo;
+  }
+
   public void enqueue(ProxiedPlayer p) {
+    var window = this.activeWindow;
+    if (window != null) {
+      window.onJoin();
+    }
     l.lock();
-    this.queue.add(p);
-    l.unlock();
-    synchronized (this) {
-      this.notify();
+    try {
+      this.queue.enqueue(p);
+      notifyPool();
+    } finally {
+      l.unlock();
+    }
+    requestUpdate();
+  }
+
+  /**
+   * Takes up to max players off the front of the queue, so that they can wait
+   * for another server instead.
+   */
+  List<ProxiedPlayer> takeQueued(int max) {
+    l.lock();
+    try {
+      var players = this.queue.players();
+      if (players.size() > max) {
+        players = players.subList(0, max);
+      }
+      for (var p : players) {
+        this.queue.remove(p);
+      }
+      return players;
+    } finally {
+      l.unlock();
+    }
+  }
+
+  /**
+   * Resumes the server, if suspended, and keeps it up for at least the given
+   * time, for a pool that needs more room.
+   */
+  void scaleUp(Duration keepAlive) {
+    var until = clock.instant().plus(keepAlive);
+    l.lock();
+    try {
+      if (this.speculativeUntil == null || this.speculativeUntil.isBefore(until)) {
+        this.speculativeUntil = until;
+      }
+      if (this.state.isAsleep()) {
+        this.resuming = true;
+        publishSnapshot();
+      }
+    } finally {
+      l.unlock();
     }
+    requestUpdate();
   }
 
   public void keepAliveFor(Duration duration) {
     l.lock();
     try {
-      this.keepAliveUntil = Instant.now().plus(duration);
+      this.keepAliveUntil = clock.instant().plus(duration);
       if (duration.isZero()) {
         this.keepAliveUntil = null;
       }
+      publishSnapshot();
     } finally {
       l.unlock();
     }
-    synchronized (this) {
-      this.notify();
-    }
+    requestUpdate();
   }
 
   public void keepAliveForever() {
     l.lock();
     try {
       this.keepAliveUntil = Instant.MAX;
+      publishSnapshot();
     } finally {
       l.unlock();
     }
-    synchronized (this) {
-      this.notify();
+    requestUpdate();
+  }
+
+  static InetAddress addressOf(SocketAddress addr) {
+    if (addr instanceof InetSocketAddress) {
+      return ((InetSocketAddress) addr).getAddress();
     }
+    return null;
+  }
+
+  /**
+   * Called for every ping that would lead to this server. Starts a speculative
+   * resume if enabled and {@link SpeculativeResume} agrees.
+   */
+  public void onPing(SocketAddress from) {
+    if (!speculative.isEnabled() || !getState().isAsleep()) {
+      return;
+    }
+    var now = clock.instant();
+    l.lock();
+    try {
+      // Already being kept up, e.g. by a pre-warm, which counts as its own.
+      if (this.isKeepAliveEffective() || !speculative.onPing(addressOf(from), now)) {
+        return;
+      }
+      this.speculativeUntil = now.plus(speculative.getKeepAlive());
+      switchWindow(speculative.getStats(), now);
+    } finally {
+      l.unlock();
+    }
+    this.plugin.getLogger().info(String.format("Speculatively resuming %s after ping from %s", this.targetServer, from));
+    requestUpdate();
+  }
+
+  public SpeculativeResume getSpeculativeResume() {
+    return speculative;
+  }
+
+  /**
+   * Record that someone tried to join this server, for the join predictor.
+   */
+  public void recordJoin() {
+    var now = clock.instant();
+    predictor.recordJoin(now);
+    if (sleepDelay.joinAttempted(now)) {
+      this.plugin.getLogger().info(String.format("Sleep delay for %s is now %s", this.targetServer,
+          sleepDelay.describe()));
+      l.lock();
+      try {
+        rescheduleDeadlines();
+      } finally {
+        l.unlock();
+      }
+    }
+  }
+
+  public AdaptiveSleepDelay getSleepDelay() {
+    return sleepDelay;
+  }
+
+  public JoinPredictor getJoinPredictor() {
+    return predictor;
+  }
+
+  private void onPrewarmDue() {
+    var now = clock.instant();
+    l.lock();
+    try {
+      if (this.state.isAsleep() && !this.isKeepAliveEffective() && this.queue.isEmpty()) {
+        this.plugin.getLogger().info(String.format("Pre-warming %s ahead of likely arrivals (p = %.2f)",
+            this.targetServer, predictor.probabilityAt(now.plus(predictor.getKeepAlive()))));
+        this.speculativeUntil = now.plus(predictor.getKeepAlive());
+        switchWindow(predictor.getStats(), now);
+      }
+      this.prewarmDeadline.set(predictor.nextPrewarm(now));
+    } finally {
+      l.unlock();
+    }
+    predictor.save();
+    requestUpdate();
+  }
+
+  /**
+   * Must already own lock. Opens a window for an early resume, closing any
+   * other that is still open, so that its stats don't stop counting.
+   */
+  private void switchWindow(PrewarmStats next, Instant now) {
+    var prev = this.activeWindow;
+    if (prev != null && prev != next) {
+      prev.close(now);
+    }
+    next.open(now);
+    this.activeWindow = next;
+  }
+
+  /**
+   * Must already own lock
+   */
+  private boolean isAdminKeepAliveEffective() {
+    return this.keepAliveUntil != null && this.keepAliveUntil.isAfter(clock.instant());
   }
 
   /**
    * Must already own lock
    */
   private boolean isKeepAliveEffective() {
-    return this.keepAliveUntil != null && this.keepAliveUntil.isAfter(Instant.now());
+    return isAdminKeepAliveEffective()
+        || (this.speculativeUntil != null && this.speculativeUntil.isAfter(clock.instant()));
   }
 
   /**
@@ -131,201 +944,502 @@ public class ServerStateManager implements Runnable {
         .color(ChatColor.RED)
         .append(msg)
         .create();
-    for (var p : queue) {
-      p.disconnect(chat);
+    for (var p : queue.players()) {
+      var current = p.getServer();
+      if (current != null && !current.getInfo().equals(this.holdingServer)) {
+        // Still has somewhere to play.
+        p.sendMessage(chat);
+      } else {
+        p.disconnect(chat);
+      }
     }
     queue.clear();
   }
 
   /**
-   * Must hold lock already. Clears the queue.
+   * Must hold lock already. Sends the next batch of queued players over, and
+   * arranges to be called again for the rest.
    */
-  private void connectAllInQueue() {
-    for (var p : this.queue) {
-      p.connect(ServerConnectRequest.builder().target(serverInfo).reason(Reason.PLUGIN).build());
+  private void admitFromQueue() {
+    this.admissionDeadline.set(this.queue.admit(serverInfo, clock.instant(), batch -> {
+      l.lock();
+      try {
+        this.queue.connectDone(batch);
+      } finally {
+        l.unlock();
+      }
+      requestUpdate();
+    }));
+  }
+
+  private List<ProxiedPlayer> queuedPlayers() {
+    l.lock();
+    try {
+      return this.queue.players();
+    } finally {
+      l.unlock();
+    }
+  }
+
+  /**
+   * @return the server players should wait on while this one resumes, or null
+   *         if none is configured.
+   */
+  public ServerInfo getHoldingServer() {
+    return this.holdingServer;
+  }
+
+  public WaitingRoom getWaitingRoom() {
+    return this.waitingRoom;
+  }
+
+  /**
+   * Remove a player who left the proxy while waiting.
+   */
+  public void dequeue(ProxiedPlayer p) {
+    l.lock();
+    try {
+      this.queue.remove(p);
+    } finally {
+      l.unlock();
     }
-    this.queue.clear();
   }
 
   private void update() {
     l.lock();
-    this.updatePlayerCount(this.plugin.getProxy().getOnlineCount());
     try {
-      if (this.state == State.NOT_READY) {
-        this.lastStatusCheck = Instant.now();
-        l.unlock();
-        State new_state;
-        try {
-          new_state = controller.checkState();
-        } finally {
-          l.lock();
+      if (this.operation != null) {
+        // Picked up again once it's done.
+        return;
+      }
+      if (this.reconciling) {
+        if (this.statusCheck == null) {
+          this.startStatusCheck();
         }
-        this.state = new_state;
-        if (new_state == State.NOT_READY) {
-          l.unlock();
-          try {
-            synchronized (this) {
-              this.wait(5000);
-            }
-          } catch (InterruptedException e) {
-          } finally {
-            l.lock();
-          }
+        return;
+      }
+      if (this.state == State.NOT_READY) {
+        if (this.statusCheck != null
+            || this.lastStatusCheck.plus(NOT_READY_RECHECK_INTERVAL).isAfter(clock.instant())) {
+          return;
         }
+        this.startStatusCheck();
         return;
       }
+      if (this.state == State.RUNNING && !this.backendReady) {
+        this.startReadinessCheck();
+        if (!this.backendReady) {
+          return;
+        }
+      }
       if (this.state == State.RUNNING && !this.queue.isEmpty()) {
-        // left over from last resume
-        this.connectAllInQueue();
+        this.admitFromQueue();
         return;
       }
-      if (this.state == State.SUSPENDED && (!this.queue.isEmpty() || isKeepAliveEffective())) {
-        l.unlock();
-        State new_state = State.SUSPENDED;
-        Exception err = null;
-        try {
-          try {
-            this.controller.resume();
-            while (new_state == State.SUSPENDED) {
-              try {
-                Thread.sleep(500);
-              } catch (InterruptedException e) {
-              }
-              new_state = this.controller.checkState();
-            }
-          } catch (Exception e) {
-            err = e;
+      if (this.state.isAsleep() && (!this.queue.isEmpty() || isKeepAliveEffective())) {
+        this.startResume();
+        return;
+      }
+      if (this.state == State.SUSPENDED && canHibernate()
+          && this.hibernation.shouldStop(Duration.between(this.lastPlayerActive, clock.instant()),
+              this.waitingRoom.getTypicalResumeTime(State.STOPPED))) {
+        this.startStop();
+        return;
+      }
+      if (this.shouldSuspend()) {
+        this.startSuspend();
+        return;
+      }
+
+      if (this.statusCheck == null && !this.lastStatusCheck.plus(currentStatusCheckInterval).isAfter(clock.instant())) {
+        this.startStatusCheck();
+      }
+    } finally {
+      if (this.operation == null && this.resuming) {
+        // Asked for, but turned out not to be needed.
+        this.resuming = false;
+        publishSnapshot();
+      }
+      rescheduleDeadlines();
+      l.unlock();
+    }
+  }
+
+  /**
+   * Must hold lock already. Calls into the controller with the lock released,
+   * in case it does some work before returning, and passes the outcome on to
+   * the given future.
+   */
+  private <T> void callController(Supplier<CompletableFuture<T>> call, CompletableFuture<T> into) {
+    l.unlock();
+    try {
+      call.get().whenComplete((res, err) -> {
+        if (err == null) {
+          into.complete(res);
+        } else {
+          into.completeExceptionally(unwrap(err));
+        }
+      });
+    } catch (RuntimeException e) {
+      into.completeExceptionally(e);
+    } finally {
+      l.lock();
+    }
+  }
+
+  private static Throwable unwrap(Throwable err) {
+    while (err instanceof CompletionException && err.getCause() != null) {
+      err = err.getCause();
+    }
+    return err;
+  }
+
+  /**
+   * Checks the state with the controller until it is no longer suspended,
+   * backing off in between.
+   */
+  private CompletableFuture<State> pollWhileSuspended(long backoffMs) {
+    return controller.checkState().thenCompose(s -> {
+      if (!s.isAsleep() || stopped) {
+        return CompletableFuture.completedFuture(s);
+      }
+      var next = new CompletableFuture<State>();
+      scheduler.schedule(() -> {
+        pollWhileSuspended(Math.min(backoffMs * 3 / 2, RESUME_POLL_MAX_MS)).whenComplete((res, err) -> {
+          if (err == null) {
+            next.complete(res);
+          } else {
+            next.completeExceptionally(err);
+          }
+        });
+      }, backoffMs, TimeUnit.MILLISECONDS);
+      return next;
+    });
+  }
+
+  /**
+   * Must hold lock already. Results of a check are dropped if a resume or
+   * suspend starts before it finishes.
+   */
+  private void startStatusCheck() {
+    this.lastStatusCheck = clock.instant();
+    final var check = new CompletableFuture<State>();
+    this.statusCheck = check;
+    callController(controller::checkState, check);
+    check.whenCompleteAsync((reported, err) -> {
+      l.lock();
+      try {
+        var checkState = err == null ? fromController(reported) : null;
+        if (this.statusCheck != check || stopped) {
+          return;
+        }
+        this.statusCheck = null;
+        if (this.reconciling) {
+          if (err != null) {
+            this.plugin.getLogger().severe(String.format("Unable to check state of %s: %s", this.targetServer, err));
           }
-        } finally {
-          l.lock();
+          this.reconcile(err == null ? checkState : State.NOT_READY);
+          return;
+        }
+        if (err != null) {
+          this.plugin.getLogger().severe(String.format("Unable to check state of %s: %s", this.targetServer, err));
+          return;
+        }
+        if (checkState == this.state) {
+          var next = this.currentStatusCheckInterval.multipliedBy(2);
+          this.currentStatusCheckInterval = next.compareTo(statusCheckMaxInterval) > 0 ? statusCheckMaxInterval : next;
         }
-        this.lastStatusCheck = Instant.now();
-        this.state = new_state;
+        this.setState(checkState);
+      } finally {
+        rescheduleDeadlines();
+        l.unlock();
+      }
+      requestUpdate();
+    }, scheduler);
+  }
+
+  private boolean canHibernate() {
+    return this.hibernation.isEnabled() && this.controller.canStop();
+  }
+
+  /**
+   * Without hibernation, a stopped machine was stopped by someone else, and is
+   * left alone as before rather than started whenever someone joins.
+   */
+  private State fromController(State s) {
+    return s == State.STOPPED && !canHibernate() ? State.NOT_READY : s;
+  }
+
+  /**
+   * How long bringing the server up from its current state will probably
+   * take, or null if unknown.
+   */
+  public Duration getExpectedWakeTime() {
+    return this.waitingRoom.getExpectedResumeTime(getState());
+  }
+
+  /**
+   * Must hold lock already. Replaces a state that wasn't known for sure with
+   * what the controller says, then deals with whoever joined in the meantime.
+   */
+  private void reconcile(State actual) {
+    var assumed = this.state;
+    this.reconciling = false;
+    if (actual != assumed) {
+      this.plugin.getLogger().info(String.format("Server %s is %s, not %s as last seen", this.targetServer, actual,
+          assumed));
+    }
+    var saved = this.savedLastPlayerActive;
+    this.savedLastPlayerActive = null;
+    if (saved != null && actual.isAsleep() && assumed.isAsleep() && saved.isBefore(this.lastPlayerActive)) {
+      // Asleep since before the proxy restarted, so carry on counting towards
+      // hibernation from when a player was last on it.
+      this.lastPlayerActive = saved;
+    }
+    this.setState(actual);
+    if (actual == assumed) {
+      // Still worth saving the newer timestamp.
+      saveLastKnownStateLater();
+    }
+    if (actual == State.NOT_READY && !this.queue.isEmpty()) {
+      this.broadcastErrorToQueue("Server is not ready.");
+    }
+  }
+
+  /**
+   * Must hold lock already.
+   */
+  private void startResume() {
+    final var from = this.state;
+    this.waitingRoom.resumeStarted(clock.instant(), from);
+    this.resumeStartNanos = System.nanoTime();
+    final var resumeStartedAt = clock.instant();
+    this.statusCheck = null;
+    this.resuming = true;
+    publishSnapshot();
+    final var op = new CompletableFuture<State>();
+    this.operation = op;
+    callController(() -> (from == State.STOPPED ? controller.start() : controller.resume())
+        .thenCompose(v -> pollWhileSuspended(RESUME_POLL_INITIAL_MS)), op);
+    op.whenCompleteAsync((newState, err) -> {
+      l.lock();
+      try {
+        this.operation = null;
+        this.resuming = false;
+        if (stopped) {
+          return;
+        }
+        this.lastStatusCheck = clock.instant();
+        publishSnapshot();
         if (err == null) {
-          this.plugin.getLogger().info("Resumed server " + this.targetServer);
-          if (!this.isKeepAliveEffective()) {
-            this.webhookNotify(WebhookEvent.RESUMED, this.queue.get(0));
-            if (this.queue.size() > 1) {
-              for (int i = 1; i < this.queue.size(); i++) {
-                this.webhookNotify(WebhookEvent.JOINED_WHILE_RUNNING, this.queue.get(i));
-              }
+          this.waitingRoom.vmRunning();
+          this.setState(newState);
+          this.plugin.getLogger().info(String.format("%s server %s", from == State.STOPPED ? "Started" : "Resumed",
+              this.targetServer));
+          this.resumeToRunning.observeSince(this.resumeStartNanos);
+          if (from == State.SUSPENDED) {
+            // Starts happen too rarely to tell the sleep delay anything.
+            var took = Duration.between(resumeStartedAt, clock.instant());
+            this.sleepDelay.resumeTook(took);
+            if (this.lastSuspendPrepared != null) {
+              this.preSuspend.resumeTook(this.lastSuspendPrepared, took);
             }
-          } else {
+          }
+          this.lastSuspendPrepared = null;
+          if (!this.queue.isEmpty()) {
+            this.firstPlayerPendingSince.set(this.resumeStartNanos);
+          }
+          if (this.isAdminKeepAliveEffective()) {
             this.webhookNotify(WebhookEvent.KEEPALIVE, null);
+          } else if (!this.queue.isEmpty()) {
+            var players = this.queue.players();
+            this.webhookNotify(WebhookEvent.RESUMED, players.get(0));
+            for (int i = 1; i < players.size(); i++) {
+              this.webhookNotify(WebhookEvent.JOINED_WHILE_RUNNING, players.get(i));
+            }
           }
+          // A speculative resume that nobody has followed up on yet isn't
+          // announced.
         } else {
           this.plugin.getLogger().severe(String.format("Error when resuming server: %s", err.toString()));
           err.printStackTrace();
+          this.waitingRoom.reset();
+          this.resumeStartNanos = 0;
           this.broadcastErrorToQueue(
               String.format("There was an error when resuming the server:\n%s\nPlease try again later.",
                   err.getMessage()));
         }
-        // next loop iteration will connect the players.
-        return;
-      }
-      if (this.state == State.RUNNING && !isKeepAliveEffective() && this.lastPlayerCount == 0
-          && this.lastPlayerActive.isBefore(
-              Instant.now().minus(Duration.ofSeconds(plugin.getConfig().getInt(ConfigKeys.SLEEP_DELAY_SECS))))) {
-        // Set state to suspended first to stop new joins
-        this.state = State.SUSPENDED;
+      } finally {
+        rescheduleDeadlines();
         l.unlock();
-        boolean succeed = false;
-        try {
-          controller.suspend();
-          succeed = true;
-          this.webhookNotify(WebhookEvent.SUSPENDED, null);
-        } catch (Exception e) {
-          this.plugin.getLogger().severe(String.format("Error suspending machine: %s", e.toString()));
-          e.printStackTrace();
-        } finally {
-          l.lock();
+      }
+      // next update will probe the backend, then connect the players.
+      requestUpdate();
+    }, scheduler);
+  }
+
+  /**
+   * Must hold lock already. Runs the pre-suspend commands first, if enabled,
+   * and suspends once they finish if the server is still unused.
+   */
+  private void startSuspend() {
+    if (!this.preSuspend.shouldRun()) {
+      this.suspendNow(false);
+      return;
+    }
+    // Still running, so anyone joining meanwhile gets straight in.
+    final var op = this.preSuspend.run(this.scheduler);
+    this.operation = op;
+    op.whenCompleteAsync((took, err) -> {
+      l.lock();
+      try {
+        this.operation = null;
+        if (stopped) {
+          return;
         }
-        if (succeed) {
-          this.plugin.getLogger().info("Suspended server " + this.targetServer);
-          this.state = State.SUSPENDED;
+        if (err == null) {
+          this.preSuspendTime.observeNanos(took.toNanos());
         } else {
-          this.state = controller.checkState();
+          this.preSuspendErrors.inc();
+          this.plugin.getLogger().warning(String.format("Pre-suspend commands for %s failed, suspending anyway: %s",
+              this.targetServer, err));
         }
-        this.lastStatusCheck = Instant.now();
-        return;
-      }
-
-      if (this.lastStatusCheck.isBefore(Instant.now().minus(statusCheckInterval))) {
-        this.lastStatusCheck = Instant.now();
-        l.unlock();
-        State check_state;
-        try {
-          check_state = controller.checkState();
-        } finally {
-          l.lock();
+        if (this.shouldSuspend()) {
+          this.suspendNow(err == null);
+        } else {
+          this.plugin.getLogger().info(String.format("Not suspending %s after all, it is in use again",
+              this.targetServer));
         }
-        this.state = check_state;
+      } finally {
+        rescheduleDeadlines();
+        l.unlock();
       }
-    } finally {
-      l.unlock();
-    }
-    synchronized (this) {
+      requestUpdate();
+    }, scheduler);
+  }
+
+  /**
+   * Must hold lock already.
+   *
+   * @param prepared whether the pre-suspend commands just ran successfully.
+   */
+  private void suspendNow(boolean prepared) {
+    // Set state to suspended first to stop new joins
+    this.setState(State.SUSPENDED);
+    final long suspendStart = System.nanoTime();
+    final var suspendStartedAt = clock.instant();
+    this.statusCheck = null;
+    final var op = new CompletableFuture<Void>();
+    this.operation = op;
+    callController(controller::suspend, op);
+    op.whenCompleteAsync((v, err) -> {
+      l.lock();
       try {
-        this.wait(1000);
-      } catch (InterruptedException e) {
+        this.operation = null;
+        if (stopped) {
+          return;
+        }
+        this.lastStatusCheck = clock.instant();
+        if (err == null) {
+          this.suspendTime.observeSince(suspendStart);
+          var took = Duration.between(suspendStartedAt, clock.instant());
+          this.sleepDelay.suspendTook(took);
+          this.preSuspend.suspendTook(prepared, took);
+          this.lastSuspendPrepared = prepared;
+          this.webhookNotify(WebhookEvent.SUSPENDED, null);
+          this.plugin.getLogger().info("Suspended server " + this.targetServer);
+          if (this.preSuspend.isEnabled()) {
+            this.plugin.getLogger().info(String.format("Pre-suspend stats for %s: %s", this.targetServer,
+                this.preSuspend.describe()));
+          }
+          this.speculativeUntil = null;
+          this.firstPlayerPendingSince.set(0);
+          var window = this.activeWindow;
+          if (window != null) {
+            this.activeWindow = null;
+            window.close(clock.instant());
+            this.plugin.getLogger().info(String.format("Early resume stats for %s: %s", this.targetServer, window));
+          }
+          // The predictor may have learned new arrival times while the server
+          // was up.
+          this.prewarmDeadline.set(this.predictor.nextPrewarm(clock.instant()));
+        } else {
+          this.plugin.getLogger().severe(String.format("Error suspending machine: %s", err.toString()));
+          err.printStackTrace();
+          // No idea what state it's in now. Anyone joining in the meantime
+          // stays queued until we find out.
+          this.reconciling = true;
+          publishSnapshot();
+        }
+      } finally {
+        rescheduleDeadlines();
+        l.unlock();
       }
-    }
+      // Resume straight away if someone joined while suspending.
+      requestUpdate();
+    }, scheduler);
   }
 
-  @Override
-  public void run() {
-    while (true) {
-      if (stopped) {
-        return;
+  /**
+   * Must hold lock already. Stops a server that has been suspended for long
+   * enough.
+   */
+  private void startStop() {
+    var idle = Duration.between(this.lastPlayerActive, clock.instant());
+    // Anyone joining from now on waits for a start rather than a resume.
+    this.setState(State.STOPPED);
+    this.statusCheck = null;
+    final var op = new CompletableFuture<Void>();
+    this.operation = op;
+    callController(controller::stop, op);
+    op.whenCompleteAsync((v, err) -> {
+      l.lock();
+      try {
+        this.operation = null;
+        if (stopped) {
+          return;
+        }
+        this.lastStatusCheck = clock.instant();
+        if (err == null) {
+          this.webhookNotify(WebhookEvent.STOPPED, null);
+          this.plugin.getLogger().info(String.format("Stopped server %s after %d hours idle", this.targetServer,
+              idle.toHours()));
+        } else {
+          this.plugin.getLogger().severe(String.format("Error stopping machine: %s", err.toString()));
+          err.printStackTrace();
+          this.reconciling = true;
+          publishSnapshot();
+        }
+      } finally {
+        rescheduleDeadlines();
+        l.unlock();
       }
-
-      update();
-    }
+      requestUpdate();
+    }, scheduler);
   }
 
   public enum WebhookEvent {
-    RESUMED, SUSPENDED, JOINED_WHILE_RUNNING, LEFT, KEEPALIVE
+    RESUMED, SUSPENDED, STOPPED, JOINED_WHILE_RUNNING, LEFT, KEEPALIVE
   }
 
   public void webhookNotify(final WebhookEvent event, ProxiedPlayer actor) {
-    final var plugin = this.plugin;
-    final var config = plugin.getConfig();
-    if (!config.contains(ConfigKeys.WEBHOOK)) {
+    if (this.webhook == null || stopped) {
       return;
     }
-    final var webhook_config = config.getSection(ConfigKeys.WEBHOOK);
     final String player_name;
-    if (webhook_config.getBoolean(ConfigKeys.WEBHOOK_INCLUDE_USER, true) && actor != null) {
+    if (this.webhookIncludeUser && actor != null) {
       player_name = actor.getName();
     } else {
       player_name = null;
     }
-    final var client = this.webhookClient;
-    final int nb_players = this.lastPlayerCount; // A more reliable number than proxy.getOnlineCount when player are
-                                                 // leaving. See Events.onDisconnect
-    plugin.getProxy().getScheduler().runAsync(plugin, () -> {
-      String msg = generateWebhookMessage(event, player_name, nb_players);
-      var json = new JsonObject();
-      json.addProperty(webhook_config.getString(ConfigKeys.WEBHOOK_JSON_KEY, "content"), msg);
-      try {
-        var req = HttpRequest.newBuilder()
-            .POST(HttpRequest.BodyPublishers.ofString(new Gson().toJson(json)))
-            .uri(new URI(webhook_config.getString(ConfigKeys.WEBHOOK_URL)))
-            .setHeader("User-Agent", "Minecraft-AutoSuspend")
-            .setHeader("Content-Type", "application/json")
-            .build();
-        var res = client.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() < 200 || res.statusCode() >= 300) {
-          throw new Exception(String.format("%d: %s", res.statusCode(), res.body()));
-        }
-      } catch (Exception e) {
-        plugin.getLogger().severe(String.format("Unable to send webhook: ", e.toString()));
-        e.printStackTrace();
-      }
-    });
+    String msg = generateWebhookMessage(event, player_name, this.snapshot.get().playerCount);
+    if (plugin.getStateManagers().size() > 1) {
+      msg = String.format("[%s] %s", this.targetServer, msg);
+    }
+    this.webhook.submit(msg);
   }
 
-  private String generateWebhookMessage(WebhookEvent event, String player_name, int nb_players) {
+  static String generateWebhookMessage(WebhookEvent event, String player_name, int nb_players) {
     switch (event) {
       case RESUMED:
         if (player_name != null) {
@@ -335,6 +1449,8 @@ public class ServerStateManager implements Runnable {
         }
       case SUSPENDED:
         return "Server suspended.";
+      case STOPPED:
+        return "Server stopped.";
       case JOINED_WHILE_RUNNING:
         if (player_name != null) {
           return String.format("%s joined the game. (%d players online)", player_name, nb_players);
@@ -0,0 +1,124 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Decides when a server list ping should resume a suspended server ahead of an
+ * actual join, and keeps score of how often that pays off.
+ *
+ * Pings only count if they come from an address that has joined before (unless
+ * configured otherwise), each address triggers at most once per dedupe period,
+ * and there is an hourly cap on the total number of speculative resumes.
+ */
+public class SpeculativeResume {
+  private static final int MAX_KNOWN_ADDRESSES = 10000;
+
+  private final boolean enabled;
+  private final Duration keepAlive;
+  private final int maxPerHour;
+  private final Duration dedupe;
+  private final boolean knownPlayersOnly;
+
+  private final Set<InetAddress> knownAddresses = ConcurrentHashMap.newKeySet();
+  private final Map<InetAddress, Instant> lastTriggerByAddress = new ConcurrentHashMap<>();
+  /**
+   * Times of speculative resumes in the last hour. Guarded by this.
+   */
+  private final ArrayDeque<Instant> recentTriggers = new ArrayDeque<>();
+  private final PrewarmStats stats = new PrewarmStats();
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.SPECULATIVE_ENABLED, false);
+    cfg.set(ConfigKeys.SPECULATIVE_KEEPALIVE_SECS, 60);
+    cfg.set(ConfigKeys.SPECULATIVE_MAX_PER_HOUR, 6);
+    cfg.set(ConfigKeys.SPECULATIVE_DEDUPE_SECS, 600);
+    cfg.set(ConfigKeys.SPECULATIVE_KNOWN_PLAYERS_ONLY, true);
+    return cfg;
+  }
+
+  public SpeculativeResume(Configuration config) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.enabled = config.getBoolean(ConfigKeys.SPECULATIVE_ENABLED, false);
+    this.keepAlive = Duration.ofSeconds(config.getInt(ConfigKeys.SPECULATIVE_KEEPALIVE_SECS, 60));
+    this.maxPerHour = config.getInt(ConfigKeys.SPECULATIVE_MAX_PER_HOUR, 6);
+    this.dedupe = Duration.ofSeconds(config.getInt(ConfigKeys.SPECULATIVE_DEDUPE_SECS, 600));
+    this.knownPlayersOnly = config.getBoolean(ConfigKeys.SPECULATIVE_KNOWN_PLAYERS_ONLY, true);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * How long to keep the server up after a speculative resume if nobody joins.
+   */
+  public Duration getKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Remember an address a real player has connected from.
+   */
+  public void playerSeen(InetAddress address) {
+    if (!enabled || address == null) {
+      return;
+    }
+    if (knownAddresses.size() >= MAX_KNOWN_ADDRESSES) {
+      knownAddresses.clear();
+    }
+    knownAddresses.add(address);
+  }
+
+  /**
+   * Called for pings while the server is suspended.
+   *
+   * @return whether to start a speculative resume now.
+   */
+  public boolean onPing(InetAddress from, Instant now) {
+    if (!enabled || from == null) {
+      return false;
+    }
+    if (knownPlayersOnly && !knownAddresses.contains(from)) {
+      return false;
+    }
+    var last = lastTriggerByAddress.get(from);
+    if (last != null && last.plus(dedupe).isAfter(now)) {
+      return false;
+    }
+    synchronized (this) {
+      if (stats.isWindowOpen()) {
+        // Already resuming on someone's behalf.
+        return false;
+      }
+      var hourAgo = now.minus(Duration.ofHours(1));
+      while (!recentTriggers.isEmpty() && recentTriggers.peekFirst().isBefore(hourAgo)) {
+        recentTriggers.pollFirst();
+      }
+      if (recentTriggers.size() >= maxPerHour) {
+        return false;
+      }
+      recentTriggers.addLast(now);
+      stats.open(now);
+    }
+    if (lastTriggerByAddress.size() >= MAX_KNOWN_ADDRESSES) {
+      lastTriggerByAddress.clear();
+    }
+    lastTriggerByAddress.put(from, now);
+    return true;
+  }
+
+  public PrewarmStats getStats() {
+    return stats;
+  }
+}
@@ -0,0 +1,180 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A minimal non-blocking Server List Ping client. It only checks that the
+ * backend answers a status request with a status response - the response
+ * itself is not parsed - which is exactly the point at which it will also
+ * accept logins.
+ */
+public final class StatusPing {
+  /**
+   * "Unknown" protocol version. Servers answer status requests regardless of
+   * the version the client claims.
+   */
+  private static final int PROTOCOL_VERSION = -1;
+  private static final int NEXT_STATE_STATUS = 1;
+
+  private StatusPing() {
+  }
+
+  /**
+   * Pings the given address once.
+   *
+   * @return a future completed when a status response arrives, or completed
+   *         exceptionally on any connection error, unexpected reply or timeout.
+   */
+  public static CompletableFuture<Void> ping(InetSocketAddress address, Duration timeout,
+      ScheduledExecutorService scheduler) {
+    var result = new CompletableFuture<Void>();
+    final AsynchronousSocketChannel ch;
+    try {
+      ch = AsynchronousSocketChannel.open();
+    } catch (IOException e) {
+      result.completeExceptionally(e);
+      return result;
+    }
+    var timeoutTask = scheduler.schedule(() -> {
+      result.completeExceptionally(new TimeoutException("Status ping timed out"));
+    }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+    result.whenComplete((v, e) -> {
+      timeoutTask.cancel(false);
+      try {
+        ch.close();
+      } catch (IOException ignored) {
+      }
+    });
+
+    final var request = ByteBuffer.wrap(buildRequest(address));
+    final var response = ByteBuffer.allocate(16);
+    final CompletionHandler<Integer, Void> onRead = new CompletionHandler<>() {
+      @Override
+      public void completed(Integer n, Void a) {
+        if (n < 0) {
+          result.completeExceptionally(new IOException("Connection closed before status response"));
+          return;
+        }
+        var view = response.duplicate().flip();
+        int length, packetId;
+        try {
+          length = readVarInt(view);
+          packetId = readVarInt(view);
+        } catch (IncompleteException e) {
+          if (!response.hasRemaining()) {
+            result.completeExceptionally(new IOException("Malformed status response"));
+          } else {
+            ch.read(response, null, this);
+          }
+          return;
+        }
+        if (packetId != 0 || length < 2) {
+          result.completeExceptionally(
+              new IOException(String.format("Unexpected packet %d of length %d", packetId, length)));
+          return;
+        }
+        result.complete(null);
+      }
+
+      @Override
+      public void failed(Throwable e, Void a) {
+        result.completeExceptionally(e);
+      }
+    };
+    final CompletionHandler<Integer, Void> onWrite = new CompletionHandler<>() {
+      @Override
+      public void completed(Integer n, Void a) {
+        if (request.hasRemaining()) {
+          ch.write(request, null, this);
+        } else {
+          ch.read(response, null, onRead);
+        }
+      }
+
+      @Override
+      public void failed(Throwable e, Void a) {
+        result.completeExceptionally(e);
+      }
+    };
+    try {
+      ch.connect(address, null, new CompletionHandler<Void, Void>() {
+        @Override
+        public void completed(Void v, Void a) {
+          ch.write(request, null, onWrite);
+        }
+
+        @Override
+        public void failed(Throwable e, Void a) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      // e.g. UnresolvedAddressException
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /**
+   * Handshake with next state = status, followed by a status request.
+   */
+  private static byte[] buildRequest(InetSocketAddress address) {
+    var handshake = new ByteArrayOutputStream();
+    writeVarInt(handshake, 0x00);
+    writeVarInt(handshake, PROTOCOL_VERSION);
+    var host = address.getHostString().getBytes(StandardCharsets.UTF_8);
+    writeVarInt(handshake, host.length);
+    handshake.writeBytes(host);
+    handshake.write((address.getPort() >> 8) & 0xff);
+    handshake.write(address.getPort() & 0xff);
+    writeVarInt(handshake, NEXT_STATE_STATUS);
+
+    var out = new ByteArrayOutputStream();
+    writeVarInt(out, handshake.size());
+    out.writeBytes(handshake.toByteArray());
+    // Status request: length 1, packet id 0, no fields.
+    writeVarInt(out, 1);
+    writeVarInt(out, 0x00);
+    return out.toByteArray();
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static class IncompleteException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static int readVarInt(ByteBuffer buf) throws IncompleteException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (!buf.hasRemaining()) {
+        throw new IncompleteException();
+      }
+      byte b = buf.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    // Over-long varint. Report as incomplete so the caller gives up once the
+    // buffer is full.
+    throw new IncompleteException();
+  }
+}
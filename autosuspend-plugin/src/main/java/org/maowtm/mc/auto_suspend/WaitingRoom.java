@@ -0,0 +1,191 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+/**
+ * Keeps players waiting for a resume informed. While a resume is in progress,
+ * every queued player who is already on some server (another backend, or the
+ * configured holding server) gets an action bar message with the current phase
+ * and an estimate of the time left, based on how long recent resumes from the
+ * same state (suspended or stopped) took.
+ */
+public class WaitingRoom {
+  private static final int HISTORY_SIZE = 20;
+  private static final Duration TICK = Duration.ofSeconds(1);
+
+  public static enum Phase {
+    RESUME_REQUESTED("Waking up the server"),
+    START_REQUESTED("Booting up the server"),
+    VM_RUNNING("Starting Minecraft"),
+    WARMING_UP("Warming up"),
+    BACKEND_READY("Ready, connecting you");
+
+    public final String description;
+
+    Phase(String description) {
+      this.description = description;
+    }
+  }
+
+  private final String serverName;
+  private final Clock clock;
+  // Guarded by this
+  private final Map<State, ArrayDeque<Duration>> history = new EnumMap<>(State.class);
+  /**
+   * Estimates to go by until something has been observed.
+   */
+  private final Map<State, Duration> expected = new EnumMap<>(State.class);
+  private Phase phase = null;
+  private Instant resumeStartedAt = null;
+  private State resumingFrom = null;
+  private Deadline ticker = null;
+
+  public WaitingRoom(String serverName, Clock clock) {
+    this.serverName = serverName;
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the deadline used to schedule progress updates. Its action should call
+   * {@link #tick}.
+   */
+  public synchronized void setTicker(Deadline ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * Sets what to tell players about resumes from the given state before any
+   * have been seen.
+   */
+  public synchronized void setExpectedResumeTime(State from, Duration d) {
+    this.expected.put(from, d);
+  }
+
+  /**
+   * Begins showing progress until {@link #backendReady} or {@link #reset} is
+   * called.
+   *
+   * @param from the state the server is being brought up from.
+   */
+  public synchronized void resumeStarted(Instant now, State from) {
+    this.phase = from == State.STOPPED ? Phase.START_REQUESTED : Phase.RESUME_REQUESTED;
+    this.resumeStartedAt = now;
+    this.resumingFrom = from;
+    if (ticker != null) {
+      ticker.set(now);
+    }
+  }
+
+  public synchronized void vmRunning() {
+    if (phase != null) {
+      phase = Phase.VM_RUNNING;
+    }
+  }
+
+  public synchronized void warmingUp() {
+    if (phase != null) {
+      phase = Phase.WARMING_UP;
+    }
+  }
+
+  /**
+   * The backend is accepting connections and warmed up, if it needed to be.
+   * Records how long this resume took.
+   */
+  public synchronized void backendReady(Instant now) {
+    if (resumeStartedAt != null) {
+      var h = history.computeIfAbsent(resumingFrom, k -> new ArrayDeque<>());
+      h.addLast(Duration.between(resumeStartedAt, now));
+      while (h.size() > HISTORY_SIZE) {
+        h.pollFirst();
+      }
+    }
+    reset();
+  }
+
+  public synchronized void reset() {
+    phase = null;
+    resumeStartedAt = null;
+    resumingFrom = null;
+    if (ticker != null) {
+      ticker.cancel();
+    }
+  }
+
+  /**
+   * Median of recent durations of resumes from the given state, or null if
+   * there is no history yet.
+   */
+  public synchronized Duration getTypicalResumeTime(State from) {
+    var h = history.get(from);
+    if (h == null || h.isEmpty()) {
+      return null;
+    }
+    var sorted = new ArrayList<>(h);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  /**
+   * Like {@link #getTypicalResumeTime}, falling back to the expected time set
+   * for that state, if any.
+   */
+  public synchronized Duration getExpectedResumeTime(State from) {
+    var typical = getTypicalResumeTime(from);
+    return typical != null ? typical : expected.get(from);
+  }
+
+  /**
+   * Sends the current progress to the given players and schedules the next
+   * update. Called by the ticker.
+   */
+  public void tick(Supplier<List<ProxiedPlayer>> waiting) {
+    String text;
+    synchronized (this) {
+      if (phase == null || ticker == null) {
+        return;
+      }
+      var now = clock.instant();
+      text = describe(now);
+      ticker.set(now.plus(TICK));
+    }
+    var msg = new ComponentBuilder().color(ChatColor.YELLOW).append(text).create();
+    for (var p : waiting.get()) {
+      if (p.getServer() != null) {
+        p.sendMessage(ChatMessageType.ACTION_BAR, msg);
+      }
+    }
+  }
+
+  /**
+   * Must hold this.
+   */
+  private String describe(Instant now) {
+    var elapsed = Duration.between(resumeStartedAt, now);
+    var typical = getExpectedResumeTime(resumingFrom);
+    if (typical == null) {
+      return String.format("%s %s... (%ds)", phase.description, serverName, elapsed.toSeconds());
+    }
+    var left = typical.minus(elapsed);
+    if (left.isNegative() || left.isZero()) {
+      return String.format("%s %s... almost there", phase.description, serverName);
+    }
+    return String.format("%s %s... about %ds left", phase.description, serverName, left.toSeconds() + 1);
+  }
+}
@@ -0,0 +1,55 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Runs commands on a backend over RCON after it has been resumed, before the
+ * players waiting for it are let in. While suspended, the server's memory may
+ * have been paged out and the JVM's compiled code thrown away, so otherwise the
+ * first players to join pay for bringing all of it back as seconds of lag.
+ * Commands like {@code forceload} on the spawn area move that to before anyone
+ * is connected.
+ */
+public class WarmUp {
+  private final Rcon rcon;
+  private final List<String> commands;
+  private final Duration timeout;
+
+  public static Configuration getDefaultConfig() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.WARM_UP_COMMANDS, List.of());
+    cfg.set(ConfigKeys.WARM_UP_TIMEOUT_SECS, 30);
+    return cfg;
+  }
+
+  public WarmUp(Configuration config, Rcon rcon) {
+    if (config == null) {
+      config = getDefaultConfig();
+    }
+    this.rcon = rcon;
+    this.commands = List.copyOf(config.getStringList(ConfigKeys.WARM_UP_COMMANDS));
+    this.timeout = Duration.ofSeconds(config.getInt(ConfigKeys.WARM_UP_TIMEOUT_SECS, 30));
+  }
+
+  public boolean isEnabled() {
+    return !commands.isEmpty() && rcon.isConfigured();
+  }
+
+  /**
+   * @return a future completed with the time the commands took, or completed
+   *         exceptionally if they failed or didn't finish in time. Cancelling it
+   *         stops waiting for them.
+   */
+  public CompletableFuture<Duration> run(ScheduledExecutorService scheduler) {
+    return rcon.runTimed(commands, timeout, scheduler);
+  }
+
+  public List<String> getCommands() {
+    return commands;
+  }
+}
@@ -0,0 +1,239 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Sends webhook messages for one webhook URL. Messages submitted within a short
+ * window are combined into one request, and only one request is in flight at a
+ * time. Rate limits (429 with Retry-After) and transient failures are retried
+ * with backoff instead of dropping the message.
+ */
+public class WebhookDispatcher {
+  private static final int MAX_QUEUED = 100;
+  /**
+   * Discord's limit on message content length.
+   */
+  private static final int MAX_MESSAGE_LENGTH = 2000;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(5);
+
+  private static final Gson GSON = new Gson();
+
+  private final Logger logger;
+  private final ScheduledExecutorService scheduler;
+  private final HttpClient client;
+  private final HttpRequest.Builder requestTemplate;
+  private final String jsonKey;
+  private final Duration coalesceWindow;
+  private final Duration initialBackoff;
+
+  // Guarded by this
+  private final ArrayDeque<String> queue = new ArrayDeque<>();
+  /**
+   * Whether a flush is scheduled or a request is in flight. While set, new
+   * messages just join the queue.
+   */
+  private boolean busy = false;
+  /**
+   * Completed once busy is cleared.
+   */
+  private CompletableFuture<Void> idle = CompletableFuture.completedFuture(null);
+  /**
+   * The flush waiting out the coalescing window, if any.
+   */
+  private ScheduledFuture<?> pendingFlush = null;
+  /**
+   * Set by {@link #drain()}, after which messages are sent without waiting.
+   */
+  private boolean draining = false;
+  private long dropped = 0;
+
+  public WebhookDispatcher(Configuration webhookConfig, ScheduledExecutorService scheduler, Logger logger) {
+    this(webhookConfig, scheduler, logger, INITIAL_BACKOFF);
+  }
+
+  WebhookDispatcher(Configuration webhookConfig, ScheduledExecutorService scheduler, Logger logger,
+      Duration initialBackoff) {
+    this.logger = logger;
+    this.scheduler = scheduler;
+    this.client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(10000)).build();
+    this.requestTemplate = HttpRequest.newBuilder()
+        .uri(URI.create(webhookConfig.getString(ConfigKeys.WEBHOOK_URL)))
+        .timeout(Duration.ofSeconds(30))
+        .setHeader("User-Agent", "Minecraft-AutoSuspend")
+        .setHeader("Content-Type", "application/json");
+    this.jsonKey = webhookConfig.getString(ConfigKeys.WEBHOOK_JSON_KEY, "content");
+    this.coalesceWindow = Duration.ofMillis(webhookConfig.getInt(ConfigKeys.WEBHOOK_COALESCE_MS, 2000));
+    this.initialBackoff = initialBackoff;
+  }
+
+  public synchronized void submit(String message) {
+    if (queue.size() >= MAX_QUEUED) {
+      queue.pollFirst();
+      dropped++;
+    }
+    queue.addLast(message);
+    if (busy) {
+      return;
+    }
+    busy = true;
+    idle = new CompletableFuture<>();
+    pendingFlush = schedule(this::flush, draining ? Duration.ZERO : coalesceWindow);
+  }
+
+  /**
+   * Sends whatever is queued now, without waiting out the coalescing window,
+   * as does every later {@link #submit}. Used when shutting down.
+   *
+   * @return a future completed once nothing is queued or in flight. Retries
+   *         still wait, so callers should only wait on it for a bounded time.
+   */
+  public synchronized CompletableFuture<Void> drain() {
+    draining = true;
+    if (pendingFlush != null && pendingFlush.cancel(false)) {
+      pendingFlush = schedule(this::flush, Duration.ZERO);
+    }
+    return idle;
+  }
+
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Takes as many queued messages as fit into one request.
+   */
+  private synchronized String takeBatch() {
+    if (dropped > 0) {
+      logger.warning(String.format("Webhook queue full, dropped %d messages", dropped));
+      dropped = 0;
+    }
+    var lines = new ArrayList<String>();
+    int len = 0;
+    while (!queue.isEmpty()) {
+      var next = queue.peekFirst();
+      if (next.length() > MAX_MESSAGE_LENGTH) {
+        queue.pollFirst();
+        next = next.substring(0, MAX_MESSAGE_LENGTH);
+        queue.addFirst(next);
+      }
+      if (!lines.isEmpty() && len + 1 + next.length() > MAX_MESSAGE_LENGTH) {
+        break;
+      }
+      len += (lines.isEmpty() ? 0 : 1) + next.length();
+      lines.add(queue.pollFirst());
+    }
+    if (lines.isEmpty()) {
+      setIdle();
+      return null;
+    }
+    return String.join("\n", lines);
+  }
+
+  /**
+   * Must hold this.
+   */
+  private void setIdle() {
+    busy = false;
+    pendingFlush = null;
+    idle.complete(null);
+  }
+
+  /**
+   * Must hold this.
+   *
+   * @return the scheduled task, or null if the scheduler has been shut down, in
+   *         which case nothing is in flight any more and messages stay queued.
+   */
+  private ScheduledFuture<?> schedule(Runnable task, Duration delay) {
+    try {
+      return scheduler.schedule(task, delay.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.warning(String.format("Unable to send webhook, %d messages left unsent: %s", queue.size(), e));
+      setIdle();
+      return null;
+    }
+  }
+
+  private void flush() {
+    synchronized (this) {
+      pendingFlush = null;
+    }
+    var content = takeBatch();
+    if (content != null) {
+      send(content, 1, initialBackoff);
+    }
+  }
+
+  private void send(String content, int attempt, Duration backoff) {
+    var req = requestTemplate.copy().POST(HttpRequest.BodyPublishers.ofString(toJson(content))).build();
+    client.sendAsync(req, HttpResponse.BodyHandlers.ofString()).whenComplete((res, err) -> {
+      Duration retryIn = null;
+      String error = null;
+      if (err != null) {
+        error = err.toString();
+        retryIn = backoff;
+      } else if (res.statusCode() == 429) {
+        error = "rate limited";
+        retryIn = parseRetryAfter(res, backoff);
+      } else if (res.statusCode() >= 500) {
+        error = String.format("%d: %s", res.statusCode(), res.body());
+        retryIn = backoff;
+      } else if (res.statusCode() < 200 || res.statusCode() >= 300) {
+        // Our fault, retrying won't help.
+        error = String.format("%d: %s", res.statusCode(), res.body());
+      }
+      if (error != null && retryIn != null && attempt < MAX_ATTEMPTS) {
+        logger.warning(String.format("Unable to send webhook (attempt %d), retrying in %d ms: %s", attempt,
+            retryIn.toMillis(), error));
+        synchronized (this) {
+          schedule(() -> send(content, attempt + 1, backoff.multipliedBy(2)), retryIn);
+        }
+        return;
+      }
+      if (error != null) {
+        logger.severe(String.format("Unable to send webhook: %s", error));
+      }
+      // Whatever piled up in the meantime goes out right away - it has
+      // already waited at least one window.
+      flush();
+    });
+  }
+
+  String toJson(String content) {
+    var json = new JsonObject();
+    json.addProperty(jsonKey, content);
+    return GSON.toJson(json);
+  }
+
+  private static Duration parseRetryAfter(HttpResponse<String> res, Duration fallback) {
+    var header = res.headers().firstValue("Retry-After");
+    if (header.isPresent()) {
+      try {
+        var d = Duration.ofMillis((long) (Double.parseDouble(header.get()) * 1000));
+        return d.compareTo(MAX_RETRY_AFTER) > 0 ? MAX_RETRY_AFTER : d;
+      } catch (NumberFormatException e) {
+        // Could be an HTTP date, which Discord doesn't send.
+      }
+    }
+    return fallback;
+  }
+}
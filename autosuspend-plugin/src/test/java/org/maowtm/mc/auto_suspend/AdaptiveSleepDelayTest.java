@@ -0,0 +1,149 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * With the default resume and suspend times of 10 and 15 seconds, a suspend
+ * and resume cycle costs 25 seconds plus the latency weight times 10.
+ */
+public class AdaptiveSleepDelayTest {
+  private static final Duration FLOOR = Duration.ofSeconds(60);
+
+  private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+  private static AdaptiveSleepDelay delay(int maxSecs, double latencyWeight, int history, int minSamples) {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_ENABLED, true);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_MAX_SECS, maxSecs);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_LATENCY_WEIGHT, latencyWeight);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_HISTORY, history);
+    cfg.set(ConfigKeys.ADAPTIVE_SLEEP_MIN_SAMPLES, minSamples);
+    return new AdaptiveSleepDelay(cfg, FLOOR);
+  }
+
+  /**
+   * The server empties, and someone comes back after the given time.
+   *
+   * @return whether the delay changed.
+   */
+  private boolean gap(AdaptiveSleepDelay d, long secs) {
+    d.serverEmptied(now);
+    now = now.plusSeconds(secs);
+    return d.joinAttempted(now);
+  }
+
+  private void gaps(AdaptiveSleepDelay d, int n, long secs) {
+    for (int i = 0; i < n; i++) {
+      gap(d, secs);
+    }
+  }
+
+  @Test
+  public void disabledUsesTheFloor() {
+    var d = new AdaptiveSleepDelay(AdaptiveSleepDelay.getDefaultConfig(), FLOOR);
+    assertFalse(d.isEnabled());
+    gaps(d, 50, 100);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void floorUntilThereAreEnoughSamples() {
+    var d = delay(1800, 20, 200, 10);
+    gaps(d, 9, 100);
+    assertEquals(FLOOR, d.getDelay());
+    assertTrue(gap(d, 100));
+    assertEquals(Duration.ofSeconds(100), d.getDelay());
+  }
+
+  @Test
+  public void coversGapsShorterThanACycle() {
+    var d = delay(1800, 20, 200, 1);
+    // A cycle costs 225 s, more than waiting 100 s for them to come back.
+    gaps(d, 20, 100);
+    assertEquals(Duration.ofSeconds(100), d.getDelay());
+  }
+
+  @Test
+  public void staysAtTheFloorForLongGaps() {
+    var d = delay(1800, 20, 200, 1);
+    // Waiting 1000 s each time would cost more than the 225 s cycle.
+    gaps(d, 20, 1000);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void neverBelowTheFloor() {
+    var d = delay(1800, 20, 200, 1);
+    gaps(d, 20, 10);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void neverAboveTheCeiling() {
+    // A cycle costs 2025 s, so covering a 2000 s gap would be worth it, but
+    // that is over the ceiling.
+    var d = delay(1800, 200, 200, 1);
+    gaps(d, 20, 2000);
+    assertEquals(FLOOR, d.getDelay());
+
+    // Gaps of exactly the ceiling are covered by it.
+    d = delay(1800, 200, 200, 1);
+    gaps(d, 20, 1800);
+    assertEquals(Duration.ofSeconds(1800), d.getDelay());
+  }
+
+  @Test
+  public void ceilingBelowTheFloorIsTheFloor() {
+    var d = delay(30, 200, 200, 1);
+    gaps(d, 20, 45);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void picksTheCheapestOfMixedGaps() {
+    var d = delay(1800, 20, 200, 1);
+    // Half come back after 90 s and half after 5000 s. Waiting 90 s costs
+    // (90 + 90 + 225) / 2 = 202.5 s on average, against (60 + 225) = 285 s
+    // at the floor.
+    for (int i = 0; i < 10; i++) {
+      gap(d, 90);
+      gap(d, 5000);
+    }
+    assertEquals(Duration.ofSeconds(90), d.getDelay());
+  }
+
+  @Test
+  public void measuredTimesChangeTheTradeOff() {
+    var d = delay(1800, 0, 200, 1);
+    // A cycle now costs 2 s, cheaper than waiting 100 s.
+    d.resumeTook(Duration.ofSeconds(1));
+    d.suspendTook(Duration.ofSeconds(1));
+    gaps(d, 20, 100);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void onlyRecentGapsCount() {
+    var d = delay(1800, 20, 10, 1);
+    gaps(d, 10, 100);
+    assertEquals(Duration.ofSeconds(100), d.getDelay());
+    gaps(d, 10, 1000);
+    assertEquals(FLOOR, d.getDelay());
+  }
+
+  @Test
+  public void joinWhileRunningIsNotAGap() {
+    var d = delay(1800, 20, 200, 1);
+    assertFalse(d.joinAttempted(now));
+    assertEquals(FLOOR, d.getDelay());
+  }
+}
@@ -0,0 +1,207 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.md_5.bungee.api.ProxyConfig;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.ServerConnectRequest;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.config.Configuration;
+
+public class AdmissionControllerTest {
+  private static final Instant T0 = Instant.parse("2024-01-01T00:00:00Z");
+  private static final Duration MAX_BATCH_WAIT = Duration.ofSeconds(15);
+
+  private static <T> T stub(Class<T> cls) {
+    return mock(cls, withSettings().stubOnly());
+  }
+
+  @BeforeClass
+  public static void setUpProxy() {
+    // Deprecated, but still read by ServerConnectRequest.builder().
+    @SuppressWarnings("deprecation")
+    var proxyConfig = stub(ProxyConfig.class);
+    when(proxyConfig.getServerConnectTimeout()).thenReturn(5000);
+    var proxy = stub(ProxyServer.class);
+    when(proxy.getConfig()).thenReturn(proxyConfig);
+    if (ProxyServer.getInstance() == null) {
+      ProxyServer.setInstance(proxy);
+    }
+  }
+
+  private final ServerInfo target = stub(ServerInfo.class);
+  /**
+   * Players sent to the server, in order.
+   */
+  private final List<ProxiedPlayer> sent = new ArrayList<>();
+  /**
+   * Connection attempts not yet finished.
+   */
+  private final List<ServerConnectRequest> requests = new ArrayList<>();
+  private AdmissionController admission;
+
+  @Before
+  public void setUp() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.ADMISSION_BATCH_SIZE, 2);
+    cfg.set(ConfigKeys.ADMISSION_INTERVAL_MS, 1000);
+    admission = new AdmissionController(cfg);
+  }
+
+  private ProxiedPlayer player(int id, boolean connected) {
+    var p = stub(ProxiedPlayer.class);
+    when(p.getUniqueId()).thenReturn(new UUID(0, id));
+    when(p.isConnected()).thenReturn(connected);
+    doAnswer(inv -> {
+      sent.add(p);
+      requests.add(inv.getArgument(0, ServerConnectRequest.class));
+      return null;
+    }).when(p).connect(any(ServerConnectRequest.class));
+    return p;
+  }
+
+  private List<ProxiedPlayer> queue(int n) {
+    var players = new ArrayList<ProxiedPlayer>();
+    for (int i = 0; i < n; i++) {
+      var p = player(i, true);
+      admission.enqueue(p);
+      players.add(p);
+    }
+    return players;
+  }
+
+  private Instant admit(Instant now) {
+    return admission.admit(target, now, admission::connectDone);
+  }
+
+  /**
+   * Finishes connecting everyone sent so far, as BungeeCord would.
+   */
+  private void finishAll() {
+    for (var r : requests) {
+      r.getCallback().done(ServerConnectRequest.Result.SUCCESS, null);
+    }
+    requests.clear();
+  }
+
+  @Test
+  public void emptyQueueNeedsNoFurtherCalls() {
+    assertNull(admit(T0));
+  }
+
+  @Test
+  public void sendsOneBatchPerInterval() {
+    var players = queue(5);
+    assertEquals(T0.plusSeconds(1), admit(T0));
+    assertEquals(players.subList(0, 2), sent);
+    assertEquals(3, admission.size());
+
+    finishAll();
+    // Done connecting, but the interval isn't up yet.
+    assertEquals(T0.plusSeconds(1), admit(T0.plusMillis(500)));
+    assertEquals(2, sent.size());
+
+    assertEquals(T0.plusSeconds(2), admit(T0.plusSeconds(1)));
+    assertEquals(players.subList(0, 4), sent);
+    finishAll();
+    // The last one, after which there is nothing left to wait for.
+    assertNull(admit(T0.plusSeconds(2)));
+    assertEquals(players, sent);
+    assertTrue(admission.isEmpty());
+  }
+
+  @Test
+  public void waitsForTheBatchToFinishConnecting() {
+    queue(4);
+    admit(T0);
+    // One of the two is still connecting.
+    requests.get(0).getCallback().done(ServerConnectRequest.Result.SUCCESS, null);
+    assertEquals(T0.plus(MAX_BATCH_WAIT), admit(T0.plusSeconds(5)));
+    assertEquals(2, sent.size());
+    requests.get(1).getCallback().done(ServerConnectRequest.Result.FAIL, null);
+    admit(T0.plusSeconds(5));
+    assertEquals(4, sent.size());
+  }
+
+  @Test
+  public void givesUpWaitingOnABatchAfterMaxBatchWait() {
+    queue(4);
+    admit(T0);
+    var stuck = new ArrayList<>(requests);
+    requests.clear();
+    assertEquals(T0.plus(MAX_BATCH_WAIT), admit(T0.plus(MAX_BATCH_WAIT).minusMillis(1)));
+    assertEquals(2, sent.size());
+    admit(T0.plus(MAX_BATCH_WAIT));
+    assertEquals(4, sent.size());
+
+    // The first batch finally finishing doesn't count towards the second.
+    for (var r : stuck) {
+      r.getCallback().done(ServerConnectRequest.Result.SUCCESS, null);
+    }
+    queue(1);
+    var secondBatchAt = T0.plus(MAX_BATCH_WAIT);
+    assertEquals(secondBatchAt.plus(MAX_BATCH_WAIT), admit(secondBatchAt.plusSeconds(2)));
+    assertEquals(4, sent.size());
+  }
+
+  @Test
+  public void reconnectingPlayerKeepsTheirPlace() {
+    var first = player(1, true);
+    var second = player(2, true);
+    assertTrue(admission.enqueue(first));
+    assertTrue(admission.enqueue(second));
+    // Same player on a new connection.
+    var reconnected = player(1, true);
+    assertFalse(admission.enqueue(reconnected));
+    assertEquals(2, admission.size());
+    assertEquals(List.of(reconnected, second), admission.players());
+
+    admit(T0);
+    assertEquals(List.of(reconnected, second), sent);
+  }
+
+  @Test
+  public void skipsPlayersWhoLeft() {
+    var gone = player(0, false);
+    admission.enqueue(gone);
+    var players = new ArrayList<ProxiedPlayer>();
+    for (int i = 1; i <= 3; i++) {
+      var p = player(i, true);
+      admission.enqueue(p);
+      players.add(p);
+    }
+    // Doesn't take up a place in the batch either.
+    assertEquals(T0.plusSeconds(1), admit(T0));
+    assertEquals(players.subList(0, 2), sent);
+    assertEquals(1, admission.size());
+  }
+
+  @Test
+  public void unlimitedBatchSendsEveryone() {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.ADMISSION_BATCH_SIZE, 0);
+    admission = new AdmissionController(cfg);
+    var players = queue(10);
+    assertNull(admit(T0));
+    assertEquals(players, sent);
+  }
+}
@@ -0,0 +1,271 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Runs the controller against stand-ins for criu and zstd, which write files
+ * shaped like theirs and log how they were called. The server is a sleep
+ * process, which the stand-in criu kills on dump and starts again on restore.
+ */
+public class CriuControllerTest {
+  private static final Logger LOGGER = Logger.getLogger(CriuControllerTest.class.getName());
+
+  private static final String FAKE_CRIU = String.join("\n",
+      "#!/bin/sh",
+      "echo \"criu $*\" >> \"$CALLS\"",
+      "cmd=$1; shift",
+      "prev=",
+      "while [ $# -gt 0 ]; do",
+      "  case $1 in",
+      "    -D) dir=$2; shift ;;",
+      "    -t) pid=$2; shift ;;",
+      "    --pidfile) pidfile=$2; shift ;;",
+      "    --prev-images-dir) prev=$2; shift ;;",
+      "  esac",
+      "  shift",
+      "done",
+      // CRIU resolves it relative to the images directory.
+      "if [ -n \"$prev\" ] && [ ! -f \"$dir/$prev/pages-1.img\" ]; then exit 3; fi",
+      "case $cmd in",
+      "  pre-dump)",
+      "    if [ -f \"$SLOW\" ]; then exec sleep 30; fi",
+      "    echo pages > \"$dir/pages-1.img\" ;;",
+      "  dump)",
+      "    echo inventory > \"$dir/inventory.img\"",
+      "    echo pages > \"$dir/pages-1.img\"",
+      "    kill -9 \"$pid\" ;;",
+      "  restore)",
+      "    if [ ! -f \"$dir/pages-1.img\" ] || [ -e \"$dir/pages-1.img.zst\" ]; then exit 4; fi",
+      "    sleep 60 < /dev/null > /dev/null 2>&1 &",
+      "    echo $! > \"$pidfile\" ;;",
+      "esac",
+      "");
+
+  private static final String FAKE_ZSTD = String.join("\n",
+      "#!/bin/sh",
+      "echo \"zstd $*\" >> \"$CALLS\"",
+      "d=0",
+      "for a in \"$@\"; do",
+      "  case $a in",
+      "    -d) d=1 ;;",
+      "    -*) ;;",
+      "    *) if [ $d = 1 ]; then mv \"$a\" \"${a%.zst}\"; else mv \"$a\" \"$a.zst\"; fi ;;",
+      "  esac",
+      "done",
+      "");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path calls, slow, images;
+  private Path criu, zstd;
+  private final List<CriuController> controllers = new ArrayList<>();
+  private final List<ProcessHandle> servers = new ArrayList<>();
+
+  private Path script(String name, String body) throws IOException {
+    var text = body.replace("\"$CALLS\"", "\"" + calls + "\"").replace("\"$SLOW\"", "\"" + slow + "\"");
+    var p = tmp.getRoot().toPath().resolve(name);
+    Files.writeString(p, text);
+    Files.setPosixFilePermissions(p, PosixFilePermissions.fromString("rwx------"));
+    return p;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    assumeTrue(Files.isExecutable(Path.of("/bin/sh")));
+    calls = tmp.getRoot().toPath().resolve("calls");
+    slow = tmp.getRoot().toPath().resolve("slow");
+    Files.createFile(calls);
+    criu = script("criu", FAKE_CRIU);
+    zstd = script("zstd", FAKE_ZSTD);
+    images = tmp.getRoot().toPath().resolve("images");
+  }
+
+  @After
+  public void tearDown() {
+    for (var c : controllers) {
+      c.close();
+    }
+    for (var p : servers) {
+      p.destroyForcibly();
+    }
+  }
+
+  private CriuController controller(int preDumpPasses, boolean compress) {
+    var cfg = CriuController.getDefaultConfig();
+    cfg.set(ConfigKeys.CRIU_BINARY, criu.toString());
+    cfg.set(ConfigKeys.CRIU_ZSTD_BINARY, zstd.toString());
+    cfg.set(ConfigKeys.LOCAL_COMMAND, List.of("sleep", "60"));
+    cfg.set(ConfigKeys.CRIU_IMAGES_DIR, images.toString());
+    cfg.set(ConfigKeys.CRIU_PRE_DUMP_PASSES, preDumpPasses);
+    cfg.set(ConfigKeys.CRIU_COMPRESS, compress);
+    var c = new CriuController(cfg, tmp.getRoot(), new Metrics(), "test", LOGGER);
+    controllers.add(c);
+    return c;
+  }
+
+  /**
+   * Starts the server from scratch, as there is no checkpoint yet.
+   */
+  private ProcessHandle launch(CriuController c) throws Exception {
+    c.resume().get(5, TimeUnit.SECONDS);
+    var p = PidFile.load(images.resolve("pid"), LOGGER);
+    servers.add(p);
+    return p;
+  }
+
+  private List<String> calls(String prefix) throws IOException {
+    return Files.readAllLines(calls).stream().filter(l -> l.startsWith(prefix)).collect(Collectors.toList());
+  }
+
+  private static String argAfter(String call, String flag) {
+    var args = List.of(call.split(" "));
+    int i = args.indexOf(flag);
+    return i < 0 ? null : args.get(i + 1);
+  }
+
+  private List<Path> files(String suffix) throws IOException {
+    try (var s = Files.walk(images)) {
+      return s.filter(p -> p.getFileName().toString().endsWith(suffix)).collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void preDumpsChainOntoEachOther() throws Exception {
+    var c = controller(3, false);
+    var server = launch(c);
+    c.suspend().get(10, TimeUnit.SECONDS);
+    assertFalse(server.isAlive());
+
+    var preDumps = calls("criu pre-dump");
+    assertEquals(3, preDumps.size());
+    assertEquals(null, argAfter(preDumps.get(0), "--prev-images-dir"));
+    assertEquals("../1", argAfter(preDumps.get(1), "--prev-images-dir"));
+    assertEquals("../2", argAfter(preDumps.get(2), "--prev-images-dir"));
+    var dump = calls("criu dump").get(0);
+    assertEquals("../pre/3", argAfter(dump, "--prev-images-dir"));
+    assertTrue(dump.contains("--track-mem"));
+    assertEquals(Long.toString(server.pid()), argAfter(dump, "-t"));
+    assertEquals(State.SUSPENDED, c.checkState().get());
+  }
+
+  @Test
+  public void dumpWithoutPreDumps() throws Exception {
+    var c = controller(0, false);
+    launch(c);
+    c.suspend().get(10, TimeUnit.SECONDS);
+    assertTrue(calls("criu pre-dump").isEmpty());
+    assertEquals(null, argAfter(calls("criu dump").get(0), "--prev-images-dir"));
+  }
+
+  @Test
+  public void compressedDumpStillCountsAsACheckpoint() throws Exception {
+    var c = controller(1, true);
+    launch(c);
+    c.suspend().get(10, TimeUnit.SECONDS);
+    assertTrue(files(".img").stream().noneMatch(p -> p.getFileName().toString().startsWith("pages-")));
+    assertEquals(2, files(".img.zst").size());
+    // Without a command to start it from scratch, only the checkpoint makes it
+    // resumable.
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.CRIU_BINARY, criu.toString());
+    cfg.set(ConfigKeys.CRIU_IMAGES_DIR, images.toString());
+    cfg.set(ConfigKeys.LOCAL_COMMAND, List.of());
+    var reopened = new CriuController(cfg, tmp.getRoot(), new Metrics(), "test", LOGGER);
+    controllers.add(reopened);
+    assertEquals(State.SUSPENDED, reopened.checkState().get());
+  }
+
+  @Test
+  public void restoreDecompressesEvenWithCompressionOff() throws Exception {
+    var c = controller(1, true);
+    launch(c);
+    c.suspend().get(10, TimeUnit.SECONDS);
+    c.close();
+
+    // Turned off since the checkpoint was taken.
+    var restarted = controller(1, false);
+    restarted.resume().get(10, TimeUnit.SECONDS);
+    var restored = PidFile.load(images.resolve("pid"), LOGGER);
+    servers.add(restored);
+    assertTrue(restored.isAlive());
+    assertEquals(1, calls("zstd -d").size());
+    assertEquals(1, calls("criu restore").size());
+    assertEquals(State.RUNNING, restarted.checkState().get());
+    // So that it is never restored again.
+    assertTrue(files(".img").isEmpty());
+    assertTrue(files(".zst").isEmpty());
+  }
+
+  @Test
+  public void uncompressedRestoreSkipsZstd() throws Exception {
+    var c = controller(1, false);
+    launch(c);
+    c.suspend().get(10, TimeUnit.SECONDS);
+    c.resume().get(10, TimeUnit.SECONDS);
+    servers.add(PidFile.load(images.resolve("pid"), LOGGER));
+    assertTrue(calls("zstd").isEmpty());
+  }
+
+  @Test
+  public void closeStopsADumpAndDiscardsIt() throws Exception {
+    var c = controller(1, false);
+    var server = launch(c);
+    Files.createFile(slow);
+    var suspended = c.suspend();
+    for (int i = 0; i < 500 && calls("criu pre-dump").isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    long start = System.nanoTime();
+    c.close();
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    try {
+      suspended.get(5, TimeUnit.SECONDS);
+      assertTrue("Suspend should have failed", false);
+    } catch (ExecutionException e) {
+      // Expected.
+    }
+    // Never got as far as the final dump, which would have ended it.
+    assertTrue(calls("criu dump").isEmpty());
+    assertTrue(server.isAlive());
+    assertFalse(Files.exists(images.resolve("pre")));
+    assertFalse(Files.exists(images.resolve("dump")));
+  }
+
+  @Test
+  public void closedControllerRunsNothing() throws Exception {
+    var c = controller(1, false);
+    launch(c);
+    c.close();
+    try {
+      c.suspend().get(5, TimeUnit.SECONDS);
+      assertTrue("Suspend should have failed", false);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+    }
+    assertTrue(calls("criu").isEmpty());
+  }
+}
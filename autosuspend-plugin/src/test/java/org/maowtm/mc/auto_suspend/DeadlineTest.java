@@ -0,0 +1,108 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeadlineTest {
+  private ScheduledExecutorService scheduler;
+  private final Clock clock = Clock.systemUTC();
+  private final AtomicInteger runs = new AtomicInteger();
+  private Deadline deadline;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    deadline = new Deadline(scheduler, clock, runs::incrementAndGet);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Waits for everything the deadline could have scheduled with no delay to
+   * have run, on the single scheduler thread.
+   */
+  private void settle() throws Exception {
+    scheduler.schedule(() -> null, 50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void pastTimeRunsOnce() throws Exception {
+    var at = clock.instant().minusSeconds(1);
+    deadline.set(at);
+    settle();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void farPastTimeRunsRightAway() throws Exception {
+    // Too far back for the delay to fit in nanoseconds, like the first status
+    // check, which is due at Instant.MIN plus the check interval.
+    deadline.set(Instant.MIN.plusSeconds(5));
+    settle();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void farFutureTimeNeverRuns() throws Exception {
+    deadline.set(Instant.MAX.minusSeconds(5));
+    settle();
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void settingTheSameTimeAgainAfterItFiredDoesNothing() throws Exception {
+    var at = clock.instant().minusSeconds(1);
+    deadline.set(at);
+    settle();
+    // What update() does when a condition stays false past its deadline, such
+    // as an expired keepalive. Re-arming here would spin through updates.
+    for (int i = 0; i < 10; i++) {
+      deadline.set(at);
+    }
+    settle();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void differentTimeRunsAgain() throws Exception {
+    var at = clock.instant().minusSeconds(1);
+    deadline.set(at);
+    settle();
+    deadline.set(at.plusMillis(1));
+    settle();
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void sameTimeAfterCancelRunsAgain() throws Exception {
+    var at = clock.instant().minusSeconds(1);
+    deadline.set(at);
+    settle();
+    deadline.cancel();
+    deadline.set(at);
+    settle();
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void laterSettingReplacesEarlier() throws Exception {
+    deadline.set(clock.instant().plus(Duration.ofMillis(20)));
+    deadline.set(clock.instant().plus(Duration.ofHours(1)));
+    settle();
+    assertEquals(0, runs.get());
+  }
+}
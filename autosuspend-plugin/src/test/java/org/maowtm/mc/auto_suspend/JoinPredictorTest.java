@@ -0,0 +1,162 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * In London, where clocks go forward an hour at 01:00 GMT on 31 March 2024 and
+ * back at 01:00 GMT on 27 October 2024. Slots are 30 minutes, the lead time is
+ * 2 minutes, and each week moves a slot's probability halfway towards whether
+ * anyone joined in it.
+ */
+public class JoinPredictorTest {
+  private static final Logger LOGGER = Logger.getLogger(JoinPredictorTest.class.getName());
+  private static final ZoneId LONDON = ZoneId.of("Europe/London");
+  private static final double EPSILON = 1e-9;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static Instant local(String dateTime) {
+    return LocalDateTime.parse(dateTime).atZone(LONDON).toInstant();
+  }
+
+  private JoinPredictor predictor(String start) {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.PREDICTOR_ENABLED, true);
+    cfg.set(ConfigKeys.PREDICTOR_SLOT_MINUTES, 30);
+    cfg.set(ConfigKeys.PREDICTOR_LEAD_SECS, 120);
+    cfg.set(ConfigKeys.PREDICTOR_THRESHOLD, 0.5);
+    cfg.set(ConfigKeys.PREDICTOR_DECAY, 0.5);
+    return new JoinPredictor(cfg, new File(tmp.getRoot(), "joins"), Clock.fixed(local(start), LONDON), LOGGER);
+  }
+
+  @Test
+  public void slotsFollowLocalTimeAcrossTheClockChange() {
+    // 2024-03-21 and 03-28 are Thursdays in GMT, 04-04 is in BST.
+    var p = predictor("2024-03-21T00:00");
+    p.recordJoin(local("2024-03-21T19:10"));
+    p.recordJoin(local("2024-03-28T19:10"));
+    p.recordJoin(local("2024-04-04T19:10"));
+    // 1 - 0.5^3, the same slot all three weeks.
+    p.nextPrewarm(local("2024-04-04T20:00"));
+    assertEquals(0.875, p.probabilityAt(local("2024-04-11T19:10")), EPSILON);
+    // An hour off in UTC, where the last join would have been before DST.
+    assertEquals(0, p.probabilityAt(local("2024-04-11T20:10")), EPSILON);
+    assertEquals(0, p.probabilityAt(local("2024-04-11T18:10")), EPSILON);
+  }
+
+  @Test
+  public void foldsSkippedSlotsAsEmpty() {
+    var p = predictor("2024-03-07T00:00");
+    p.recordJoin(local("2024-03-07T19:10"));
+    p.recordJoin(local("2024-03-07T19:40"));
+    // Nothing calls in for two weeks. Both slots are folded once as empty,
+    // rather than once per week missed.
+    p.nextPrewarm(local("2024-03-21T12:00"));
+    assertEquals(0.25, p.probabilityAt(local("2024-03-21T19:10")), EPSILON);
+    assertEquals(0.25, p.probabilityAt(local("2024-03-21T19:40")), EPSILON);
+  }
+
+  @Test
+  public void foldsTheHourSkippedWhenClocksGoForward() {
+    var p = predictor("2024-03-24T00:00");
+    p.recordJoin(local("2024-03-24T01:15"));
+    p.recordJoin(local("2024-03-24T01:45"));
+    // A week later the local hour from 01:00 doesn't happen at all, and goes
+    // by with nobody joining.
+    p.recordJoin(local("2024-03-31T00:45"));
+    p.recordJoin(local("2024-03-31T02:15"));
+    p.nextPrewarm(local("2024-03-31T03:00"));
+    assertEquals(0.25, p.probabilityAt(local("2024-03-24T01:15")), EPSILON);
+    assertEquals(0.25, p.probabilityAt(local("2024-03-24T01:45")), EPSILON);
+    assertEquals(0.5, p.probabilityAt(local("2024-03-31T00:45")), EPSILON);
+    assertEquals(0.5, p.probabilityAt(local("2024-03-31T02:15")), EPSILON);
+  }
+
+  @Test
+  public void repeatedHourWhenClocksGoBackIsNotFoldedTwice() {
+    var p = predictor("2024-10-27T00:00");
+    // 01:45 BST, then 01:15 GMT, which is later but looks earlier locally.
+    var bst = LocalDateTime.parse("2024-10-27T01:45").atZone(LONDON).withEarlierOffsetAtOverlap().toInstant();
+    var gmt = LocalDateTime.parse("2024-10-27T01:15").atZone(LONDON).withLaterOffsetAtOverlap().toInstant();
+    p.recordJoin(bst);
+    p.recordJoin(gmt);
+    p.nextPrewarm(local("2024-10-27T03:00"));
+    // Both counted towards the slot already in progress.
+    assertEquals(0.5, p.probabilityAt(bst), EPSILON);
+    assertEquals(0, p.probabilityAt(local("2024-10-27T01:00")), EPSILON);
+  }
+
+  /**
+   * Trained on two weeks from {@code day}, a player who joins at 19:10 and
+   * stays past 19:30.
+   */
+  private JoinPredictor trainedOnEvenings(LocalDate day) {
+    var p = predictor(day + "T00:00");
+    for (var d : new LocalDate[] { day, day.plusWeeks(1) }) {
+      p.recordJoin(local(d + "T19:10"));
+      p.recordJoin(local(d + "T19:40"));
+    }
+    return p;
+  }
+
+  @Test
+  public void prewarmsLeadTimeBeforeTheFirstLikelySlot() {
+    var p = trainedOnEvenings(LocalDate.parse("2024-03-07"));
+    // 0.75 for both slots, but only the first of the two needs a resume.
+    assertEquals(local("2024-03-21T18:58"), p.nextPrewarm(local("2024-03-21T12:00")));
+  }
+
+  @Test
+  public void prewarmsAtTheSameLocalTimeOnceClocksGoForward() {
+    // Trained on two Sundays in GMT, asked on the first in BST.
+    var p = trainedOnEvenings(LocalDate.parse("2024-03-17"));
+    assertEquals(Instant.parse("2024-03-31T17:58:00Z"), p.nextPrewarm(local("2024-03-31T12:00")));
+  }
+
+  @Test
+  public void nothingWhenTheLeadTimeHasAlreadyPassed() {
+    var p = trainedOnEvenings(LocalDate.parse("2024-03-07"));
+    // Past 18:58, so too late to resume ahead of 19:00, and the same slot next
+    // week is just past the end of the week searched.
+    assertNull(p.nextPrewarm(local("2024-03-21T18:59")));
+    // Exactly at it is too late as well.
+    assertNull(p.nextPrewarm(local("2024-03-28T18:58")));
+  }
+
+  @Test
+  public void skipsToTheNextRunWhenTheLeadTimeHasPassed() {
+    var p = predictor("2024-03-04T00:00");
+    for (int week = 0; week < 2; week++) {
+      for (var day : new String[] { "2024-03-04", "2024-03-05" }) {
+        p.recordJoin(local(day + "T19:10").plus(Duration.ofDays(7 * week)));
+      }
+    }
+    assertEquals(local("2024-03-19T18:58"), p.nextPrewarm(local("2024-03-18T18:59")));
+  }
+
+  @Test
+  public void nothingLikelyEnough() {
+    assertNull(predictor("2024-03-07T00:00").nextPrewarm(local("2024-03-07T12:00")));
+    var p = predictor("2024-03-07T00:00");
+    p.recordJoin(local("2024-03-07T19:10"));
+    // A week without that player brings the slot down to 0.25.
+    assertNull(p.nextPrewarm(local("2024-03-14T20:00")));
+  }
+}
@@ -0,0 +1,195 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+
+/**
+ * Runs real processes, so only on Linux, where process states can be read
+ * from /proc.
+ */
+public class LocalProcessControllerTest {
+  private static final Logger LOGGER = Logger.getLogger(LocalProcessControllerTest.class.getName());
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ScheduledExecutorService scheduler;
+  private Path pidFile;
+  private LocalProcessController controller;
+  private ProcessHandle spawned;
+
+  @Before
+  public void setUp() throws IOException {
+    assumeTrue(Files.isDirectory(Path.of("/proc/self")));
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    pidFile = tmp.getRoot().toPath().resolve("server.pid");
+  }
+
+  @After
+  public void tearDown() {
+    if (controller != null) {
+      controller.close();
+    }
+    if (spawned != null) {
+      spawned.descendants().forEach(ProcessHandle::destroyForcibly);
+      spawned.destroyForcibly();
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private LocalProcessController controller(List<String> command) {
+    var cfg = LocalProcessController.getDefaultConfig();
+    cfg.set(ConfigKeys.LOCAL_COMMAND, command);
+    cfg.set(ConfigKeys.LOCAL_PID_FILE, pidFile.toString());
+    return new LocalProcessController(cfg, scheduler, LOGGER);
+  }
+
+  private ProcessHandle spawnSleep() throws IOException {
+    spawned = new ProcessBuilder("sleep", "60").start().toHandle();
+    return spawned;
+  }
+
+  private static char procState(ProcessHandle p) throws IOException {
+    var stat = Files.readString(Path.of("/proc", Long.toString(p.pid()), "stat"));
+    return stat.charAt(stat.lastIndexOf(')') + 2);
+  }
+
+  /**
+   * Signals are handled once the process next gets to run, so give it a
+   * moment.
+   */
+  private static void awaitStopped(ProcessHandle p, boolean want) throws Exception {
+    for (int i = 0; i < 100 && (procState(p) == 'T') != want; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(want, procState(p) == 'T');
+  }
+
+  private State checkState() throws Exception {
+    return controller.checkState().get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void signalsStopAndContinueTheProcessAndItsChildren() throws Exception {
+    controller = controller(List.of("sh", "-c", "sleep 60 & wait"));
+    assertEquals(State.SUSPENDED, checkState());
+    controller.resume().get(5, TimeUnit.SECONDS);
+    spawned = PidFile.load(pidFile, LOGGER);
+    assertNotNull(spawned);
+    ProcessHandle child = null;
+    for (int i = 0; i < 100 && child == null; i++) {
+      child = spawned.children().findFirst().orElse(null);
+      Thread.sleep(10);
+    }
+    assertNotNull(child);
+    assertEquals(State.RUNNING, checkState());
+
+    controller.suspend().get(5, TimeUnit.SECONDS);
+    awaitStopped(spawned, true);
+    awaitStopped(child, true);
+    assertEquals(State.SUSPENDED, checkState());
+
+    controller.resume().get(5, TimeUnit.SECONDS);
+    awaitStopped(spawned, false);
+    awaitStopped(child, false);
+    assertEquals(State.RUNNING, checkState());
+  }
+
+  @Test
+  public void closeLeavesTheProcessRunning() throws Exception {
+    var p = spawnSleep();
+    PidFile.save(pidFile, p);
+    controller = controller(List.of());
+    controller.suspend().get(5, TimeUnit.SECONDS);
+    awaitStopped(p, true);
+    controller.close();
+    awaitStopped(p, false);
+    assertEquals(true, p.isAlive());
+  }
+
+  @Test
+  public void adoptsTheProcessFromThePidFile() throws Exception {
+    var p = spawnSleep();
+    PidFile.save(pidFile, p);
+    controller = controller(List.of());
+    assertEquals(State.RUNNING, checkState());
+    controller.suspend().get(5, TimeUnit.SECONDS);
+    awaitStopped(p, true);
+    assertEquals(State.SUSPENDED, checkState());
+  }
+
+  @Test
+  public void ignoresAPidFileWithADifferentStartTime() throws Exception {
+    var p = spawnSleep();
+    long started = p.info().startInstant().orElseThrow().toEpochMilli();
+    // As if the pid had been reused by another process since.
+    Files.writeString(pidFile, String.format("%d %d", p.pid(), started - 60_000));
+    controller = controller(List.of());
+    // Not the server, so it isn't touched, and with no command the server
+    // can't be started.
+    assertEquals(State.NOT_READY, checkState());
+    assertFalse(Files.exists(pidFile));
+    controller.suspend().get(5, TimeUnit.SECONDS);
+    Thread.sleep(50);
+    assertEquals(false, procState(p) == 'T');
+  }
+
+  @Test
+  public void pidFileRoundTrip() throws Exception {
+    var p = spawnSleep();
+    PidFile.save(pidFile, p);
+    assertEquals(p.pid(), PidFile.load(pidFile, LOGGER).pid());
+  }
+
+  @Test
+  public void pidFileWithoutStartTimeIsNotTrusted() throws Exception {
+    var p = spawnSleep();
+    Files.writeString(pidFile, Long.toString(p.pid()));
+    assertNull(PidFile.load(pidFile, LOGGER));
+    assertFalse(Files.exists(pidFile));
+  }
+
+  @Test
+  public void pidFileOfAnExitedProcessIsDeleted() throws Exception {
+    var p = spawnSleep();
+    PidFile.save(pidFile, p);
+    p.destroyForcibly();
+    p.onExit().get(5, TimeUnit.SECONDS);
+    assertNull(PidFile.load(pidFile, LOGGER));
+    assertFalse(Files.exists(pidFile));
+  }
+
+  @Test
+  public void garbledPidFileIsDeleted() throws Exception {
+    Files.writeString(pidFile, "not a pid");
+    assertNull(PidFile.load(pidFile, LOGGER));
+    assertFalse(Files.exists(pidFile));
+  }
+
+  @Test
+  public void noPidFile() {
+    assertNull(PidFile.load(pidFile, LOGGER));
+  }
+}
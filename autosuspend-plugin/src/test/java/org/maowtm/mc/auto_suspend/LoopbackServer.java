@@ -0,0 +1,77 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP server on a loopback port that handles each connection in turn with
+ * the given behaviour. Connections are left open until the server is closed.
+ */
+class LoopbackServer implements Closeable {
+  interface Behaviour {
+    void handle(Socket s) throws IOException;
+  }
+
+  private final ServerSocket server;
+  private final List<Socket> accepted = new ArrayList<>();
+  private final AtomicInteger connections = new AtomicInteger();
+
+  LoopbackServer(Behaviour behaviour) throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    var t = new Thread(() -> {
+      while (true) {
+        Socket s;
+        try {
+          s = server.accept();
+        } catch (IOException e) {
+          return;
+        }
+        connections.incrementAndGet();
+        synchronized (accepted) {
+          accepted.add(s);
+        }
+        try {
+          behaviour.handle(s);
+        } catch (IOException e) {
+          // The client went away.
+        }
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
+  InetSocketAddress address() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+  }
+
+  int connections() {
+    return connections.get();
+  }
+
+  /**
+   * An address nothing is listening on.
+   */
+  static InetSocketAddress refusing() throws IOException {
+    try (var s = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), s.getLocalPort());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    synchronized (accepted) {
+      for (var s : accepted) {
+        s.close();
+      }
+    }
+  }
+}
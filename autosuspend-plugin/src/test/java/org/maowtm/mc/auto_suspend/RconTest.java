@@ -0,0 +1,180 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.md_5.bungee.config.Configuration;
+
+public class RconTest {
+  private static final String PASSWORD = "hunter2";
+
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  private static final class Packet {
+    final int id;
+    final int type;
+    final String body;
+
+    Packet(int id, int type, String body) {
+      this.id = id;
+      this.type = type;
+      this.body = body;
+    }
+  }
+
+  private static Packet read(Socket s) throws IOException {
+    var in = new DataInputStream(s.getInputStream());
+    var lengthBytes = new byte[4];
+    in.readFully(lengthBytes);
+    int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    var rest = new byte[length];
+    in.readFully(rest);
+    var b = ByteBuffer.wrap(rest).order(ByteOrder.LITTLE_ENDIAN);
+    int id = b.getInt();
+    int type = b.getInt();
+    return new Packet(id, type, new String(rest, 8, length - 10, StandardCharsets.UTF_8));
+  }
+
+  private static byte[] encode(int id, int type, String body) {
+    var bytes = body.getBytes(StandardCharsets.UTF_8);
+    var b = ByteBuffer.allocate(14 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(10 + bytes.length).putInt(id).putInt(type).put(bytes).put((byte) 0).put((byte) 0);
+    return b.array();
+  }
+
+  /**
+   * Writes the bytes a few at a time, so that the client sees them over
+   * several reads.
+   */
+  private static void writeSlowly(OutputStream out, byte[] bytes) throws IOException {
+    for (int i = 0; i < bytes.length; i += 3) {
+      out.write(bytes, i, Math.min(3, bytes.length - i));
+      out.flush();
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Answers like a vanilla server: an auth response to the login, and each
+   * command echoed back.
+   */
+  private static LoopbackServer.Behaviour server(boolean split) {
+    return s -> {
+      var out = s.getOutputStream();
+      var login = read(s);
+      if (!login.body.equals(PASSWORD)) {
+        out.write(encode(-1, 2, ""));
+        return;
+      }
+      // Some servers send an empty response first.
+      var reply = ByteBuffer.allocate(1024);
+      reply.put(encode(login.id, 0, "")).put(encode(login.id, 2, ""));
+      out.write(reply.array(), 0, reply.position());
+      while (true) {
+        var cmd = read(s);
+        var res = encode(cmd.id, 0, "ran " + cmd.body);
+        if (split) {
+          writeSlowly(out, res);
+        } else {
+          out.write(res);
+        }
+      }
+    };
+  }
+
+  private static Rcon client(LoopbackServer server, String password) {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.RCON_HOST, server.address().getHostString());
+    cfg.set(ConfigKeys.RCON_PORT, server.address().getPort());
+    cfg.set(ConfigKeys.RCON_PASSWORD, password);
+    return new Rcon(cfg, null);
+  }
+
+  @Test
+  public void loginAndCommands() throws Exception {
+    try (var server = new LoopbackServer(server(false))) {
+      var res = client(server, PASSWORD).run(List.of("save-all", "list"), Duration.ofSeconds(5), scheduler)
+          .get(10, TimeUnit.SECONDS);
+      assertEquals(List.of("ran save-all", "ran list"), res);
+    }
+  }
+
+  @Test
+  public void wrongPassword() throws Exception {
+    try (var server = new LoopbackServer(server(false))) {
+      var err = StatusPingTest.failure(client(server, "wrong").run(List.of("list"), Duration.ofSeconds(5),
+          scheduler));
+      assertTrue(err.toString(), err instanceof IOException);
+      assertTrue(err.getMessage(), err.getMessage().contains("password"));
+    }
+  }
+
+  @Test
+  public void responseSplitAcrossReads() throws Exception {
+    try (var server = new LoopbackServer(server(true))) {
+      var res = client(server, PASSWORD).run(List.of("say hello world"), Duration.ofSeconds(5), scheduler)
+          .get(10, TimeUnit.SECONDS);
+      assertEquals(List.of("ran say hello world"), res);
+    }
+  }
+
+  @Test
+  public void stalledServerTimesOutAndIsHungUpOn() throws Exception {
+    var hungUp = new CountDownLatch(1);
+    try (var server = new LoopbackServer(s -> {
+      read(s);
+      // Never answers. Reading on sees the client close the connection.
+      if (s.getInputStream().read() < 0) {
+        hungUp.countDown();
+      }
+    })) {
+      var err = StatusPingTest.failure(client(server, PASSWORD).run(List.of("list"), Duration.ofMillis(300),
+          scheduler));
+      assertTrue(err.toString(), err instanceof TimeoutException);
+      assertTrue("Connection left open", hungUp.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void refusedConnectionFails() throws Exception {
+    var cfg = new Configuration();
+    cfg.set(ConfigKeys.RCON_HOST, "127.0.0.1");
+    cfg.set(ConfigKeys.RCON_PORT, LoopbackServer.refusing().getPort());
+    cfg.set(ConfigKeys.RCON_PASSWORD, PASSWORD);
+    var err = StatusPingTest.failure(new Rcon(cfg, null).run(List.of("list"), Duration.ofSeconds(5), scheduler));
+    assertTrue(err.toString(), err instanceof IOException);
+  }
+}
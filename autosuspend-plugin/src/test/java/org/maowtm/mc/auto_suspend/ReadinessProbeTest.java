@@ -0,0 +1,76 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadinessProbeTest {
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void reportsTimeFromInjectedClock() throws Exception {
+    try (var server = new LoopbackServer(StatusPingTest::answer)) {
+      var clock = new StepClock(Duration.ofSeconds(3));
+      var took = new ReadinessProbe(server.address(), scheduler, clock).awaitReady(Duration.ofSeconds(30))
+          .get(10, TimeUnit.SECONDS);
+      // One step from when it started to when the answer came.
+      assertEquals(Duration.ofSeconds(3), took);
+    }
+  }
+
+  @Test
+  public void givesUpByInjectedClock() throws Exception {
+    // Refuses every attempt, and the clock says each check is a minute later,
+    // so the probe gives up after the first attempt rather than the real time.
+    var clock = new StepClock(Duration.ofMinutes(1));
+    long start = System.nanoTime();
+    var err = StatusPingTest.failure(new ReadinessProbe(LoopbackServer.refusing(), scheduler, clock)
+        .awaitReady(Duration.ofSeconds(30)));
+    assertTrue(err.toString(), err instanceof TimeoutException);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void backsOffAndGivesUp() throws Exception {
+    // Hangs up straight away, so that each attempt can be counted.
+    try (var server = new LoopbackServer(Socket::close)) {
+      long start = System.nanoTime();
+      var err = StatusPingTest.failure(new ReadinessProbe(server.address(), scheduler, Clock.systemUTC())
+          .awaitReady(Duration.ofMillis(800)));
+      long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue(err.toString(), err instanceof TimeoutException);
+      // Waits of 50, 100, 200 and 400 ms fit before giving up; without backing
+      // off there would have been many more attempts.
+      assertTrue("attempts: " + server.connections(), server.connections() >= 3 && server.connections() <= 6);
+      assertTrue("took " + tookMs + " ms", tookMs >= 300 && tookMs < 5000);
+    }
+  }
+
+  @Test
+  public void givesUpOnRefusedConnections() throws Exception {
+    var err = StatusPingTest.failure(new ReadinessProbe(LoopbackServer.refusing(), scheduler, Clock.systemUTC())
+        .awaitReady(Duration.ofMillis(500)));
+    assertTrue(err.toString(), err instanceof TimeoutException);
+  }
+}
@@ -0,0 +1,126 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusPingTest {
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 5; i++) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("Closed");
+      }
+      value |= (b & 0x7f) << (7 * i);
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("VarInt too long");
+  }
+
+  /**
+   * Reads the handshake and status request, and answers with a status
+   * response, one byte at a time so that the client has to put it together.
+   */
+  static void answer(Socket s) throws IOException {
+    var in = s.getInputStream();
+    for (int packet = 0; packet < 2; packet++) {
+      in.readNBytes(readVarInt(in));
+    }
+    var json = "{\"version\":{\"name\":\"test\",\"protocol\":763}}".getBytes(StandardCharsets.UTF_8);
+    var body = new ByteArrayOutputStream();
+    writeVarInt(body, 0x00);
+    writeVarInt(body, json.length);
+    body.write(json);
+    var packet = new ByteArrayOutputStream();
+    writeVarInt(packet, body.size());
+    body.writeTo(packet);
+    var out = s.getOutputStream();
+    for (var b : packet.toByteArray()) {
+      out.write(b);
+      out.flush();
+    }
+  }
+
+  static Throwable failure(CompletableFuture<?> f) throws Exception {
+    try {
+      f.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    fail("Expected a failure");
+    return null;
+  }
+
+  @Test
+  public void statusResponse() throws Exception {
+    try (var server = new LoopbackServer(StatusPingTest::answer)) {
+      StatusPing.ping(server.address(), Duration.ofSeconds(5), scheduler).get(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void silentServerTimesOut() throws Exception {
+    try (var server = new LoopbackServer(s -> {
+    })) {
+      long start = System.nanoTime();
+      var err = failure(StatusPing.ping(server.address(), Duration.ofMillis(300), scheduler));
+      assertTrue(err.toString(), err instanceof TimeoutException);
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+  }
+
+  @Test
+  public void unexpectedPacketFails() throws Exception {
+    try (var server = new LoopbackServer(s -> s.getOutputStream().write(new byte[] { 2, 0x05, 0x00 }))) {
+      var err = failure(StatusPing.ping(server.address(), Duration.ofSeconds(5), scheduler));
+      assertTrue(err.toString(), err instanceof IOException);
+    }
+  }
+
+  @Test
+  public void refusedConnectionFails() throws Exception {
+    var err = failure(StatusPing.ping(LoopbackServer.refusing(), Duration.ofSeconds(5), scheduler));
+    assertTrue(err.toString(), err instanceof ConnectException);
+  }
+}
@@ -0,0 +1,48 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock that moves on by a fixed step every time it is read, or stays put
+ * with a zero step until {@link #advance} is called.
+ */
+class StepClock extends Clock {
+  private final Duration step;
+  private Instant now;
+  private final ZoneId zone;
+
+  StepClock(Duration step) {
+    this(Instant.parse("2024-01-01T00:00:00Z"), step, ZoneOffset.UTC);
+  }
+
+  StepClock(Instant start, Duration step, ZoneId zone) {
+    this.now = start;
+    this.step = step;
+    this.zone = zone;
+  }
+
+  synchronized void advance(Duration d) {
+    now = now.plus(d);
+  }
+
+  @Override
+  public synchronized Instant instant() {
+    var t = now;
+    now = now.plus(step);
+    return t;
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    throw new UnsupportedOperationException();
+  }
+}
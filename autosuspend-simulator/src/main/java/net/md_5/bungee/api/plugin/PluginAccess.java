@@ -0,0 +1,16 @@
+package net.md_5.bungee.api.plugin;
+
+import net.md_5.bungee.api.ProxyServer;
+
+/**
+ * Does what BungeeCord's plugin loader would, for plugins created outside of
+ * it.
+ */
+public final class PluginAccess {
+  private PluginAccess() {
+  }
+
+  public static void init(Plugin plugin, ProxyServer proxy, PluginDescription description) {
+    plugin.init(proxy, description);
+  }
+}
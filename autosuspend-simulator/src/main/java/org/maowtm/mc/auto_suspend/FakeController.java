@@ -0,0 +1,185 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+/**
+ * A {@link ServerController} for a simulated VM. Resuming, suspending and
+ * starting take a random, log-normally distributed amount of virtual time.
+ * Stopping is quick.
+ */
+public class FakeController implements ServerController {
+  /**
+   * A log-normal distribution given by its median and the standard deviation
+   * of its logarithm.
+   */
+  public static class Latency {
+    public final Duration median;
+    public final double spread;
+
+    public Latency(Duration median, double spread) {
+      this.median = median;
+      this.spread = spread;
+    }
+
+    Duration sample(Random random) {
+      return Duration.ofNanos((long) (median.toNanos() * Math.exp(spread * random.nextGaussian())));
+    }
+  }
+
+  private final VirtualScheduler scheduler;
+  private final Random random;
+  private final Latency resumeLatency, suspendLatency, startLatency;
+  /**
+   * Sleeps shorter than this probably cost more in resume and suspend time
+   * than they saved.
+   */
+  public static final Duration SHORT_SLEEP = Duration.ofMinutes(10);
+
+  private State state = State.SUSPENDED;
+  /**
+   * When the VM last started resuming, if it isn't suspended.
+   */
+  private Instant upSince = null;
+  private Instant suspendedAt = null;
+  /**
+   * When the VM was last stopped, if it is stopped.
+   */
+  private Instant stoppedSince = null;
+  private Duration upTime = Duration.ZERO, stoppedTime = Duration.ZERO;
+  private int resumes = 0, suspends = 0, shortSleeps = 0, stops = 0;
+
+  public FakeController(VirtualScheduler scheduler, long seed, Latency resumeLatency, Latency suspendLatency,
+      Latency startLatency) {
+    this.scheduler = scheduler;
+    this.random = new Random(seed);
+    this.resumeLatency = resumeLatency;
+    this.suspendLatency = suspendLatency;
+    this.startLatency = startLatency;
+  }
+
+  /**
+   * Completes after the given amount of virtual time.
+   */
+  private CompletableFuture<Void> after(Duration d, Runnable then) {
+    var done = new CompletableFuture<Void>();
+    scheduler.schedule(() -> {
+      then.run();
+      done.complete(null);
+    }, d.toNanos(), TimeUnit.NANOSECONDS);
+    return done;
+  }
+
+  @Override
+  public CompletableFuture<State> checkState() {
+    return CompletableFuture.completedFuture(state);
+  }
+
+  @Override
+  public CompletableFuture<Void> resume() {
+    if (state != State.SUSPENDED) {
+      return CompletableFuture.completedFuture(null);
+    }
+    resumes++;
+    upSince = scheduler.now();
+    if (suspendedAt != null && Duration.between(suspendedAt, upSince).compareTo(SHORT_SLEEP) < 0) {
+      shortSleeps++;
+    }
+    return after(resumeLatency.sample(random), () -> state = State.RUNNING);
+  }
+
+  @Override
+  public CompletableFuture<Void> suspend() {
+    if (state != State.RUNNING) {
+      return CompletableFuture.completedFuture(null);
+    }
+    suspends++;
+    return after(suspendLatency.sample(random), () -> {
+      state = State.SUSPENDED;
+      upTime = upTime.plus(Duration.between(upSince, scheduler.now()));
+      upSince = null;
+      suspendedAt = scheduler.now();
+    });
+  }
+
+  @Override
+  public boolean canStop() {
+    return true;
+  }
+
+  @Override
+  public CompletableFuture<Void> stop() {
+    if (state != State.SUSPENDED) {
+      return CompletableFuture.completedFuture(null);
+    }
+    stops++;
+    return after(Duration.ofSeconds(5), () -> {
+      state = State.STOPPED;
+      stoppedSince = scheduler.now();
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> start() {
+    if (state != State.STOPPED) {
+      return CompletableFuture.completedFuture(null);
+    }
+    resumes++;
+    stoppedTime = stoppedTime.plus(Duration.between(stoppedSince, scheduler.now()));
+    stoppedSince = null;
+    upSince = scheduler.now();
+    return after(startLatency.sample(random), () -> state = State.RUNNING);
+  }
+
+  /**
+   * Total time the VM was stopped so far.
+   */
+  public Duration getStoppedTime() {
+    if (stoppedSince != null) {
+      return stoppedTime.plus(Duration.between(stoppedSince, scheduler.now()));
+    }
+    return stoppedTime;
+  }
+
+  public int getStops() {
+    return stops;
+  }
+
+  /**
+   * Total time the VM was up (resuming, running or suspending) so far.
+   */
+  public Duration getUpTime() {
+    if (upSince != null) {
+      return upTime.plus(Duration.between(upSince, scheduler.now()));
+    }
+    return upTime;
+  }
+
+  /**
+   * Whether the VM is resuming, running or suspending.
+   */
+  public boolean isUp() {
+    return upSince != null;
+  }
+
+  public int getResumes() {
+    return resumes;
+  }
+
+  public int getSuspends() {
+    return suspends;
+  }
+
+  /**
+   * Number of resumes less than {@link #SHORT_SLEEP} after the previous
+   * suspend finished.
+   */
+  public int getShortSleeps() {
+    return shortSleeps;
+  }
+}
@@ -0,0 +1,470 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.md_5.bungee.api.ProxyConfig;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.ServerConnectRequest;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.plugin.PluginAccess;
+import net.md_5.bungee.api.plugin.PluginDescription;
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Replays a trace of players joining and leaving against the real
+ * {@link ServerStateManager}, driven by a {@link FakeController} and a
+ * {@link VirtualScheduler}, and reports how much the VM was up and how long
+ * players had to wait.
+ *
+ * Runs are deterministic for a given trace, seed and config, so this also
+ * works as a regression check for the state machine: it exits with status 1 if
+ * any player was left waiting at the end.
+ */
+public class Simulator {
+  private static final String SERVER = "sim";
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+  /**
+   * Keep going this long after the last event, so that the final suspend is
+   * counted.
+   */
+  private static final Duration TAIL = Duration.ofDays(1);
+
+  static class SimPlugin extends AutoSuspend {
+    private final VirtualScheduler scheduler;
+    private final Map<String, FakeController> controllers;
+
+    SimPlugin(ProxyServer proxy, PluginDescription description, VirtualScheduler scheduler,
+        Map<String, FakeController> controllers) {
+      super(proxy, description);
+      PluginAccess.init(this, proxy, description);
+      this.scheduler = scheduler;
+      this.controllers = controllers;
+    }
+
+    @Override
+    ScheduledExecutorService createScheduler(Configuration config) {
+      return scheduler;
+    }
+
+    @Override
+    Clock getClock() {
+      return scheduler.clock();
+    }
+
+    @Override
+    ServerController createController(String name, ServerConfig serverConfig) {
+      return controllers.get(name);
+    }
+  }
+
+  private class SimPlayer {
+    final ProxiedPlayer mock;
+    boolean online = false;
+    boolean waiting = false;
+    boolean connected = false;
+    Instant joinedAt;
+    /**
+     * The server the player is on or waiting for.
+     */
+    ServerStateManager server;
+
+    SimPlayer(String name, int id) {
+      mock = stub(ProxiedPlayer.class);
+      when(mock.getUniqueId()).thenReturn(new UUID(0, id));
+      when(mock.getName()).thenReturn(name);
+      when(mock.getSocketAddress()).thenReturn(new InetSocketAddress("198.51.100.1", 40000 + id % 10000));
+      when(mock.isConnected()).thenAnswer(inv -> online);
+      doAnswer(inv -> {
+        var request = inv.getArgument(0, ServerConnectRequest.class);
+        // BungeeCord connects asynchronously.
+        scheduler.execute(() -> {
+          if (!online) {
+            request.getCallback().done(ServerConnectRequest.Result.FAIL, null);
+            return;
+          }
+          server = plugin.getStateManager(request.getTarget().getName());
+          connected(this);
+          request.getCallback().done(ServerConnectRequest.Result.SUCCESS, null);
+        });
+        return null;
+      }).when(mock).connect(any(ServerConnectRequest.class));
+    }
+  }
+
+  public static class Result {
+    public Duration simulated;
+    public Duration upTime;
+    /**
+     * Time spent stopped rather than suspended.
+     */
+    public Duration stoppedTime;
+    public int stops;
+    public int resumes, suspends, shortSleeps;
+    /**
+     * Most servers up at the same time.
+     */
+    public int peakUp;
+    public int joins, kicked, gaveUp, stuck;
+    /**
+     * Wait of every player who joined and got in, zero for those who went
+     * straight through.
+     */
+    public List<Duration> waits = new ArrayList<>();
+
+    Duration waitPercentile(double p) {
+      var waited = new ArrayList<Duration>();
+      for (var w : waits) {
+        if (!w.isZero()) {
+          waited.add(w);
+        }
+      }
+      if (waited.isEmpty()) {
+        return Duration.ZERO;
+      }
+      Collections.sort(waited);
+      return waited.get(Math.min(waited.size() - 1, (int) Math.ceil(p * waited.size()) - 1));
+    }
+
+    long waited() {
+      return waits.stream().filter(w -> !w.isZero()).count();
+    }
+
+    static String header() {
+      return String.format("%10s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s", "vm_hours", "up_%",
+          "peak_up", "stop_h", "resumes", "suspends", "stops", "short", "joins", "waited", "p50_s", "p90_s", "p99_s",
+          "max_s", "lost");
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%10.1f %8.1f %8d %8.1f %8d %8d %8d %8d %8d %8d %8.1f %8.1f %8.1f %8.1f %8d",
+          upTime.toSeconds() / 3600.0, 100.0 * upTime.toMillis() / simulated.toMillis(), peakUp,
+          stoppedTime.toSeconds() / 3600.0, resumes, suspends, stops,
+          shortSleeps, joins, waited(), waitPercentile(0.5).toMillis() / 1000.0,
+          waitPercentile(0.9).toMillis() / 1000.0, waitPercentile(0.99).toMillis() / 1000.0,
+          waitPercentile(1).toMillis() / 1000.0, kicked + gaveUp + stuck);
+    }
+  }
+
+  private final Trace trace;
+  private final long seed;
+  private final FakeController.Latency resumeLatency, suspendLatency, startLatency;
+  /**
+   * Number of servers behind a {@link ServerPool}, or 1 for a single server.
+   */
+  private final int poolSize;
+
+  private VirtualScheduler scheduler;
+  private SimPlugin plugin;
+  private ServerPool pool;
+  private ServerStateManager manager;
+  private Result result;
+
+  public Simulator(Trace trace, long seed, FakeController.Latency resumeLatency,
+      FakeController.Latency suspendLatency, FakeController.Latency startLatency, int poolSize) {
+    this.trace = trace;
+    this.seed = seed;
+    this.resumeLatency = resumeLatency;
+    this.suspendLatency = suspendLatency;
+    this.startLatency = startLatency;
+    this.poolSize = poolSize;
+  }
+
+  private static <T> T stub(Class<T> cls) {
+    return mock(cls, withSettings().stubOnly());
+  }
+
+  /**
+   * @param overrides config keys (with dots for nested sections) to set on top
+   *                  of the defaults.
+   */
+  public Result run(Map<String, Object> overrides) throws Exception {
+    scheduler = new VirtualScheduler(START, ZoneOffset.UTC);
+    result = new Result();
+    // Either just SERVER, or SERVER as a pool of the rest.
+    var names = new ArrayList<String>();
+    names.add(SERVER);
+    for (int i = 1; poolSize > 1 && i <= poolSize; i++) {
+      names.add(SERVER + "-" + i);
+    }
+    var controllers = new LinkedHashMap<String, FakeController>();
+    var proxy = stub(ProxyServer.class);
+    var servers = new LinkedHashMap<String, ServerInfo>();
+    for (var name : names) {
+      var serverInfo = stub(ServerInfo.class);
+      when(serverInfo.getName()).thenReturn(name);
+      when(serverInfo.getSocketAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 25566 + servers.size()));
+      when(proxy.getServerInfo(name)).thenReturn(serverInfo);
+      servers.put(name, serverInfo);
+      if (poolSize <= 1 || !name.equals(SERVER)) {
+        controllers.put(name, new FakeController(scheduler, seed + controllers.size(), resumeLatency,
+            suspendLatency, startLatency));
+      }
+    }
+
+    var logger = Logger.getLogger("autosuspend-simulator");
+    logger.setLevel(Level.WARNING);
+    when(proxy.getLogger()).thenReturn(logger);
+    when(proxy.getServers()).thenReturn(servers);
+    var pluginsFolder = Files.createTempDirectory("autosuspend-simulator").toFile();
+    pluginsFolder.deleteOnExit();
+    when(proxy.getPluginsFolder()).thenReturn(pluginsFolder);
+    // Deprecated, but still read by ServerConnectRequest.builder().
+    @SuppressWarnings("deprecation")
+    var proxyConfig = stub(ProxyConfig.class);
+    when(proxyConfig.getServerConnectTimeout()).thenReturn(5000);
+    when(proxy.getConfig()).thenReturn(proxyConfig);
+    if (ProxyServer.getInstance() == null) {
+      ProxyServer.setInstance(proxy);
+    }
+    var description = new PluginDescription();
+    description.setName("autosuspend");
+    description.setFile(new File(pluginsFolder, "autosuspend.jar"));
+
+    plugin = new SimPlugin(proxy, description, scheduler, controllers);
+    // For the join predictor's history.
+    plugin.getDataFolder().mkdir();
+    plugin.getDataFolder().deleteOnExit();
+    var config = plugin.defaultConfig();
+    config.set(ConfigKeys.SERVER, SERVER);
+    // No backend to probe.
+    config.set(ConfigKeys.READINESS_TIMEOUT_SECS, 0);
+    // Nobody reads it here, and writing it would only slow the run down.
+    config.getSection(ConfigKeys.JOURNAL).set(ConfigKeys.JOURNAL_ENABLED, false);
+    for (var e : overrides.entrySet()) {
+      config.set(e.getKey(), e.getValue());
+    }
+    if (poolSize > 1) {
+      for (var name : controllers.keySet()) {
+        config.set(ConfigKeys.SERVERS + "." + name + "." + ConfigKeys.CONTROLLER, "fake");
+      }
+      config.set(ConfigKeys.POOLS + "." + SERVER + "." + ConfigKeys.POOL_MEMBERS, new ArrayList<>(controllers.keySet()));
+    }
+    plugin.startManagers(config);
+    pool = plugin.getPool(SERVER);
+    manager = plugin.getStateManager(SERVER);
+
+    var players = new HashMap<String, SimPlayer>();
+    for (var e : trace.getEvents()) {
+      var p = players.computeIfAbsent(e.player, name -> new SimPlayer(name, players.size()));
+      scheduler.scheduleAt(START.plus(e.at), e.join ? () -> join(p) : () -> leave(p));
+    }
+    var end = START.plus(trace.getLength()).plus(TAIL);
+    sampleUp(controllers.values(), end);
+    scheduler.runUntil(end);
+
+    for (var p : players.values()) {
+      if (p.waiting) {
+        result.stuck++;
+      }
+    }
+    result.simulated = Duration.between(START, end);
+    result.upTime = Duration.ZERO;
+    result.stoppedTime = Duration.ZERO;
+    for (var controller : controllers.values()) {
+      result.upTime = result.upTime.plus(controller.getUpTime());
+      result.stoppedTime = result.stoppedTime.plus(controller.getStoppedTime());
+      result.stops += controller.getStops();
+      result.resumes += controller.getResumes();
+      result.suspends += controller.getSuspends();
+      result.shortSleeps += controller.getShortSleeps();
+    }
+    plugin.stopManagers();
+    return result;
+  }
+
+  /**
+   * Keeps track of how many servers are up at once, once a minute.
+   */
+  private void sampleUp(Collection<FakeController> controllers, Instant end) {
+    int up = 0;
+    for (var c : controllers) {
+      if (c.isUp()) {
+        up++;
+      }
+    }
+    result.peakUp = Math.max(result.peakUp, up);
+    var next = scheduler.now().plus(Duration.ofMinutes(1));
+    if (next.isBefore(end)) {
+      scheduler.scheduleAt(next, () -> sampleUp(controllers, end));
+    }
+  }
+
+  /**
+   * What {@link Events#onServerConnect} does for a player joining the proxy.
+   */
+  private void join(SimPlayer p) {
+    if (p.online) {
+      return;
+    }
+    p.online = true;
+    p.joinedAt = scheduler.now();
+    result.joins++;
+    var target = pool != null ? pool.route() : manager;
+    p.server = target;
+    target.recordJoin();
+    var snapshot = target.getSnapshot();
+    if (snapshot.state == ServerStateManager.State.NOT_READY && !snapshot.reconciling) {
+      result.kicked++;
+      p.online = false;
+    } else if (snapshot.state == ServerStateManager.State.RUNNING && snapshot.backendReady) {
+      connected(p);
+    } else {
+      p.waiting = true;
+      target.enqueue(p.mock);
+    }
+  }
+
+  private void connected(SimPlayer p) {
+    p.waiting = false;
+    p.connected = true;
+    result.waits.add(Duration.between(p.joinedAt, scheduler.now()));
+    p.server.playerConnected(p.mock);
+  }
+
+  private void leave(SimPlayer p) {
+    if (!p.online) {
+      return;
+    }
+    p.online = false;
+    if (p.connected) {
+      p.connected = false;
+      p.server.playerDisconnected(p.mock);
+    } else if (p.waiting) {
+      p.waiting = false;
+      result.gaveUp++;
+      // May have been moved to another member of the pool.
+      for (var ssm : plugin.getStateManagers()) {
+        ssm.dequeue(p.mock);
+      }
+    }
+  }
+
+  private static Object parseValue(String s) {
+    if (s.equals("true") || s.equals("false")) {
+      return Boolean.parseBoolean(s);
+    }
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+    }
+    try {
+      return Double.parseDouble(s);
+    } catch (NumberFormatException e) {
+    }
+    return s;
+  }
+
+  private static final String USAGE = String.join("\n",
+      "Usage: java -jar simulator.jar [options]",
+      "  --trace=FILE             replay FILE (lines of <seconds>,<player>,join|leave)",
+      "  --days=N                 otherwise generate N days of traffic (default 14), with",
+      "  --sessions-per-day=X     average sessions per day (default 6)",
+      "  --session-mins=X         average session length (default 60)",
+      "  --players=N              distinct players (default 8)",
+      "  --seed=N                 random seed (default 1)",
+      "  --resume-secs=X          median resume time (default 10)",
+      "  --suspend-secs=X         median suspend time (default 15)",
+      "  --start-secs=X           median time to start from stopped (default 60)",
+      "  --latency-spread=X       log-normal sigma of both (default 0.3)",
+      "  --pool=N                 run N servers as a pool (default 1, a single server)",
+      "  --set=KEY=VALUE          override a config key, e.g. --set=sleep_delay_secs=60",
+      "  --sweep=KEY=V1,V2,...    run once per value and compare");
+
+  public static void main(String[] args) throws Exception {
+    var opts = new HashMap<String, String>();
+    var overrides = new LinkedHashMap<String, Object>();
+    String sweepKey = null;
+    String[] sweepValues = null;
+    for (var arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      var k = arg.substring(2, arg.indexOf('='));
+      var v = arg.substring(arg.indexOf('=') + 1);
+      if (k.equals("set") || k.equals("sweep")) {
+        int eq = v.indexOf('=');
+        if (eq < 0) {
+          System.err.println(USAGE);
+          System.exit(2);
+        }
+        if (k.equals("set")) {
+          overrides.put(v.substring(0, eq), parseValue(v.substring(eq + 1)));
+        } else {
+          sweepKey = v.substring(0, eq);
+          sweepValues = v.substring(eq + 1).split(",");
+        }
+      } else {
+        opts.put(k, v);
+      }
+    }
+
+    long seed = Long.parseLong(opts.getOrDefault("seed", "1"));
+    Trace trace;
+    if (opts.containsKey("trace")) {
+      trace = Trace.load(Path.of(opts.get("trace")));
+    } else {
+      trace = Trace.synthetic(Integer.parseInt(opts.getOrDefault("days", "14")),
+          Double.parseDouble(opts.getOrDefault("sessions-per-day", "6")),
+          Duration.ofSeconds((long) (Double.parseDouble(opts.getOrDefault("session-mins", "60")) * 60)),
+          Integer.parseInt(opts.getOrDefault("players", "8")), seed);
+    }
+    double spread = Double.parseDouble(opts.getOrDefault("latency-spread", "0.3"));
+    var resume = new FakeController.Latency(
+        Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("resume-secs", "10")) * 1000)), spread);
+    var suspend = new FakeController.Latency(
+        Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("suspend-secs", "15")) * 1000)), spread);
+    var start = new FakeController.Latency(
+        Duration.ofMillis((long) (Double.parseDouble(opts.getOrDefault("start-secs", "60")) * 1000)), spread);
+    var sim = new Simulator(trace, seed, resume, suspend, start, Integer.parseInt(opts.getOrDefault("pool", "1")));
+
+    System.out.println(String.format("%d events over %.1f days", trace.getEvents().size(),
+        trace.getLength().toMinutes() / 1440.0));
+    boolean ok = true;
+    if (sweepKey == null) {
+      var result = sim.run(overrides);
+      System.out.println(Result.header());
+      System.out.println(result);
+      ok = result.stuck == 0;
+    } else {
+      System.out.println(String.format("%-12s %s", sweepKey, Result.header()));
+      for (var v : sweepValues) {
+        var o = new LinkedHashMap<>(overrides);
+        o.put(sweepKey, parseValue(v));
+        var result = sim.run(o);
+        System.out.println(String.format("%-12s %s", v, result));
+        ok &= result.stuck == 0;
+      }
+    }
+    if (!ok) {
+      System.err.println("Some players were still waiting at the end of the simulation.");
+      System.exit(1);
+    }
+  }
+}
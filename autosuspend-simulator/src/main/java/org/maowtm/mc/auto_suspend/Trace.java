@@ -0,0 +1,112 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sequence of players joining and leaving, as offsets from the start of the
+ * simulation.
+ *
+ * The file format is one event per line: {@code <seconds>,<player>,join} or
+ * {@code <seconds>,<player>,leave}. Blank lines and lines starting with # are
+ * ignored.
+ */
+public class Trace {
+  public static class Event {
+    public final Duration at;
+    public final String player;
+    public final boolean join;
+
+    public Event(Duration at, String player, boolean join) {
+      this.at = at;
+      this.player = player;
+      this.join = join;
+    }
+  }
+
+  private final List<Event> events;
+
+  private Trace(List<Event> events) {
+    events.sort(Comparator.comparing((Event e) -> e.at));
+    this.events = Collections.unmodifiableList(events);
+  }
+
+  public List<Event> getEvents() {
+    return events;
+  }
+
+  public Duration getLength() {
+    return events.isEmpty() ? Duration.ZERO : events.get(events.size() - 1).at;
+  }
+
+  public static Trace load(Path file) throws IOException {
+    var events = new ArrayList<Event>();
+    try (BufferedReader r = Files.newBufferedReader(file)) {
+      String line;
+      int lineNo = 0;
+      while ((line = r.readLine()) != null) {
+        lineNo++;
+        line = line.strip();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        var parts = line.split(",");
+        if (parts.length != 3 || !(parts[2].equals("join") || parts[2].equals("leave"))) {
+          throw new IOException(String.format("%s:%d: expected <seconds>,<player>,join|leave", file, lineNo));
+        }
+        var at = Duration.ofMillis((long) (Double.parseDouble(parts[0]) * 1000));
+        events.add(new Event(at, parts[1], parts[2].equals("join")));
+      }
+    }
+    return new Trace(events);
+  }
+
+  /**
+   * Random play sessions over the given number of days. Session start times
+   * cluster around the evening, lengths are exponentially distributed, and
+   * nobody plays two sessions at once.
+   */
+  public static Trace synthetic(int days, double sessionsPerDay, Duration meanSession, int players, long seed) {
+    var random = new Random(seed);
+    var starts = new ArrayList<Duration>();
+    for (int day = 0; day < days; day++) {
+      // Poisson number of sessions per day.
+      int n = 0;
+      double t = -Math.log(1 - random.nextDouble());
+      while (t < sessionsPerDay) {
+        n++;
+        t += -Math.log(1 - random.nextDouble());
+      }
+      for (int i = 0; i < n; i++) {
+        double hour = 19 + 3 * random.nextGaussian();
+        hour = Math.max(0, Math.min(23.99, hour));
+        starts.add(Duration.ofDays(day).plusMillis((long) (hour * 3600 * 1000)));
+      }
+    }
+    Collections.sort(starts);
+    var onlineUntil = new HashMap<String, Duration>();
+    var events = new ArrayList<Event>();
+    for (var start : starts) {
+      var player = String.format("player%d", random.nextInt(players));
+      var busy = onlineUntil.get(player);
+      if (busy != null && busy.compareTo(start) > 0) {
+        continue;
+      }
+      var length = Duration.ofMillis((long) (-Math.log(1 - random.nextDouble()) * meanSession.toMillis()));
+      var end = start.plus(length);
+      onlineUntil.put(player, end);
+      events.add(new Event(start, player, true));
+      events.add(new Event(end, player, false));
+    }
+    return new Trace(events);
+  }
+}
@@ -0,0 +1,218 @@
+package org.maowtm.mc.auto_suspend;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs scheduled tasks on the calling thread in virtual time, with a matching
+ * {@link Clock}. Time only moves forward through {@link #runUntil}, jumping
+ * straight to the next due task, so weeks pass in as long as it takes to run
+ * the tasks in them.
+ *
+ * Tasks due at the same time run in the order they were scheduled, which keeps
+ * runs deterministic.
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+  private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+  private final ZoneId zone;
+  private Instant now;
+  private long seq = 0;
+  private boolean shutdown = false;
+
+  private class Task<V> implements ScheduledFuture<V> {
+    final Instant at;
+    final long seq;
+    final Callable<V> callable;
+    boolean cancelled = false;
+    boolean done = false;
+    V result = null;
+
+    Task(Instant at, long seq, Callable<V> callable) {
+      this.at = at;
+      this.seq = seq;
+      this.callable = callable;
+    }
+
+    void run() throws Exception {
+      result = callable.call();
+      done = true;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(Duration.between(now, at));
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      var other = (Task<?>) o;
+      int c = at.compareTo(other.at);
+      return c != 0 ? c : Long.compare(seq, other.seq);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+      done = true;
+      return queue.remove(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+      if (!done) {
+        throw new IllegalStateException("Can't block in virtual time");
+      }
+      return result;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+  }
+
+  public VirtualScheduler(Instant start, ZoneId zone) {
+    this.now = start;
+    this.zone = zone;
+  }
+
+  public Instant now() {
+    return now;
+  }
+
+  /**
+   * A clock showing this scheduler's virtual time.
+   */
+  public Clock clock() {
+    return new Clock() {
+      @Override
+      public ZoneId getZone() {
+        return zone;
+      }
+
+      @Override
+      public Clock withZone(ZoneId zone) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Instant instant() {
+        return now;
+      }
+    };
+  }
+
+  private <V> Task<V> enqueue(Instant at, Callable<V> callable) {
+    if (shutdown) {
+      throw new IllegalStateException("Scheduler is shut down");
+    }
+    var task = new Task<V>(at.isBefore(now) ? now : at, seq++, callable);
+    queue.add(task);
+    return task;
+  }
+
+  public ScheduledFuture<?> scheduleAt(Instant at, Runnable command) {
+    return enqueue(at, () -> {
+      command.run();
+      return null;
+    });
+  }
+
+  /**
+   * Runs every task due up to and including the given time, then leaves the
+   * clock there.
+   */
+  public void runUntil(Instant end) {
+    while (!queue.isEmpty() && !queue.peek().at.isAfter(end)) {
+      var task = queue.poll();
+      if (task.at.isAfter(now)) {
+        now = task.at;
+      }
+      try {
+        task.run();
+      } catch (Exception e) {
+        throw new RuntimeException(String.format("Task failed at %s", now), e);
+      }
+    }
+    if (end.isAfter(now)) {
+      now = end;
+    }
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return scheduleAt(now.plusNanos(unit.toNanos(Math.max(0, delay))), command);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return enqueue(now.plusNanos(unit.toNanos(Math.max(0, delay))), callable);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    scheduleAt(now, command);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    queue.clear();
+    return Collections.emptyList();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return true;
+  }
+}
@@ -0,0 +1,264 @@
+package org.maowtm.mc.auto_suspend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.maowtm.mc.auto_suspend.ServerStateManager.State;
+
+import net.md_5.bungee.api.ProxyConfig;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.ServerConnectRequest;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.plugin.PluginDescription;
+
+/**
+ * A pool of three members, "a", "b" and "c", each a real state manager backed
+ * by a {@link FakeController}, in virtual time. Resuming takes 10 seconds,
+ * except where a test says otherwise.
+ */
+public class ServerPoolTest {
+  private static final String POOL = "pool";
+  private static final List<String> MEMBERS = List.of("a", "b", "c");
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+  private static final FakeController.Latency RESUME = new FakeController.Latency(Duration.ofSeconds(10), 0);
+  private static final FakeController.Latency SUSPEND = new FakeController.Latency(Duration.ofSeconds(15), 0);
+  private static final FakeController.Latency START_UP = new FakeController.Latency(Duration.ofSeconds(60), 0);
+
+  private final VirtualScheduler scheduler = new VirtualScheduler(START, ZoneOffset.UTC);
+  private final Map<String, FakeController> controllers = new LinkedHashMap<>();
+  private Simulator.SimPlugin plugin;
+  private ServerPool pool;
+
+  private static <T> T stub(Class<T> cls) {
+    return mock(cls, withSettings().stubOnly());
+  }
+
+  private class Player {
+    final ProxiedPlayer mock;
+    ServerStateManager server;
+
+    Player(int id) {
+      mock = stub(ProxiedPlayer.class);
+      when(mock.getUniqueId()).thenReturn(new UUID(0, id));
+      when(mock.getName()).thenReturn("player" + id);
+      when(mock.getSocketAddress()).thenReturn(new InetSocketAddress("198.51.100.1", 40000 + id));
+      when(mock.isConnected()).thenReturn(true);
+      doAnswer(inv -> {
+        var request = inv.getArgument(0, ServerConnectRequest.class);
+        scheduler.execute(() -> {
+          server = plugin.getStateManager(request.getTarget().getName());
+          server.playerConnected(mock);
+          request.getCallback().done(ServerConnectRequest.Result.SUCCESS, null);
+        });
+        return null;
+      }).when(mock).connect(any(ServerConnectRequest.class));
+    }
+  }
+
+  private int nextPlayerId = 0;
+
+  @Before
+  public void setUp() {
+    for (var name : MEMBERS) {
+      controllers.put(name, new FakeController(scheduler, 0, RESUME, SUSPEND, START_UP));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (plugin != null) {
+      plugin.stopManagers();
+    }
+  }
+
+  /**
+   * Starts the plugin with the given number of players per member, and lets
+   * it find out what state the members are in.
+   */
+  private void startPool(int playersPerInstance) throws Exception {
+    var logger = Logger.getLogger("autosuspend-test");
+    logger.setLevel(Level.WARNING);
+    var proxy = stub(ProxyServer.class);
+    var servers = new LinkedHashMap<String, ServerInfo>();
+    var names = new ArrayList<String>();
+    names.add(POOL);
+    names.addAll(MEMBERS);
+    for (var name : names) {
+      var serverInfo = stub(ServerInfo.class);
+      when(serverInfo.getName()).thenReturn(name);
+      when(serverInfo.getSocketAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 25566 + servers.size()));
+      when(proxy.getServerInfo(name)).thenReturn(serverInfo);
+      servers.put(name, serverInfo);
+    }
+    when(proxy.getLogger()).thenReturn(logger);
+    when(proxy.getServers()).thenReturn(servers);
+    var pluginsFolder = Files.createTempDirectory("autosuspend-test").toFile();
+    pluginsFolder.deleteOnExit();
+    when(proxy.getPluginsFolder()).thenReturn(pluginsFolder);
+    // Deprecated, but still read by ServerConnectRequest.builder().
+    @SuppressWarnings("deprecation")
+    var proxyConfig = stub(ProxyConfig.class);
+    when(proxyConfig.getServerConnectTimeout()).thenReturn(5000);
+    when(proxy.getConfig()).thenReturn(proxyConfig);
+    if (ProxyServer.getInstance() == null) {
+      ProxyServer.setInstance(proxy);
+    }
+    var description = new PluginDescription();
+    description.setName("autosuspend");
+    description.setFile(new File(pluginsFolder, "autosuspend.jar"));
+
+    plugin = new Simulator.SimPlugin(proxy, description, scheduler, controllers);
+    plugin.getDataFolder().mkdir();
+    plugin.getDataFolder().deleteOnExit();
+    var config = plugin.defaultConfig();
+    config.set(ConfigKeys.SERVER, POOL);
+    config.set(ConfigKeys.READINESS_TIMEOUT_SECS, 0);
+    // Long enough that nobody gets suspended during a test.
+    config.set(ConfigKeys.SLEEP_DELAY_SECS, 3600);
+    config.getSection(ConfigKeys.JOURNAL).set(ConfigKeys.JOURNAL_ENABLED, false);
+    // So that a stopped member can be started, though none is stopped by the
+    // pool within a test.
+    config.set(ConfigKeys.HIBERNATE + "." + ConfigKeys.HIBERNATE_STOP_AFTER_HOURS, 24);
+    for (var name : MEMBERS) {
+      config.set(ConfigKeys.SERVERS + "." + name + "." + ConfigKeys.CONTROLLER, "fake");
+    }
+    config.set(ConfigKeys.POOLS + "." + POOL + "." + ConfigKeys.POOL_MEMBERS, new ArrayList<>(MEMBERS));
+    config.set(ConfigKeys.POOLS + "." + POOL + "." + ConfigKeys.POOL_PLAYERS_PER_INSTANCE, playersPerInstance);
+    plugin.startManagers(config);
+    pool = plugin.getPool(POOL);
+    advance(Duration.ofSeconds(1));
+  }
+
+  private void advance(Duration d) {
+    scheduler.runUntil(scheduler.now().plus(d));
+  }
+
+  private ServerStateManager member(String name) {
+    return plugin.getStateManager(name);
+  }
+
+  /**
+   * What {@link Events#onServerConnect} does for a player joining the pool.
+   */
+  private Player join() {
+    var p = new Player(nextPlayerId++);
+    var target = pool.route();
+    target.recordJoin();
+    var s = target.getSnapshot();
+    if (s.state == State.RUNNING && s.backendReady) {
+      p.server = target;
+      target.playerConnected(p.mock);
+    } else {
+      target.enqueue(p.mock);
+    }
+    return p;
+  }
+
+  private void leave(Player p) {
+    p.server.playerDisconnected(p.mock);
+  }
+
+  /**
+   * Puts the member to sleep the way a hibernating manager would have, before
+   * the plugin starts.
+   */
+  private void stopBeforeStart(String name) {
+    controllers.get(name).stop();
+    advance(Duration.ofSeconds(10));
+    assertEquals(State.STOPPED, controllers.get(name).checkState().join());
+  }
+
+  @Test
+  public void joinsPackOntoTheFullestMemberUnderTheThreshold() throws Exception {
+    startPool(3);
+    var first = join();
+    advance(Duration.ofSeconds(30));
+    assertSame(member("a"), first.server);
+    var second = join();
+    join();
+    // a is full with three, so b is resumed for whoever comes next.
+    advance(Duration.ofSeconds(30));
+    assertEquals(State.RUNNING, member("b").getState());
+    assertSame(member("b"), join().server);
+    assertSame(member("b"), join().server);
+
+    // One left on a and two on b: b is the fuller of the two, so a can drain.
+    leave(first);
+    leave(second);
+    assertSame(member("b"), join().server);
+    assertEquals(3, member("b").getSnapshot().playerCount);
+    // b is full, so now a.
+    assertSame(member("a"), join().server);
+  }
+
+  @Test
+  public void queuedPlayersMoveToTheMemberReadyFirst() throws Exception {
+    controllers.put("a", new FakeController(scheduler, 0, new FakeController.Latency(Duration.ofMinutes(2), 0),
+        SUSPEND, START_UP));
+    startPool(1);
+    var p = join();
+    // Queued on a, which is slow to resume. The pool is now as full as it can
+    // get, so b is resumed as well, and is ready well before a.
+    assertEquals(1, member("a").getQueueDepth());
+    advance(Duration.ofSeconds(30));
+    assertSame(member("b"), p.server);
+    assertEquals(State.RUNNING, member("b").getState());
+    assertEquals(0, member("a").getQueueDepth());
+  }
+
+  @Test
+  public void scalesUpOnceLoadReachesActiveTimesPlayersPerInstance() throws Exception {
+    startPool(3);
+    join();
+    advance(Duration.ofSeconds(30));
+    join();
+    advance(Duration.ofSeconds(30));
+    // 2 players on 1 member, under 1 × 3.
+    assertEquals(1, controllers.get("a").getResumes());
+    assertEquals(0, controllers.get("b").getResumes());
+    join();
+    advance(Duration.ofSeconds(30));
+    // 3 players on 1 member.
+    assertEquals(1, controllers.get("b").getResumes());
+    assertEquals(0, controllers.get("c").getResumes());
+    assertEquals(State.RUNNING, member("b").getState());
+  }
+
+  @Test
+  public void prefersASuspendedSpareOverAStoppedOne() throws Exception {
+    stopBeforeStart("a");
+    startPool(1);
+    assertEquals(State.STOPPED, member("a").getState());
+    var p = join();
+    // Joins skip the stopped member, which would take longer to start.
+    assertEquals(1, member("b").getQueueDepth());
+    advance(Duration.ofSeconds(30));
+    assertSame(member("b"), p.server);
+    // And so does scaling up.
+    assertEquals(0, controllers.get("a").getResumes());
+    assertEquals(1, controllers.get("c").getResumes());
+  }
+}